@@ -0,0 +1,104 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.core.storage.StoredApplication;
+import edu.mayo.dhs.ievaluate.core.storage.journal.ApplicationJournal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The persistence behind {@link edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider#saveRegisteredApplications}
+ * for a given number of registered applications, once marshaled by their providers: a full save, which writes a new
+ * snapshot, and an incremental save of 1% of the applications, which appends to the journal and compacts when due.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ApplicationStorageBenchmark {
+    private static final ObjectMapper OM = new ObjectMapper();
+    private static final String TYPE = "edu.mayo.dhs.ievaluate.benchmarks.BenchmarkApplication";
+
+    @Param({"100", "1000", "10000"})
+    public int applications;
+
+    @Param({"false"})
+    public boolean fsync;
+
+    private File dir;
+    private ApplicationJournal journal;
+    private Map<UUID, StoredApplication> state;
+    private List<UUID> ids;
+    private int nextChange;
+    private long revision;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchmarkFiles.createTempDirectory("applications");
+        journal = new ApplicationJournal(new File(dir, "IEvaluateMemStore.snapshot"), new File(dir, "IEvaluateMemStore.json"),
+                new File(dir, "IEvaluateMemStore.journal"), fsync);
+        state = journal.replay();
+        ids = new ArrayList<>(applications);
+        for (int i = 0; i < applications; i++) {
+            UUID id = UUID.randomUUID();
+            ids.add(id);
+            state.put(id, new StoredApplication(TYPE, marshaled(id, i)));
+        }
+        journal.compact(state);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public void saveAllApplications() throws IOException {
+        journal.compact(state);
+    }
+
+    @Benchmark
+    public void saveChangedApplications() throws IOException {
+        int changed = Math.max(1, applications / 100);
+        Map<UUID, StoredApplication> upserts = new LinkedHashMap<>();
+        for (int i = 0; i < changed; i++) {
+            UUID id = ids.get(nextChange++ % ids.size());
+            StoredApplication app = new StoredApplication(TYPE, marshaled(id, revision++));
+            upserts.put(id, app);
+            state.put(id, app);
+        }
+        journal.appendBatch(upserts, Collections.emptyList());
+        if (journal.shouldCompact(state.size())) {
+            journal.compact(state);
+        }
+    }
+
+    // A representative marshaled application: identity, a few settings and a list of tasks
+    private static JsonNode marshaled(UUID id, long revision) {
+        ObjectNode ret = OM.createObjectNode();
+        ret.put("id", id.toString());
+        ret.put("name", "Application " + id);
+        ret.put("description", "Synthetic application used to benchmark application persistence");
+        ret.put("version", "1." + revision);
+        ret.put("endpoint", "http://localhost:8080/applications/" + id);
+        ObjectNode settings = ret.putObject("settings");
+        for (int i = 0; i < 8; i++) {
+            settings.put("setting" + i, i * revision);
+        }
+        for (int i = 0; i < 4; i++) {
+            ObjectNode task = ret.withArray("tasks").addObject();
+            task.put("name", "task" + i);
+            task.put("enabled", true);
+        }
+        return ret;
+    }
+}
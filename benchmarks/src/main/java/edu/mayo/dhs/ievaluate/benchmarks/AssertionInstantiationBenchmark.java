@@ -0,0 +1,220 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionDefinition;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionInput;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionOutput;
+import edu.mayo.dhs.ievaluate.core.assertions.AssertionDefinitionManager;
+import edu.mayo.dhs.ievaluate.api.plugins.PluginDescriptor;
+import edu.mayo.dhs.ievaluate.core.assertions.AssertionResultCache;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
+import edu.mayo.dhs.ievaluate.core.plugins.classloader.PluginClassLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * getAssertionInput/getAssertionOutput as performed by the server (instantiation through the cached constructor
+ * factories of {@link AssertionDefinitionManager}, then population from a map), against a reflective constructor call as
+ * a baseline, and a hit in the {@link AssertionResultCache}. The core cannot link against classes of other class loaders:
+ * getPluginAssertionOutput instantiates a copy of the output class defined by a {@link PluginClassLoader}, whose
+ * factory is generated in the plugin's class loader, and getForeignAssertionOutput one defined by another child class
+ * loader, which is instantiated through a method handle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class AssertionInstantiationBenchmark {
+    @Param({"1", "16"})
+    public int parameterCount;
+
+    private AssertionDefinitionManager definitions;
+    private AssertionResultCache cache;
+    private Map<String, String> parameters;
+    private UUID applicationId;
+    private Class<? extends AssertionOutput> pluginOutput;
+    private Class<? extends AssertionOutput> foreignOutput;
+    private File dir;
+    private PluginClassLoader pluginClassLoader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        definitions = new AssertionDefinitionManager();
+        cache = new AssertionResultCache(1000);
+        parameters = new HashMap<>();
+        for (int i = 0; i < parameterCount; i++) {
+            parameters.put("parameter" + i, String.valueOf(i));
+        }
+        applicationId = UUID.randomUUID();
+        cache.get(Definition.class, parameters, applicationId, "1.0", Output.class, Output::new);
+        pluginClassLoader = pluginClassLoader();
+        pluginOutput = redefined(pluginClassLoader);
+        foreignOutput = redefined(new ChildClassLoader(getClass().getClassLoader()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        pluginClassLoader.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    // A plugin class loader for a plugin JAR containing a copy of the output class
+    private PluginClassLoader pluginClassLoader() throws IOException {
+        dir = BenchmarkFiles.createTempDirectory("plugins");
+        File jarDir = new File(dir, "jars");
+        File confDir = new File(dir, "config");
+        if (!jarDir.mkdirs() || !confDir.mkdirs()) {
+            throw new IOException("Could not create plugin directories in " + dir);
+        }
+        PluginManagerCore pluginManager = new PluginManagerCore();
+        pluginManager.loadPlugins(jarDir, confDir); // No plugins, only sets up the class loader registry
+        ObjectMapper om = new ObjectMapper();
+        ObjectNode descriptor = om.createObjectNode();
+        descriptor.put("name", "assertions");
+        descriptor.put("mainClass", Output.class.getName());
+        File jar = new File(jarDir, "assertions.jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            out.putNextEntry(new JarEntry("plugin.json"));
+            out.write(om.writeValueAsBytes(descriptor));
+            out.putNextEntry(new JarEntry(resourceOf(Output.class.getName())));
+            out.write(read(getClass().getClassLoader(), resourceOf(Output.class.getName())));
+        }
+        return new PluginClassLoader(pluginManager, om.treeToValue(descriptor, PluginDescriptor.class), jar,
+                getClass().getClassLoader());
+    }
+
+    private static Class<? extends AssertionOutput> redefined(ClassLoader loader) throws ClassNotFoundException {
+        Class<? extends AssertionOutput> ret = Class.forName(Output.class.getName(), true, loader)
+                .asSubclass(AssertionOutput.class);
+        if (ret == Output.class) {
+            throw new IllegalStateException("Output class was not redefined by " + loader);
+        }
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionInput getAssertionInput() {
+        AssertionInput ret = definitions.getInputDefinition(Input.class);
+        ret.fromParameterMap(parameters);
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionOutput getAssertionOutput() {
+        AssertionOutput ret = definitions.getOutputDefinition(Output.class);
+        ret.fromOutputMap(parameters);
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionOutput getPluginAssertionOutput() {
+        AssertionOutput ret = definitions.getOutputDefinition(pluginOutput);
+        ret.fromOutputMap(parameters);
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionOutput getForeignAssertionOutput() {
+        AssertionOutput ret = definitions.getOutputDefinition(foreignOutput);
+        ret.fromOutputMap(parameters);
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionInput reflectiveAssertionInput() throws ReflectiveOperationException {
+        AssertionInput ret = Input.class.getConstructor().newInstance();
+        ret.fromParameterMap(parameters);
+        return ret;
+    }
+
+    @Benchmark
+    public AssertionOutput cachedAssertionOutput() throws Exception {
+        return cache.get(Definition.class, parameters, applicationId, "1.0", Output.class, Output::new);
+    }
+
+    public static class Definition implements AssertionDefinition {
+    }
+
+    public static class Input implements AssertionInput {
+        private Map<String, String> parameters;
+
+        @Override
+        public void fromParameterMap(Map<String, String> parameters) {
+            this.parameters = parameters;
+        }
+    }
+
+    public static class Output implements AssertionOutput {
+        private Map<String, String> values;
+
+        @Override
+        public void fromOutputMap(Map<String, String> values) {
+            this.values = values;
+        }
+    }
+
+    /**
+     * Defines its own copy of {@link Output}, and delegates everything else
+     */
+    private static final class ChildClassLoader extends ClassLoader {
+        private static final String OUTPUT = Output.class.getName();
+
+        ChildClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(OUTPUT)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> ret = findLoadedClass(name);
+                if (ret == null) {
+                    byte[] bytes;
+                    try {
+                        bytes = read(getParent(), resourceOf(name));
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                    ret = defineClass(name, bytes, 0, bytes.length);
+                }
+                return ret;
+            }
+        }
+    }
+
+    private static String resourceOf(String className) {
+        return className.replace('.', '/') + ".class";
+    }
+
+    private static byte[] read(ClassLoader loader, String resource) throws IOException {
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new FileNotFoundException(resource);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                out.write(buf, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * Scratch directories and synthetic plugin JARs for benchmark state
+ */
+final class BenchmarkFiles {
+    private BenchmarkFiles() {
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory("ievaluate-bench-" + prefix).toFile();
+    }
+
+    static void delete(File dir) throws IOException {
+        if (dir == null || !dir.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    /**
+     * @return The total length of the files under a directory
+     */
+    static long size(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.map(Path::toFile).filter(File::isFile).mapToLong(File::length).sum();
+        }
+    }
+
+    /**
+     * Writes a plugin JAR with the supplied plugin.json and an empty public class for each binary class name
+     */
+    static void writePluginJar(File jar, String descriptor, Collection<String> classNames) throws IOException {
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            out.putNextEntry(new JarEntry("plugin.json"));
+            out.write(descriptor.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+            for (String className : classNames) {
+                out.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+                writeEmptyClass(out, className);
+                out.closeEntry();
+            }
+        }
+    }
+
+    // A class file for "public class Name {}" without a constructor, which suffices to be loaded and linked
+    private static void writeEmptyClass(OutputStream target, String className) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // Minor version
+        out.writeShort(52); // Java 8
+        out.writeShort(5); // Constant pool count, plus one
+        out.writeByte(1); // #1 Utf8 this class name
+        out.writeUTF(className.replace('.', '/'));
+        out.writeByte(7); // #2 Class #1
+        out.writeShort(1);
+        out.writeByte(1); // #3 Utf8 superclass name
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7); // #4 Class #3
+        out.writeShort(3);
+        out.writeShort(0x0021); // ACC_PUBLIC | ACC_SUPER
+        out.writeShort(2); // This class
+        out.writeShort(4); // Superclass
+        out.writeShort(0); // Interfaces
+        out.writeShort(0); // Fields
+        out.writeShort(0); // Methods
+        out.writeShort(0); // Attributes
+        out.flush();
+        bytes.writeTo(target);
+    }
+}
@@ -0,0 +1,31 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with the standard JMH command line, but writes results as JSON to jmh-result.json unless another
+ * result format or file is requested, so that runs on different commits can be compared, e.g.
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar MetricStorage -p historySize=100000 -rff before.json
+ * </pre>
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        // JMH names the result file after the format itself when only -rf is supplied
+        if (!options.contains("-rf")) {
+            options.addAll(Arrays.asList("-rf", "json"));
+            if (!options.contains("-rff")) {
+                options.addAll(Arrays.asList("-rff", "jmh-result.json"));
+            }
+        }
+        Main.main(options.toArray(new String[0]));
+    }
+}
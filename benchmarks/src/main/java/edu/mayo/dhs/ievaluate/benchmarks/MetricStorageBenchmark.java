@@ -0,0 +1,125 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricIndex;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricIngestPipeline;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricRollups;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricStore;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.SegmentMetricStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metric write and read paths of {@link edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider}:
+ * saveMetrics (through the ingest pipeline and rollups) and getMetrics, against a series with a given history size,
+ * for both the segment store and the heap-only index (-Dievaluate.storage.metrics.inmemory).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetricStorageBenchmark {
+    private static final String APPLICATION = "benchmark";
+    private static final String TASK = "task";
+    private static final String METRIC = "latency";
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    @Param({"1000", "100000", "1000000"})
+    public int historySize;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"segment", "memory"})
+    public String store;
+
+    private File dir;
+    private MetricStore metrics;
+    private MetricIngestPipeline ingest;
+    private long nextTime;
+    private long historyStart;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkFiles.createTempDirectory("metrics");
+        metrics = "memory".equals(store) ? new MetricIndex() : new SegmentMetricStore(new File(dir, "metrics"));
+        ingest = new MetricIngestPipeline(metrics, new MetricRollups(metrics, MetricRollups.DEFAULT_RESOLUTIONS),
+                Runtime.getRuntime().availableProcessors(), MetricIngestPipeline.DEFAULT_QUEUE_CAPACITY);
+        random = new Random(42);
+        historyStart = System.currentTimeMillis() - historySize * INTERVAL_MILLIS;
+        nextTime = historyStart;
+        for (int written = 0; written < historySize; written += 10000) {
+            ingest.submit(APPLICATION, TASK, batch(Math.min(10000, historySize - written)));
+        }
+        ingest.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ingest.close();
+        metrics.close();
+        BenchmarkFiles.delete(dir);
+    }
+
+    /**
+     * Appends a batch of datapoints and waits until they are visible to queries
+     */
+    @Benchmark
+    public void saveMetrics(Batch batch) throws InterruptedException {
+        ingest.submit(APPLICATION, TASK, batch.datapoints).join();
+    }
+
+    /**
+     * Reads the most recent batch of datapoints
+     */
+    @Benchmark
+    public List<MetricDatapoint> getRecentMetrics() {
+        return metrics.query(APPLICATION, TASK, METRIC, null, nextTime - batchSize * INTERVAL_MILLIS, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads the entire history, the cost of which grows with the history size
+     */
+    @Benchmark
+    public List<MetricDatapoint> getAllMetrics() {
+        return metrics.query(APPLICATION, TASK, METRIC, null, historyStart, Long.MAX_VALUE);
+    }
+
+    /**
+     * The next batch for saveMetrics, built outside the measured invocation; held apart from the benchmark state so
+     * that the read benchmarks do not advance the series' time
+     */
+    @State(Scope.Thread)
+    public static class Batch {
+        private List<MetricDatapoint> datapoints;
+
+        @Setup(Level.Invocation)
+        public void setUp(MetricStorageBenchmark benchmark) {
+            datapoints = benchmark.batch(benchmark.batchSize);
+        }
+    }
+
+    // Datapoints are built the way the storage provider decodes them, through their bean properties
+    private List<MetricDatapoint> batch(int size) {
+        List<MetricDatapoint> ret = new ArrayList<>(size);
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("metricName", METRIC);
+        properties.put("version", "1.0");
+        for (int i = 0; i < size; i++) {
+            properties.put("measuredTime", nextTime);
+            properties.put("value", 100 + random.nextGaussian() * 10);
+            ret.add(OM.convertValue(properties, MetricDatapoint.class));
+            nextTime += INTERVAL_MILLIS;
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,119 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.plugins.PluginDescriptor;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginIndexCache;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
+import edu.mayo.dhs.ievaluate.core.plugins.classloader.PluginClassLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PluginClassLoader#loadClass(String)} from the last of a chain of synthetic plugins, each requiring the
+ * previous one, with and without the class indexes normally supplied by the plugin index cache: a class of the first
+ * plugin in the chain, a class of the plugin itself, a class of the parent (core) class loader, and a missing class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PluginClassLoadingBenchmark {
+    private static final int CLASSES_PER_PLUGIN = 50;
+    private static final String PARENT_CLASS = ObjectMapper.class.getName();
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    @Param({"true", "false"})
+    public boolean indexed;
+
+    private File dir;
+    private List<PluginClassLoader> loaders;
+    private PluginClassLoader last;
+    private String dependencyClass;
+    private String ownClass;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = BenchmarkFiles.createTempDirectory("plugins");
+        File jarDir = new File(dir, "jars");
+        File confDir = new File(dir, "config");
+        if (!jarDir.mkdirs() || !confDir.mkdirs()) {
+            throw new IOException("Could not create plugin directories in " + dir);
+        }
+        PluginManagerCore pluginManager = new PluginManagerCore();
+        pluginManager.loadPlugins(jarDir, confDir); // No plugins, only sets up the class loader registry
+        PluginIndexCache index = new PluginIndexCache(new File(dir, "plugin-index.json"));
+        ObjectMapper om = new ObjectMapper();
+        loaders = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            String name = "plugin" + i;
+            List<String> classes = new ArrayList<>(CLASSES_PER_PLUGIN);
+            for (int c = 0; c < CLASSES_PER_PLUGIN; c++) {
+                classes.add("bench." + name + ".Class" + c);
+            }
+            ObjectNode descriptor = om.createObjectNode();
+            descriptor.put("name", name);
+            descriptor.put("mainClass", classes.get(0));
+            if (i > 0) {
+                descriptor.putArray("required").add("plugin" + (i - 1));
+            }
+            File jar = new File(jarDir, name + ".jar");
+            BenchmarkFiles.writePluginJar(jar, om.writeValueAsString(descriptor), classes);
+            PluginClassLoader loader = new PluginClassLoader(pluginManager, om.treeToValue(descriptor, PluginDescriptor.class),
+                    jar, getClass().getClassLoader());
+            if (indexed) {
+                PluginIndexCache.Entry entry = index.get(jar);
+                loader.setIndex(entry.getClasses(), entry.getResources());
+            }
+            pluginManager.getPluginClassLoaders().put(name, loader);
+            loaders.add(loader);
+        }
+        last = loaders.get(depth - 1);
+        dependencyClass = "bench.plugin0.Class1";
+        ownClass = "bench.plugin" + (depth - 1) + ".Class2";
+        // Define the classes up front, so that lookups rather than class definition are measured
+        last.loadClass(dependencyClass);
+        last.loadClass(ownClass);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (PluginClassLoader loader : loaders) {
+            loader.close();
+        }
+        BenchmarkFiles.delete(dir);
+    }
+
+    @Benchmark
+    public Class<?> loadDependencyClass() throws ClassNotFoundException {
+        return last.loadClass(dependencyClass);
+    }
+
+    @Benchmark
+    public Class<?> loadOwnClass() throws ClassNotFoundException {
+        return last.loadClass(ownClass);
+    }
+
+    @Benchmark
+    public Class<?> loadParentClass() throws ClassNotFoundException {
+        return last.loadClass(PARENT_CLASS);
+    }
+
+    @Benchmark
+    public Object loadMissingClass() {
+        try {
+            return last.loadClass("bench.missing.Absent");
+        } catch (ClassNotFoundException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
+import edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Runs the same synthetic {@link WorkloadScenario} against each of a list of storage providers in turn and reports
+ * their throughput, tail latencies, heap usage and on-disk size side by side, e.g.
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar edu.mayo.dhs.ievaluate.benchmarks.StorageComparison \
+ *     providers=segment,memory applications=1000 history=100000 rate=200000 duration=60
+ * </pre>
+ *
+ * Providers are given as a comma separated list of:
+ * <ul>
+ *     <li>segment: {@link InMemoryStorageProvider} with its memory-mapped metric segments</li>
+ *     <li>memory: {@link InMemoryStorageProvider} holding metrics in memory only</li>
+ *     <li>the class name of any other {@link StorageProvider}, constructed from the working directory if it has a
+ *     File constructor and without arguments otherwise</li>
+ * </ul>
+ *
+ * The full results are additionally written as JSON to workload-result.json, or the file given by output=. Each
+ * provider is run in the same JVM after the previous one has been closed, so the heap figures of later providers
+ * are measured against a warmer, but collected, baseline; pass a single provider per JVM for strictly isolated runs
+ */
+public final class StorageComparison {
+    private static final ObjectMapper OM = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private StorageComparison() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0) {
+                throw new IllegalArgumentException("Invalid argument " + arg + ", expected key=value");
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        if (!RuntimeMetrics.ENABLED) {
+            throw new IllegalStateException("Latencies are recorded through runtime metrics, which are disabled by -Dievaluate.metrics.runtime=false");
+        }
+        WorkloadScenario scenario = WorkloadScenario.of(options);
+        List<WorkloadResult> results = new ArrayList<>();
+        int run = 0;
+        for (String provider : options.getOrDefault("providers", "segment,memory").split(",")) {
+            provider = provider.trim();
+            System.out.println("Running " + provider + " with " + scenario.describe());
+            results.add(new StorageWorkload(run++, provider, factory(provider), scenario).run());
+        }
+        report(results, System.out);
+        File output = new File(options.getOrDefault("output", "workload-result.json"));
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("scenario", scenario.describe());
+        json.put("results", results);
+        OM.writeValue(output, json);
+        System.out.println("Results written to " + output.getAbsolutePath());
+    }
+
+    private static StorageWorkload.ProviderFactory factory(String provider) throws ClassNotFoundException {
+        switch (provider) {
+            case "segment":
+                return dir -> inMemoryStorageProvider(dir, false);
+            case "memory":
+                return dir -> inMemoryStorageProvider(dir, true);
+            default:
+                Class<? extends StorageProvider> clazz = Class.forName(provider).asSubclass(StorageProvider.class);
+                return dir -> {
+                    try {
+                        Constructor<? extends StorageProvider> ctor = clazz.getConstructor(File.class);
+                        return ctor.newInstance(dir);
+                    } catch (NoSuchMethodException e) {
+                        return clazz.getConstructor().newInstance();
+                    }
+                };
+        }
+    }
+
+    // The provider reads its metric store setting from system properties when constructed
+    private static StorageProvider inMemoryStorageProvider(File dir, boolean inMemory) throws Exception {
+        String previousInMemory = System.setProperty("ievaluate.storage.metrics.inmemory", String.valueOf(inMemory));
+        try {
+            return new InMemoryStorageProvider(dir);
+        } finally {
+            if (previousInMemory == null) {
+                System.clearProperty("ievaluate.storage.metrics.inmemory");
+            } else {
+                System.setProperty("ievaluate.storage.metrics.inmemory", previousInMemory);
+            }
+        }
+    }
+
+
+    private static void report(List<WorkloadResult> results, PrintStream out) {
+        Set<String> queryTypes = new LinkedHashSet<>();
+        results.forEach(r -> queryTypes.addAll(r.getQueryLatency().keySet()));
+        List<String[]> rows = new ArrayList<>();
+        rows.add(row(results, "", WorkloadResult::getProvider));
+        rows.add(row(results, "preload (datapoints/s)", r -> decimal(r.getPreloadDatapoints() * 1000.0 / Math.max(1, r.getPreloadMillis()))));
+        rows.add(row(results, "writes (datapoints/s)", r -> decimal(r.getWriteThroughput())));
+        rows.add(row(results, "drain (ms)", r -> String.valueOf(r.getDrainMillis())));
+        latencyRows(rows, results, "write", WorkloadResult::getWriteLatency);
+        rows.add(row(results, "queries (/s)", r -> decimal(r.getQueryThroughput())));
+        rows.add(row(results, "datapoints read", r -> String.valueOf(r.getReadDatapoints())));
+        for (String type : queryTypes) {
+            latencyRows(rows, results, type + " query", r -> r.getQueryLatency().get(type));
+        }
+        rows.add(row(results, "skipped queries", r -> r.getSkippedQueries() == 0 ? "0"
+                : r.getSkippedQueries() + " (unsupported: " + String.join(",", r.getUnsupportedQueries()) + ")"));
+        rows.add(row(results, "errors", r -> String.valueOf(r.getErrors())));
+        rows.add(row(results, "retained heap (MiB)", r -> mebibytes(r.getRetainedHeapBytes())));
+        rows.add(row(results, "peak heap (MiB)", r -> mebibytes(r.getPeakHeapBytes())));
+        rows.add(row(results, "disk (MiB)", r -> mebibytes(r.getDiskBytes())));
+
+        int[] widths = new int[results.size() + 1];
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                widths[i] = Math.max(widths[i], row[i].length());
+            }
+        }
+        for (String[] row : rows) {
+            StringBuilder line = new StringBuilder(String.format("%-" + widths[0] + "s", row[0]));
+            for (int i = 1; i < row.length; i++) {
+                line.append("  ").append(String.format("%" + widths[i] + "s", row[i]));
+            }
+            out.println(line);
+        }
+    }
+
+    private static void latencyRows(List<String[]> rows, List<WorkloadResult> results, String name,
+                                    Function<WorkloadResult, LatencyHistogram.Snapshot> latency) {
+        rows.add(row(results, name + " p50 (us)", r -> micros(latency.apply(r), LatencyHistogram.Snapshot::getP50Nanos)));
+        rows.add(row(results, name + " p99 (us)", r -> micros(latency.apply(r), LatencyHistogram.Snapshot::getP99Nanos)));
+        rows.add(row(results, name + " p99.9 (us)", r -> micros(latency.apply(r), LatencyHistogram.Snapshot::getP999Nanos)));
+        rows.add(row(results, name + " max (us)", r -> micros(latency.apply(r), LatencyHistogram.Snapshot::getMaxNanos)));
+    }
+
+    private static String[] row(List<WorkloadResult> results, String name, Function<WorkloadResult, String> value) {
+        String[] ret = new String[results.size() + 1];
+        ret[0] = name;
+        for (int i = 0; i < results.size(); i++) {
+            ret[i + 1] = value.apply(results.get(i));
+        }
+        return ret;
+    }
+
+    private static String micros(LatencyHistogram.Snapshot snapshot, Function<LatencyHistogram.Snapshot, Long> nanos) {
+        return snapshot == null || snapshot.getCount() == 0 ? "-" : decimal(nanos.apply(snapshot) / 1000.0);
+    }
+
+    private static String mebibytes(long bytes) {
+        return decimal(bytes / (1024.0 * 1024.0));
+    }
+
+    private static String decimal(double value) {
+        return String.format("%.1f", value);
+    }
+}
@@ -0,0 +1,273 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
+import edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives one {@link StorageProvider} through a {@link WorkloadScenario}: the history of every series is written
+ * first, then writers and readers run concurrently for the scenario's duration.
+ *
+ * Writers and readers run open loop when a rate is given, each operation being due at a fixed interval after the
+ * previous one regardless of how long that took, and latencies are measured from when an operation was due rather
+ * than when it was issued so that a stalled provider is charged for the operations queued behind the stall. Writes of
+ * every provider are measured until saveMetrics returns.
+ *
+ * RECENT queries need a time-ranged read, which the {@link StorageProvider} interface lacks; they are only issued
+ * against {@link InMemoryStorageProvider}. For other providers they are counted as skipped and reported as unsupported
+ * rather than measured as some other query type.
+ */
+final class StorageWorkload {
+    /**
+     * Creates a provider in the supplied (empty) working directory
+     */
+    interface ProviderFactory {
+        StorageProvider create(File workingDirectory) throws Exception;
+    }
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    // The core's logger, though no server is running to provide it
+    private static final Logger LOGGER = LogManager.getLogger("Integrated Evaluation Framework");
+
+    private final String provider;
+    private final ProviderFactory factory;
+    private final WorkloadScenario scenario;
+    private final String metricPrefix;
+
+    private SyntheticWorkload workload;
+    private StorageProvider storage;
+    private volatile long deadline;
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong read = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private LatencyHistogram writeLatency;
+    private final Map<WorkloadScenario.QueryType, LatencyHistogram> queryLatency = new EnumMap<>(WorkloadScenario.QueryType.class);
+
+    /**
+     * @param run Distinguishes the runtime metrics of this run from those of earlier runs of the same provider
+     */
+    StorageWorkload(int run, String provider, ProviderFactory factory, WorkloadScenario scenario) {
+        this.provider = provider;
+        this.factory = factory;
+        this.scenario = scenario;
+        this.metricPrefix = "workload." + run + "." + provider + ".";
+    }
+
+    WorkloadResult run() throws Exception {
+        WorkloadResult ret = new WorkloadResult();
+        ret.provider = provider;
+        File dir = BenchmarkFiles.createTempDirectory("workload");
+        try {
+            long baselineHeap = retainedHeap();
+            workload = new SyntheticWorkload(scenario);
+            storage = factory.create(dir);
+            try {
+                long start = System.nanoTime();
+                ret.preloadDatapoints = preload();
+                ret.preloadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                writeLatency = RuntimeMetrics.histogram(metricPrefix + "write");
+                ret.unsupportedQueries = new ArrayList<>();
+                for (WorkloadScenario.QueryType type : scenario.queryMix.keySet()) {
+                    if (supports(type)) {
+                        queryLatency.put(type, RuntimeMetrics.histogram(metricPrefix + "query." + type.name().toLowerCase()));
+                    } else {
+                        ret.unsupportedQueries.add(type.name().toLowerCase());
+                    }
+                }
+                measure(ret);
+
+                ret.errors = errors.get();
+                ret.skippedQueries = skipped.get();
+                ret.writeLatency = writeLatency.snapshot();
+                ret.queryLatency = new LinkedHashMap<>();
+                queryLatency.forEach((type, histogram) -> ret.queryLatency.put(type.name().toLowerCase(), histogram.snapshot()));
+                ret.peakHeapBytes = peakHeap.get();
+                ret.retainedHeapBytes = Math.max(0, retainedHeap() - baselineHeap);
+                ret.diskBytes = BenchmarkFiles.size(dir);
+            } finally {
+                if (storage instanceof Closeable) {
+                    ((Closeable) storage).close();
+                }
+                storage = null;
+                workload = null;
+            }
+        } finally {
+            BenchmarkFiles.delete(dir);
+        }
+        return ret;
+    }
+
+    // Writes the history of every series as fast as the provider allows, then waits for it to be written
+    private long preload() throws Exception {
+        long ret = 0;
+        Random random = new Random(scenario.seed);
+        int batches = (scenario.history + scenario.batchSize - 1) / scenario.batchSize;
+        for (int b = 0; b < batches; b++) {
+            int size = Math.min(scenario.batchSize, scenario.history - b * scenario.batchSize);
+            for (int s = 0; s < workload.seriesCount(); s++) {
+                SyntheticWorkload.Series series = workload.series(s);
+                storage.saveMetrics(series.application, series.task, series.nextBatch(size, random));
+                ret += size;
+            }
+        }
+        flush();
+        return ret;
+    }
+
+    private void measure(WorkloadResult result) throws Exception {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IEvaluate-Workload-Heap-Sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(MEMORY.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 50, TimeUnit.MILLISECONDS);
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(scenario.durationSeconds);
+        for (int i = 0; i < scenario.writers; i++) {
+            int writer = i;
+            threads.add(start("IEvaluate-Workload-Writer-" + i, () -> write(writer, start)));
+        }
+        for (int i = 0; i < scenario.readers; i++) {
+            int reader = i;
+            threads.add(start("IEvaluate-Workload-Reader-" + i, () -> query(reader, start)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long end = System.nanoTime();
+        try {
+            flush();
+        } finally {
+            sampler.shutdownNow();
+        }
+        long drained = System.nanoTime();
+        result.writes = writes.get();
+        result.writtenDatapoints = written.get();
+        result.writeMillis = TimeUnit.NANOSECONDS.toMillis(drained - start);
+        result.drainMillis = TimeUnit.NANOSECONDS.toMillis(drained - end);
+        result.queries = queries.get();
+        result.readDatapoints = read.get();
+        result.queryMillis = TimeUnit.NANOSECONDS.toMillis(end - start);
+    }
+
+    // Each writer owns every writers-th series, so that series are written in time order, and visits them in turn
+    private void write(int writer, long start) {
+        Random random = new Random(scenario.seed + writer);
+        long interval = scenario.rate == 0 ? 0
+                : TimeUnit.SECONDS.toNanos(1) * scenario.batchSize * scenario.writers / scenario.rate;
+        long due = start;
+        int s = writer;
+        while (s < workload.seriesCount() && (due = next(due, interval)) < deadline) {
+            SyntheticWorkload.Series series = workload.series(s);
+            s = s + scenario.writers < workload.seriesCount() ? s + scenario.writers : writer;
+            List<MetricDatapoint> batch = series.nextBatch(scenario.batchSize, random);
+            try {
+                storage.saveMetrics(series.application, series.task, batch);
+                writeLatency.recordSince(due);
+                writes.incrementAndGet();
+                written.addAndGet(batch.size());
+            } catch (RuntimeException e) {
+                failed("write", e);
+            }
+        }
+    }
+
+    private void query(int reader, long start) {
+        Random random = new Random(scenario.seed + 1000 + reader);
+        long interval = scenario.queryRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) * scenario.readers / scenario.queryRate;
+        long due = start;
+        while ((due = next(due, interval)) < deadline) {
+            SyntheticWorkload.Series series = workload.randomSeries(random);
+            String metric = workload.randomMetric(random);
+            WorkloadScenario.QueryType type = workload.randomQuery(random);
+            if (!queryLatency.containsKey(type)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            try {
+                List<MetricDatapoint> ret;
+                if (type == WorkloadScenario.QueryType.ALL) {
+                    ret = storage.getMetrics(series.application, metric, series.task, series.versions());
+                } else if (type == WorkloadScenario.QueryType.RECENT) {
+                    long from = series.nextTime() - scenario.batchSize * WorkloadScenario.INTERVAL_MILLIS;
+                    ret = ((InMemoryStorageProvider) storage).getMetrics(series.application, metric, series.task,
+                            null, new Date(from), null);
+                } else {
+                    ret = storage.getMetrics(series.application, metric, series.task,
+                            Collections.singletonList(series.currentVersion()));
+                }
+                queryLatency.get(type).recordSince(due);
+                queries.incrementAndGet();
+                read.addAndGet(ret.size());
+            } catch (RuntimeException e) {
+                failed("query", e);
+            }
+        }
+    }
+
+    private boolean supports(WorkloadScenario.QueryType type) {
+        return type != WorkloadScenario.QueryType.RECENT || storage instanceof InMemoryStorageProvider;
+    }
+
+    private void flush() throws Exception {
+        if (storage instanceof InMemoryStorageProvider) {
+            ((InMemoryStorageProvider) storage).flushMetrics();
+        }
+    }
+
+    private void failed(String operation, Throwable t) {
+        if (errors.incrementAndGet() == 1) {
+            LOGGER.error("First " + operation + " failure against " + provider + ", further failures are only counted", t);
+        }
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread ret = new Thread(task, name);
+        ret.setDaemon(true);
+        ret.start();
+        return ret;
+    }
+
+    // When the next operation is due, sleeping until then unless it falls after the deadline
+    private long next(long previous, long interval) {
+        if (interval == 0) {
+            return System.nanoTime();
+        }
+        long due = previous + interval;
+        long remaining;
+        while (due < deadline && (remaining = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+        return due;
+    }
+
+    private static long retainedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,182 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.api.models.tasks.ApplicationTask;
+
+import java.util.*;
+
+/**
+ * The synthetic applications, tasks and series of a {@link WorkloadScenario}, and the datapoint batches and queries
+ * issued against them.
+ *
+ * Each application task is one series, written by a single writer in time order at one datapoint per second of
+ * measured time, cycling through the metric names. A series moves to a new version every {@link
+ * WorkloadScenario#churn} batches, so that long histories span many versions
+ */
+final class SyntheticWorkload {
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private final WorkloadScenario scenario;
+    private final Series[] series;
+    private final String[] metricNames;
+    private final WorkloadScenario.QueryType[] queryTypes;
+    private final int[] queryWeights;
+    private final int totalQueryWeight;
+
+    SyntheticWorkload(WorkloadScenario scenario) {
+        this.scenario = scenario;
+        this.metricNames = new String[scenario.metrics];
+        for (int i = 0; i < metricNames.length; i++) {
+            metricNames[i] = "metric-" + i;
+        }
+        Random random = new Random(scenario.seed);
+        // Histories end where measurement starts, with each series' write position staggered like independent sources
+        long start = System.currentTimeMillis() - (long) scenario.history * WorkloadScenario.INTERVAL_MILLIS;
+        this.series = new Series[scenario.seriesCount()];
+        for (int a = 0; a < scenario.applications; a++) {
+            SyntheticApplication application = new SyntheticApplication(new UUID(scenario.seed, a), "application-" + a);
+            for (int t = 0; t < scenario.tasks; t++) {
+                series[a * scenario.tasks + t] = new Series(application, new SyntheticTask("task-" + t),
+                        start - random.nextInt(1000), 100 + random.nextInt(900));
+            }
+        }
+        this.queryTypes = scenario.queryMix.keySet().toArray(new WorkloadScenario.QueryType[0]);
+        this.queryWeights = new int[queryTypes.length];
+        int total = 0;
+        for (int i = 0; i < queryTypes.length; i++) {
+            total += scenario.queryMix.get(queryTypes[i]);
+            queryWeights[i] = total;
+        }
+        this.totalQueryWeight = total;
+    }
+
+    int seriesCount() {
+        return series.length;
+    }
+
+    Series series(int index) {
+        return series[index];
+    }
+
+    Series randomSeries(Random random) {
+        return series[random.nextInt(series.length)];
+    }
+
+    String randomMetric(Random random) {
+        return metricNames[random.nextInt(metricNames.length)];
+    }
+
+    WorkloadScenario.QueryType randomQuery(Random random) {
+        int pick = random.nextInt(totalQueryWeight);
+        for (int i = 0; i < queryWeights.length; i++) {
+            if (pick < queryWeights[i]) {
+                return queryTypes[i];
+            }
+        }
+        return queryTypes[queryTypes.length - 1];
+    }
+
+    /**
+     * A series is only written by one thread at a time, but its position may be read concurrently by queries
+     */
+    final class Series {
+        final ProfiledApplication application;
+        final ApplicationTask task;
+        private final double mean;
+        private volatile long nextTime;
+        private volatile int version;
+        private int batches;
+
+        private Series(ProfiledApplication application, ApplicationTask task, long start, double mean) {
+            this.application = application;
+            this.task = task;
+            this.nextTime = start;
+            this.mean = mean;
+        }
+
+        /**
+         * @return The next batch of datapoints of this series, advancing its position and possibly its version
+         */
+        List<MetricDatapoint> nextBatch(int size, Random random) {
+            List<MetricDatapoint> ret = new ArrayList<>(size);
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("version", versionName(version));
+            long time = nextTime;
+            // Datapoints are built the way the storage provider decodes them, through their bean properties
+            for (int i = 0; i < size; i++) {
+                properties.put("metricName", metricNames[(int) (time / WorkloadScenario.INTERVAL_MILLIS % metricNames.length)]);
+                properties.put("measuredTime", time);
+                properties.put("value", mean + random.nextGaussian() * mean / 10);
+                ret.add(OM.convertValue(properties, MetricDatapoint.class));
+                time += WorkloadScenario.INTERVAL_MILLIS;
+            }
+            nextTime = time;
+            if (scenario.churn > 0 && ++batches % scenario.churn == 0) {
+                version++;
+            }
+            return ret;
+        }
+
+        /**
+         * @return The measured time of the next datapoint to be written
+         */
+        long nextTime() {
+            return nextTime;
+        }
+
+        String currentVersion() {
+            return versionName(version);
+        }
+
+        /**
+         * @return Every version written to this series so far
+         */
+        List<String> versions() {
+            int current = version;
+            List<String> ret = new ArrayList<>(current + 1);
+            for (int i = 0; i <= current; i++) {
+                ret.add(versionName(i));
+            }
+            return ret;
+        }
+
+        private String versionName(int version) {
+            return "1." + version;
+        }
+    }
+
+    private static final class SyntheticApplication extends ProfiledApplication {
+        private final UUID id;
+        private final String name;
+
+        private SyntheticApplication(UUID id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public UUID getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class SyntheticTask extends ApplicationTask {
+        private final String name;
+
+        private SyntheticTask(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The measurements of one {@link StorageWorkload} run, serialized as-is into the comparison report
+ */
+final class WorkloadResult {
+    String provider;
+    long preloadDatapoints;
+    long preloadMillis;
+    long writes;
+    long writtenDatapoints;
+    long writeMillis;
+    long drainMillis;
+    long queries;
+    long readDatapoints;
+    long queryMillis;
+    long errors;
+    long skippedQueries;
+    List<String> unsupportedQueries;
+    LatencyHistogram.Snapshot writeLatency;
+    Map<String, LatencyHistogram.Snapshot> queryLatency;
+    long retainedHeapBytes;
+    long peakHeapBytes;
+    long diskBytes;
+
+    public String getProvider() {
+        return provider;
+    }
+
+    public long getPreloadDatapoints() {
+        return preloadDatapoints;
+    }
+
+    /**
+     * @return The time to write and flush the history, before measurement
+     */
+    public long getPreloadMillis() {
+        return preloadMillis;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getWrittenDatapoints() {
+        return writtenDatapoints;
+    }
+
+    /**
+     * @return The measured duration plus the time to flush the writes still queued at its end
+     */
+    public long getWriteMillis() {
+        return writeMillis;
+    }
+
+    public long getDrainMillis() {
+        return drainMillis;
+    }
+
+    public double getWriteThroughput() {
+        return perSecond(writtenDatapoints, writeMillis);
+    }
+
+    public long getQueries() {
+        return queries;
+    }
+
+    public long getReadDatapoints() {
+        return readDatapoints;
+    }
+
+    public long getQueryMillis() {
+        return queryMillis;
+    }
+
+    public double getQueryThroughput() {
+        return perSecond(queries, queryMillis);
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return Queries of unsupported types drawn from the query mix, and not issued
+     */
+    public long getSkippedQueries() {
+        return skippedQueries;
+    }
+
+    /**
+     * @return The query types the provider cannot answer, which are not issued or measured
+     */
+    public List<String> getUnsupportedQueries() {
+        return unsupportedQueries;
+    }
+
+    /**
+     * @return The time from when each write was due until saveMetrics returned
+     */
+    public LatencyHistogram.Snapshot getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return The time from when each query was due until it returned, by query type
+     */
+    public Map<String, LatencyHistogram.Snapshot> getQueryLatency() {
+        return queryLatency;
+    }
+
+    /**
+     * @return The heap retained after a full GC once the workload completes, less that retained before the provider
+     * was created
+     */
+    public long getRetainedHeapBytes() {
+        return retainedHeapBytes;
+    }
+
+    /**
+     * @return The highest heap usage sampled during the measured run, including garbage
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * @return The length of all files in the provider's working directory once the workload completes
+     */
+    public long getDiskBytes() {
+        return diskBytes;
+    }
+
+    private static double perSecond(long count, long millis) {
+        return millis == 0 ? 0 : count * 1000.0 / millis;
+    }
+}
@@ -0,0 +1,149 @@
+package edu.mayo.dhs.ievaluate.benchmarks;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The shape of a synthetic storage workload, parsed from key=value arguments. Every provider being compared is driven
+ * through the same scenario, and the same seed yields the same applications, datapoints and query sequence.
+ *
+ * <pre>
+ * applications=100        synthetic applications
+ * tasks=4                 tasks per application
+ * metrics=4               metric names per task
+ * history=10000           datapoints per series written before measurement starts
+ * duration=30             measured seconds
+ * rate=0                  datapoints per second across all writers, 0 for as fast as possible
+ * batch=100               datapoints per saveMetrics call
+ * writers=2               writer threads
+ * churn=1000              batches per series between new versions, 0 for a single version
+ * queryRate=50            queries per second across all readers, 0 for as fast as possible
+ * readers=1               reader threads, 0 for a write-only workload
+ * queryMix=latest:60,recent:30,all:10
+ * seed=42
+ * </pre>
+ *
+ * A "latest" query reads one metric of the current version of a series, "recent" reads the last batch worth of it
+ * through the time range overload of {@link edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider}, and "all"
+ * reads every version of it. Other providers have no time-ranged read, so "recent" queries are skipped for them and
+ * reported as unsupported.
+ */
+final class WorkloadScenario {
+    enum QueryType {
+        LATEST, RECENT, ALL
+    }
+
+    static final long INTERVAL_MILLIS = 1000;
+
+    final int applications;
+    final int tasks;
+    final int metrics;
+    final int history;
+    final int durationSeconds;
+    final long rate;
+    final int batchSize;
+    final int writers;
+    final int churn;
+    final long queryRate;
+    final int readers;
+    final Map<QueryType, Integer> queryMix;
+    final long seed;
+
+    private WorkloadScenario(Map<String, String> options) {
+        this.applications = positive(options, "applications", 100);
+        this.tasks = positive(options, "tasks", 4);
+        this.metrics = positive(options, "metrics", 4);
+        this.history = (int) nonNegative(options, "history", 10000);
+        this.durationSeconds = positive(options, "duration", 30);
+        this.rate = nonNegative(options, "rate", 0);
+        this.batchSize = positive(options, "batch", 100);
+        this.writers = positive(options, "writers", 2);
+        this.churn = (int) nonNegative(options, "churn", 1000);
+        this.queryRate = nonNegative(options, "queryRate", 50);
+        this.readers = (int) nonNegative(options, "readers", 1);
+        this.queryMix = parseMix(options.getOrDefault("queryMix", "latest:60,recent:30,all:10"));
+        this.seed = Long.parseLong(options.getOrDefault("seed", "42"));
+    }
+
+    /**
+     * @param options The scenario options, unknown options are ignored so that callers may share the argument list
+     */
+    static WorkloadScenario of(Map<String, String> options) {
+        return new WorkloadScenario(options);
+    }
+
+    int seriesCount() {
+        return applications * tasks;
+    }
+
+    Map<String, Object> describe() {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("applications", applications);
+        ret.put("tasks", tasks);
+        ret.put("metrics", metrics);
+        ret.put("history", history);
+        ret.put("duration", durationSeconds);
+        ret.put("rate", rate);
+        ret.put("batch", batchSize);
+        ret.put("writers", writers);
+        ret.put("churn", churn);
+        ret.put("queryRate", queryRate);
+        ret.put("readers", readers);
+        Map<String, Integer> mix = new LinkedHashMap<>();
+        queryMix.forEach((type, weight) -> mix.put(type.name().toLowerCase(), weight));
+        ret.put("queryMix", mix);
+        ret.put("seed", seed);
+        return ret;
+    }
+
+    private static int positive(Map<String, String> options, String key, int def) {
+        int ret = (int) nonNegative(options, key, def);
+        if (ret == 0) {
+            throw new IllegalArgumentException(key + " must be positive");
+        }
+        return ret;
+    }
+
+    private static long nonNegative(Map<String, String> options, String key, long def) {
+        String value = options.get(key);
+        if (value == null) {
+            return def;
+        }
+        long ret;
+        try {
+            ret = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + key + " " + value);
+        }
+        if (ret < 0) {
+            throw new IllegalArgumentException(key + " must not be negative");
+        }
+        return ret;
+    }
+
+    private static Map<QueryType, Integer> parseMix(String mix) {
+        Map<QueryType, Integer> ret = new EnumMap<>(QueryType.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid query mix entry " + entry + ", expected type:weight");
+            }
+            QueryType type;
+            try {
+                type = QueryType.valueOf(parts[0].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown query type " + parts[0] + ", expected latest, recent or all");
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) {
+                ret.put(type, weight);
+            }
+        }
+        if (ret.isEmpty()) {
+            throw new IllegalArgumentException("The query mix must contain a positive weight");
+        }
+        return Collections.unmodifiableMap(ret);
+    }
+}
@@ -10,42 +10,163 @@ import edu.mayo.dhs.ievaluate.api.plugins.PluginManager;
 import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
 import edu.mayo.dhs.ievaluate.core.applications.ApplicationManagerCore;
 import edu.mayo.dhs.ievaluate.core.assertions.AssertionDefinitionManager;
+import edu.mayo.dhs.ievaluate.core.assertions.AssertionResultCache;
+import edu.mayo.dhs.ievaluate.core.assertions.BatchAssertionEvaluator;
+import edu.mayo.dhs.ievaluate.core.jobs.JobMetricPublisher;
+import edu.mayo.dhs.ievaluate.core.jobs.JobScheduler;
+import edu.mayo.dhs.ievaluate.core.jobs.JobStatusPoller;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
 import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginReloadListener;
+import edu.mayo.dhs.ievaluate.core.startup.ClassDataSharing;
+import edu.mayo.dhs.ievaluate.core.startup.StartupProfiler;
 import edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.management.JMException;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * Unless -Dievaluate.startup.profile=false is supplied, the time taken by each startup phase, plugin step and storage
+ * load is recorded (see {@link #getStartupProfile()}) and written to startup-profile.json in the working directory
+ */
 public class IEvaluateCore implements IEvaluateServer {
 
     private InitState state;
     private Logger logger;
     private File workingDir;
 
-    private StorageProvider storage;
+    private volatile StorageProvider storage;
+    // Guarded by this, the provider of a plugin being reloaded, which its replacement may re-register
+    private StorageProvider replacedStorage;
 
     private ApplicationManagerCore applicationManager;
     private PluginManagerCore pluginManager;
 
     private AssertionDefinitionManager assertionDefinitionsManager;
+    private BatchAssertionEvaluator batchAssertionEvaluator;
+    private AssertionResultCache assertionResultCache;
+    private JobStatusPoller jobStatusPoller;
+    private JobScheduler jobScheduler;
+    private JobMetricPublisher jobMetricPublisher;
 
+    private boolean shutdown;
+    private long startupMillis;
+    private final StartupProfiler profiler = Boolean.parseBoolean(System.getProperty("ievaluate.startup.profile", "true"))
+            ? new StartupProfiler() : StartupProfiler.NONE;
+    private StartupProfiler.Span phase;
 
     public IEvaluateCore(File workingDir) {
-        this.state = InitState.PRE_INIT;
+        enterState(InitState.PRE_INIT);
         this.workingDir = workingDir;
         preInit();
-        this.state = InitState.INIT;
+        enterState(InitState.INIT);
         this.pluginManager.initializePlugins();
-        this.state = InitState.PRE_ENABLE;
+        enterState(InitState.PRE_ENABLE);
         preEnable();
-        this.state = InitState.ENABLING;
+        enterState(InitState.ENABLING);
         this.pluginManager.enablePlugins();
-        this.state = InitState.POST_ENABLE;
+        enterState(InitState.POST_ENABLE);
         postEnable();
-        this.state = InitState.COMPLETE;
+        enterState(InitState.COMPLETE);
+        this.startupMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "IEvaluate-Shutdown"));
+        this.profiler.finish(this.startupMillis);
+        if (this.profiler.isEnabled()) {
+            File report = new File(workingDir, "startup-profile.json");
+            try {
+                this.profiler.writeReport(report);
+                this.logger.info("Started in " + this.startupMillis + "ms, startup profile written to " + report);
+            } catch (IOException e) {
+                this.logger.warn("Could not write startup profile " + report, e);
+            }
+        }
+        ClassDataSharing.check(workingDir, this.startupMillis);
+    }
+
+    // Also times each phase
+    private void enterState(InitState state) {
+        if (this.phase != null) {
+            this.phase.close();
+        }
+        this.state = state;
+        this.phase = state == InitState.COMPLETE ? null : this.profiler.start("phase", state.name(), null);
+    }
+
+    /**
+     * @return The time taken by each startup phase, plugin step and storage load
+     */
+    public StartupProfiler getStartupProfile() {
+        return this.profiler;
+    }
+
+    /**
+     * @return The time from JVM start until startup completed, in milliseconds
+     */
+    public long getStartupMillis() {
+        return this.startupMillis;
+    }
+
+    /**
+     * Persists all pending application changes and closes the storage provider. Invoked automatically on JVM shutdown,
+     * subsequent invocations have no effect.
+     */
+    public synchronized void shutdown() {
+        if (this.shutdown) {
+            return;
+        }
+        this.shutdown = true;
+        try {
+            this.applicationManager.close();
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure persisting pending application changes on shutdown", t);
+        }
+        if (this.jobScheduler != null) {
+            try {
+                this.jobScheduler.close();
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure closing job scheduler on shutdown", t);
+            }
+        }
+        if (this.jobMetricPublisher != null) {
+            try {
+                this.jobMetricPublisher.close();
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure writing pending job metrics on shutdown", t);
+            }
+        }
+        if (this.jobStatusPoller != null) {
+            try {
+                this.jobStatusPoller.close();
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure closing job status poller on shutdown", t);
+            }
+        }
+        try {
+            this.assertionResultCache.close();
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure closing assertion result cache on shutdown", t);
+        }
+        if (this.storage instanceof Closeable) {
+            try {
+                ((Closeable) this.storage).close();
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure closing storage provider on shutdown", t);
+            }
+        }
+        try {
+            RuntimeMetrics.unregisterMBean();
+        } catch (JMException | RuntimeException e) {
+            IEvaluate.getLogger().debug("Could not unregister runtime metrics MBean", e);
+        }
     }
 
     private void preInit() {
@@ -59,9 +180,17 @@ public class IEvaluateCore implements IEvaluateServer {
             System.exit(-1); // Fatal exit
         }
         // Initialize managers
-        this.pluginManager = new PluginManagerCore();
-        this.applicationManager = new ApplicationManagerCore();
+        this.pluginManager = new PluginManagerCore(this.profiler);
+        this.applicationManager = new ApplicationManagerCore(this.profiler);
         this.assertionDefinitionsManager = new AssertionDefinitionManager();
+        this.batchAssertionEvaluator = new BatchAssertionEvaluator(this.assertionDefinitionsManager);
+        this.assertionResultCache = createAssertionResultCache();
+        this.pluginManager.addReloadListener(this.applicationManager);
+        this.pluginManager.addReloadListener(this.assertionDefinitionsManager);
+        this.pluginManager.addReloadListener(this.assertionResultCache);
+        this.pluginManager.addReloadListener(new StorageReloadListener());
+        this.applicationManager.addRegistrationListener(this.assertionResultCache);
+        registerRuntimeMetrics();
         // Load all plugins
         File pluginDir = new File(workingDir, "plugins");
         if (!pluginDir.isDirectory() || (!pluginDir.exists() && !pluginDir.mkdirs())) {
@@ -81,12 +210,40 @@ public class IEvaluateCore implements IEvaluateServer {
         this.pluginManager.loadPlugins(jarDir, confDir);
     }
 
+    // Gauges of server state, and the JMX MBean exposing all runtime metrics
+    private void registerRuntimeMetrics() {
+        RuntimeMetrics.gauge("applications.registered", () -> this.applicationManager.getRegisteredApplications().size());
+        RuntimeMetrics.gauge("assertions.cache.size", () -> this.assertionResultCache.getStats().getSize());
+        RuntimeMetrics.gauge("jobs.queued", () -> this.jobScheduler == null ? 0
+                : this.jobScheduler.getStats().values().stream().mapToLong(JobScheduler.Stats::getQueued).sum());
+        RuntimeMetrics.gauge("jobs.running", () -> this.jobScheduler == null ? 0
+                : this.jobScheduler.getStats().values().stream().mapToLong(JobScheduler.Stats::getRunning).sum());
+        RuntimeMetrics.gauge("jobs.polled", () -> this.jobStatusPoller == null ? 0 : this.jobStatusPoller.getTrackedJobCount());
+        try {
+            RuntimeMetrics.registerMBean();
+        } catch (JMException | RuntimeException e) {
+            IEvaluate.getLogger().warn("Could not expose runtime metrics over JMX", e);
+        }
+    }
+
+    // Sized by -Dievaluate.assertions.cache.size (entries, default 10000), spilling evicted outputs to
+    // cache/assertion-results.spill if -Dievaluate.assertions.cache.spill gives a maximum spill file size in MB
+    private AssertionResultCache createAssertionResultCache() {
+        int size = Integer.getInteger("ievaluate.assertions.cache.size", 10000);
+        long spillMB = Long.getLong("ievaluate.assertions.cache.spill", 0);
+        File cacheDir = new File(workingDir, "cache");
+        if (spillMB <= 0 || (!cacheDir.isDirectory() && !cacheDir.mkdirs())) {
+            return new AssertionResultCache(size);
+        }
+        return new AssertionResultCache(size, new File(cacheDir, "assertion-results.spill"), spillMB * 1024 * 1024);
+    }
+
     // Mostly just verifies items are in correct state (loading defaults if not)
     // and prevents late-binding by activating protective locks
     private void preEnable() {
         if (this.storage == null) {
             IEvaluate.getLogger().warn("No Storage Provider Supplied in onInit(), defaulting to JSON/in memory storage");
-            try {
+            try (StartupProfiler.Span ignored = this.profiler.start("storage", InMemoryStorageProvider.class.getName(), "load")) {
                 IEvaluate.getServer().registerStorageProvider(new InMemoryStorageProvider(workingDir));
             } catch (IOException e) {
                 IEvaluate.getLogger().fatal("Could not instantiate in memory storage fallback, " +
@@ -121,15 +278,92 @@ public class IEvaluateCore implements IEvaluateServer {
         return this.storage;
     }
 
+    /**
+     * Registers the storage provider, which may only be done once unless the plugin providing it is reloaded, in which
+     * case the reloaded plugin may register its replacement. The replaced provider is closed once pending job metrics
+     * were written to it.
+     */
     @Override
     public void registerStorageProvider(StorageProvider provider) {
-        if (this.storage == null) {
+        StorageProvider replaced;
+        JobMetricPublisher publisher;
+        synchronized (this) {
+            if (this.storage != null && this.storage != this.replacedStorage) {
+                String errMsg = "Attempted to re-register a storage provider after one is already registered!";
+                this.logger.error(errMsg);
+                throw new IllegalStateException(errMsg);
+            }
+            replaced = this.storage;
             this.storage = provider;
-            this.logger.info("Registered Storage Provider: " + provider.getClass().getName());
-        } else {
-            String errMsg = "Attempted to re-register a storage provider after one is already registered!";
-            this.logger.error(errMsg);
-            throw new IllegalStateException(errMsg);
+            this.replacedStorage = null;
+            publisher = this.jobMetricPublisher;
+            if (publisher != null) {
+                publisher.setStorage(provider);
+            }
+        }
+        this.logger.info("Registered Storage Provider: " + provider.getClass().getName());
+        if (replaced != null) {
+            retireStorage(replaced, publisher);
+        }
+    }
+
+    // Waits for writes still in flight against the replaced provider before closing it
+    private void retireStorage(StorageProvider replaced, JobMetricPublisher publisher) {
+        if (publisher != null) {
+            try {
+                publisher.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (replaced instanceof Closeable) {
+            try {
+                ((Closeable) replaced).close();
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure closing replaced storage provider " + replaced.getClass().getName(), t);
+            }
+        }
+    }
+
+    /**
+     * Allows the replacement of a reloaded plugin providing the storage provider to register its own, falling back to
+     * in memory storage if it does not
+     */
+    private class StorageReloadListener implements PluginReloadListener {
+        @Override
+        public void pluginsUnloading(Set<ClassLoader> unloading) {
+            StorageProvider current = storage;
+            if (current == null || !unloading.contains(current.getClass().getClassLoader())) {
+                return;
+            }
+            JobMetricPublisher publisher;
+            synchronized (IEvaluateCore.this) {
+                replacedStorage = current;
+                publisher = jobMetricPublisher;
+            }
+            if (publisher != null) {
+                try {
+                    publisher.flush(); // Written while the old provider is still open
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void pluginsReloaded(Set<ClassLoader> reloaded) {
+            synchronized (IEvaluateCore.this) {
+                if (replacedStorage == null) {
+                    return;
+                }
+            }
+            IEvaluate.getLogger().error("The reloaded plugin did not register a storage provider in place of "
+                    + storage.getClass().getName() + ", defaulting to JSON/in memory storage");
+            try {
+                registerStorageProvider(new InMemoryStorageProvider(workingDir));
+            } catch (IOException e) {
+                IEvaluate.getLogger().fatal("Could not instantiate in memory storage fallback", e);
+            }
         }
     }
 
@@ -165,12 +399,95 @@ public class IEvaluateCore implements IEvaluateServer {
         }
     }
 
+    /**
+     * @return Memoizes assertion outputs per definition, input parameters and application version
+     */
+    public AssertionResultCache getAssertionResultCache() {
+        return this.assertionResultCache;
+    }
+
+    /**
+     * @return Polls the status of RESTful application jobs, created on first use
+     */
+    public synchronized JobStatusPoller getJobStatusPoller() {
+        if (this.jobStatusPoller == null) {
+            if (this.shutdown) {
+                throw new IllegalStateException("Server is shut down");
+            }
+            this.jobStatusPoller = new JobStatusPoller();
+        }
+        return this.jobStatusPoller;
+    }
+
+    /**
+     * @return Runs application jobs with per-application concurrency limits, created on first use
+     */
+    public synchronized JobScheduler getJobScheduler() {
+        if (this.jobScheduler == null) {
+            if (this.shutdown) {
+                throw new IllegalStateException("Server is shut down");
+            }
+            this.jobScheduler = new JobScheduler();
+        }
+        return this.jobScheduler;
+    }
+
+    /**
+     * @return Writes the metrics of completed jobs to the storage provider in batches, created on first use
+     */
+    public synchronized JobMetricPublisher getJobMetricPublisher() {
+        if (this.jobMetricPublisher == null) {
+            if (this.shutdown) {
+                throw new IllegalStateException("Server is shut down");
+            }
+            this.jobMetricPublisher = new JobMetricPublisher(this.storage);
+        }
+        return this.jobMetricPublisher;
+    }
+
+    /**
+     * @return Evaluates assertions for many inputs concurrently, on the common fork-join pool
+     */
+    public BatchAssertionEvaluator getBatchAssertionEvaluator() {
+        return this.batchAssertionEvaluator;
+    }
+
     @Override
     public InitState getInitializationState() {
         return this.state;
     }
 
+    /**
+     * Usage: IEvaluateCore &lt;working directory&gt; [--cds-train]
+     * <br>
+     * With --cds-train, a class data sharing archive is created for subsequent launches instead of starting the server,
+     * see {@link ClassDataSharing}
+     */
     public static void main(String... args) {
-
+        if (args.length < 1) {
+            System.err.println("Usage: IEvaluateCore <working directory> [" + ClassDataSharing.TRAIN_ARGUMENT + "]");
+            System.exit(-1);
+        }
+        File workingDir = new File(args[0]);
+        List<String> options = Arrays.asList(args).subList(1, args.length);
+        if (options.contains(ClassDataSharing.TRAIN_ARGUMENT)) {
+            try {
+                System.exit(ClassDataSharing.train(workingDir) ? 0 : -1);
+            } catch (IOException | InterruptedException e) {
+                LogManager.getLogger("Integrated Evaluation Framework").fatal("Class data sharing training run failed", e);
+                System.exit(-1);
+            }
+        }
+        IEvaluateCore core = new IEvaluateCore(workingDir);
+        try {
+            if (ClassDataSharing.reportStartup(options, core.getStartupMillis())) { // Training runs
+                core.shutdown();
+                System.exit(0);
+            }
+        } catch (IOException e) {
+            LogManager.getLogger("Integrated Evaluation Framework").fatal("Could not report startup time to the training run", e);
+            core.shutdown();
+            System.exit(-1);
+        }
     }
 }
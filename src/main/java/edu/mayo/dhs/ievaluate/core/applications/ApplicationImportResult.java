@@ -0,0 +1,158 @@
+package edu.mayo.dhs.ievaluate.core.applications;
+
+import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The outcome of a bulk application registration or import: whether each item was registered, and if not why it was
+ * rejected
+ */
+public final class ApplicationImportResult {
+    private final List<Outcome> outcomes;
+    private final List<ProfiledApplication> registered;
+    private final List<Outcome> failures;
+
+    ApplicationImportResult(List<Outcome> outcomes) {
+        this.outcomes = Collections.unmodifiableList(outcomes);
+        List<ProfiledApplication> registered = new ArrayList<>(outcomes.size());
+        List<Outcome> failures = new ArrayList<>();
+        for (Outcome outcome : outcomes) {
+            if (outcome.getStatus() == Status.REGISTERED) {
+                registered.add(outcome.getApplication());
+            } else {
+                failures.add(outcome);
+            }
+        }
+        this.registered = Collections.unmodifiableList(registered);
+        this.failures = Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return The outcome of every item, in input order
+     */
+    public List<Outcome> getOutcomes() {
+        return outcomes;
+    }
+
+    /**
+     * @return The registered applications, in input order
+     */
+    public List<ProfiledApplication> getRegistered() {
+        return registered;
+    }
+
+    /**
+     * @return The outcomes of the rejected items, in input order
+     */
+    public List<Outcome> getFailures() {
+        return failures;
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    public enum Status {
+        /**
+         * The application was registered
+         */
+        REGISTERED,
+        /**
+         * The item failed validation, e.g. it had no ID or no application provider is registered for its type
+         */
+        REJECTED,
+        /**
+         * Unmarshaling the item threw an exception
+         */
+        FAILED
+    }
+
+    public static final class Outcome {
+        private final Status status;
+        private final int index;
+        private final String type;
+        private final UUID id;
+        private final ProfiledApplication application;
+        private final String reason;
+        private final Throwable cause;
+
+        private Outcome(Status status, int index, String type, UUID id, ProfiledApplication application, String reason,
+                        Throwable cause) {
+            this.status = status;
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.application = application;
+            this.reason = reason;
+            this.cause = cause;
+        }
+
+        static Outcome registered(int index, String type, ProfiledApplication application) {
+            return new Outcome(Status.REGISTERED, index, type, application.getId(), application, null, null);
+        }
+
+        static Outcome rejected(int index, String type, UUID id, String reason) {
+            return new Outcome(Status.REJECTED, index, type, id, null, reason, null);
+        }
+
+        static Outcome failed(int index, String type, Throwable cause) {
+            return new Outcome(Status.FAILED, index, type, null, null, String.valueOf(cause.getMessage()), cause);
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return The position of the item in the input
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The application class name of the item, if known
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return The application ID, if known
+         */
+        public UUID getId() {
+            return id;
+        }
+
+        /**
+         * @return The registered application, or null if the item was rejected
+         */
+        public ProfiledApplication getApplication() {
+            return application;
+        }
+
+        /**
+         * @return Why the item was rejected, or null if it was registered
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return The exception that caused the rejection, or null unless the status is {@link Status#FAILED}
+         */
+        public Throwable getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + index + (type == null ? "" : " (" + type + ")") + ": "
+                    + (status == Status.REGISTERED ? "registered " + id : reason);
+        }
+    }
+}
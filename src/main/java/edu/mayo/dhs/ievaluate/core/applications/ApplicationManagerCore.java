@@ -7,20 +7,79 @@ import edu.mayo.dhs.ievaluate.api.applications.ApplicationManager;
 import edu.mayo.dhs.ievaluate.api.applications.ApplicationProvider;
 import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
 import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.monitoring.Counter;
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginReloadListener;
+import edu.mayo.dhs.ievaluate.core.startup.StartupProfiler;
+import edu.mayo.dhs.ievaluate.core.storage.IncrementalStorageProvider;
+import edu.mayo.dhs.ievaluate.core.storage.StoredApplication;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Application changes are not persisted immediately: changed applications are marked dirty, and all changes made
+ * within a debounce window (-Dievaluate.applications.persist.debounce, 1000ms by default) are written together by a
+ * background flush that marshals only the dirty applications. Call {@link #flush()} to persist pending changes
+ * immediately, and {@link #close()} on shutdown.
+ *
+ * Bulk registration ({@link #registerApplications(Collection)}) and import ({@link #importApplications(Collection)})
+ * commit all applications to storage in a single operation instead.
+ *
+ * When plugins are reloaded, applications and providers defined by the old plugin classes are released and the
+ * applications are re-created through the new plugins' providers from their marshaled representations.
+ */
+public class ApplicationManagerCore implements ApplicationManager, Closeable, PluginReloadListener {
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 1000;
+    private static final LatencyHistogram SAVE_APPLICATIONS = RuntimeMetrics.histogram("storage.saveRegisteredApplications");
+    private static final LatencyHistogram UNMARSHAL = RuntimeMetrics.histogram("applications.unmarshal");
+    private static final Counter UNMARSHAL_FAILURES = RuntimeMetrics.counter("applications.unmarshal.failures");
 
-public class ApplicationManagerCore implements ApplicationManager {
     private Map<String, ApplicationProvider<?>> registeredProviders;
     private Map<UUID, ProfiledApplication> applications;
 
+    private final Set<UUID> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final long debounceMillis;
+    private final ScheduledExecutorService flushExecutor;
+    // Applications of plugins being reloaded, held marshaled until the new plugin versions are enabled
+    private final Map<UUID, StoredApplication> detached = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<Void> reload; // Completed once detached applications have been re-created
+    private final StartupProfiler profiler;
+    private final List<ApplicationRegistrationListener> registrationListeners = new CopyOnWriteArrayList<>();
+
     public ApplicationManagerCore() {
+        this(StartupProfiler.NONE);
+    }
+
+    /**
+     * @param profiler Records the time taken to load applications from storage
+     */
+    public ApplicationManagerCore(StartupProfiler profiler) {
+        this.profiler = profiler;
         registeredProviders = new ConcurrentHashMap<>();
         applications = new ConcurrentHashMap<>();
+        debounceMillis = Long.getLong("ievaluate.applications.persist.debounce", DEFAULT_DEBOUNCE_MILLIS);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IEvaluate-Application-Persistence");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
@@ -28,15 +87,244 @@ public class ApplicationManagerCore implements ApplicationManager {
         return applications.values();
     }
 
+    /**
+     * Applications of plugins being reloaded are looked up once re-created from the new plugin versions, see
+     * {@link PluginManagerCore#awaitReload}
+     */
     @Override
     public ProfiledApplication getApplication(UUID uid) {
-        return applications.get(uid);
+        ProfiledApplication ret = applications.get(uid);
+        CompletableFuture<Void> pending = this.reload;
+        if (ret == null && pending != null && detached.containsKey(uid)) {
+            PluginManagerCore.awaitReload(pending, "application " + uid);
+            ret = applications.get(uid);
+        }
+        return ret;
     }
 
     @Override
     public void registerApplication(ProfiledApplication application) {
         this.applications.put(application.getId(), application);
-        IEvaluate.getStorage().saveRegisteredApplications();
+        markDirty(application.getId());
+        notifyRegistered(application.getId());
+    }
+
+    public void addRegistrationListener(ApplicationRegistrationListener listener) {
+        registrationListeners.add(listener);
+    }
+
+    private void notifyRegistered(UUID applicationId) {
+        for (ApplicationRegistrationListener listener : registrationListeners) {
+            try {
+                listener.applicationRegistered(applicationId);
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure notifying " + listener.getClass().getName() + " of registration of application " + applicationId, t);
+            }
+        }
+    }
+
+    /**
+     * Registers many applications at once, committing them to storage in a single operation before returning
+     * @param applications The applications to register
+     * @return The registered applications, and the reason each remaining application was rejected
+     */
+    public ApplicationImportResult registerApplications(Collection<? extends ProfiledApplication> applications) {
+        return registerApplications(applications.stream());
+    }
+
+    /**
+     * @see #registerApplications(Collection)
+     */
+    public ApplicationImportResult registerApplications(Stream<? extends ProfiledApplication> applications) {
+        List<? extends ProfiledApplication> items = applications.collect(Collectors.toList());
+        List<ApplicationImportResult.Outcome> outcomes = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            ProfiledApplication app = items.get(i);
+            String type = app == null ? null : app.getClass().getName();
+            if (app == null) {
+                outcomes.add(ApplicationImportResult.Outcome.rejected(i, null, null, "Application is null"));
+            } else if (app.getId() == null) {
+                outcomes.add(ApplicationImportResult.Outcome.rejected(i, type, null, "Application has no ID"));
+            } else if (!registeredProviders.containsKey(type)) {
+                outcomes.add(ApplicationImportResult.Outcome.rejected(i, type, app.getId(),
+                        "No suitable application provider registered for " + type));
+            } else {
+                outcomes.add(ApplicationImportResult.Outcome.registered(i, type, app));
+            }
+        }
+        return commit(outcomes);
+    }
+
+    /**
+     * Unmarshals and registers many applications at once, committing them to storage in a single operation before
+     * returning. Applications are unmarshaled in parallel through the application provider for their type, on the
+     * same loader threads as applications loaded from storage.
+     * @param applications The marshaled applications, with the application class name of each
+     * @return The registered applications, and the reason each remaining item was rejected
+     */
+    public ApplicationImportResult importApplications(Collection<StoredApplication> applications) {
+        return importApplications(applications.stream());
+    }
+
+    /**
+     * @see #importApplications(Collection)
+     */
+    public ApplicationImportResult importApplications(Stream<StoredApplication> applications) {
+        List<StoredApplication> items = applications.collect(Collectors.toList());
+        ApplicationImportResult.Outcome[] outcomes = new ApplicationImportResult.Outcome[items.size()];
+        inParallel(items.size(), i -> outcomes[i] = unmarshal(i, items.get(i)));
+        return commit(new ArrayList<>(Arrays.asList(outcomes))); // Mutable, duplicates are replaced on commit
+    }
+
+    /**
+     * Unmarshals and registers many applications of a single type at once
+     * @see #importApplications(Collection)
+     */
+    public ApplicationImportResult importApplications(String type, Collection<JsonNode> marshaled) {
+        return importApplications(marshaled.stream().map(data -> new StoredApplication(type, data)));
+    }
+
+    private ApplicationImportResult.Outcome unmarshal(int index, StoredApplication stored) {
+        String type = stored == null ? null : stored.getType();
+        if (type == null || stored.getData() == null) {
+            return ApplicationImportResult.Outcome.rejected(index, type, null, "Missing application type or data");
+        }
+        ApplicationProvider<?> provider = registeredProviders.get(type);
+        if (provider == null) {
+            return ApplicationImportResult.Outcome.rejected(index, type, null, "No suitable application provider registered for " + type);
+        }
+        try {
+            ProfiledApplication app = unmarshal(provider, stored.getData());
+            if (app == null) {
+                return ApplicationImportResult.Outcome.rejected(index, type, null, "Application provider returned no application");
+            }
+            return app.getId() == null
+                    ? ApplicationImportResult.Outcome.rejected(index, type, null, "Application has no ID")
+                    : ApplicationImportResult.Outcome.registered(index, type, app);
+        } catch (Throwable t) {
+            return ApplicationImportResult.Outcome.failed(index, type, t);
+        }
+    }
+
+    private ApplicationImportResult commit(List<ApplicationImportResult.Outcome> outcomes) {
+        List<ProfiledApplication> registered = new ArrayList<>();
+        int failures = 0;
+        ApplicationImportResult.Outcome firstFailure = null;
+        Set<UUID> seen = new HashSet<>();
+        for (ListIterator<ApplicationImportResult.Outcome> it = outcomes.listIterator(); it.hasNext(); ) {
+            ApplicationImportResult.Outcome outcome = it.next();
+            if (outcome.getStatus() == ApplicationImportResult.Status.REGISTERED && !seen.add(outcome.getId())) {
+                outcome = ApplicationImportResult.Outcome.rejected(outcome.getIndex(), outcome.getType(), outcome.getId(),
+                        "Duplicate application ID " + outcome.getId());
+                it.set(outcome);
+            }
+            if (outcome.getStatus() == ApplicationImportResult.Status.REGISTERED) {
+                registered.add(outcome.getApplication());
+            } else if (failures++ == 0) {
+                firstFailure = outcome;
+            }
+        }
+        for (ProfiledApplication app : registered) {
+            applications.put(app.getId(), app);
+            dirty.add(app.getId());
+        }
+        flush();
+        for (ProfiledApplication app : registered) {
+            notifyRegistered(app.getId());
+        }
+        if (failures > 0) {
+            IEvaluate.getLogger().warn("Rejected " + failures + " of " + outcomes.size() + " applications, first: " + firstFailure);
+        }
+        return new ApplicationImportResult(outcomes);
+    }
+
+    /**
+     * Schedules an application for persistence, e.g. after it has been modified in place. If the application is no
+     * longer registered, it is removed from storage instead.
+     * @param applicationId The ID of the changed application
+     */
+    public void markDirty(UUID applicationId) {
+        dirty.add(applicationId);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                flushExecutor.schedule(this::scheduledFlush, debounceMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+                flush(); // Already closed, persist synchronously instead
+            }
+        }
+    }
+
+    private void scheduledFlush() {
+        flushScheduled.set(false); // Changes made from here on schedule a new flush
+        try {
+            flush();
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure persisting changed applications, retrying in " + debounceMillis + "ms", t);
+            if (!flushExecutor.isShutdown()) {
+                scheduleFlush();
+            }
+        }
+    }
+
+    /**
+     * Persists all pending application changes, marshalling only the applications that changed. If persisting fails,
+     * the changes remain pending.
+     */
+    public synchronized void flush() {
+        StorageProvider storage = IEvaluate.getStorage();
+        if (dirty.isEmpty() || storage == null) {
+            return; // Changes made before a storage provider is registered are kept until one is
+        }
+        // Taken before saving, so that changes made while saving are persisted by the next flush
+        List<UUID> saving = new ArrayList<>();
+        List<ProfiledApplication> changed = new ArrayList<>();
+        List<UUID> removed = new ArrayList<>();
+        for (Iterator<UUID> it = dirty.iterator(); it.hasNext(); ) {
+            UUID id = it.next();
+            it.remove();
+            saving.add(id);
+            ProfiledApplication app = applications.get(id);
+            if (app != null) {
+                changed.add(app);
+            } else {
+                removed.add(id);
+            }
+        }
+        long start = LatencyHistogram.start();
+        boolean saved = false;
+        try {
+            if (storage instanceof IncrementalStorageProvider) {
+                ((IncrementalStorageProvider) storage).saveRegisteredApplications(changed, removed);
+            } else {
+                storage.saveRegisteredApplications();
+            }
+            saved = true;
+        } finally {
+            if (!saved) {
+                dirty.addAll(saving);
+            }
+        }
+        SAVE_APPLICATIONS.recordSince(start);
+    }
+
+    /**
+     * Persists all pending application changes and stops background persistence. Later changes are persisted
+     * synchronously.
+     */
+    @Override
+    public void close() {
+        flushExecutor.shutdown();
+        try {
+            flushExecutor.awaitTermination(debounceMillis + TimeUnit.SECONDS.toMillis(30), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
     }
 
     @Override
@@ -53,6 +341,39 @@ public class ApplicationManagerCore implements ApplicationManager {
         return this.registeredProviders;
     }
 
+    @Override
+    public void pluginsUnloading(Set<ClassLoader> unloading) {
+        this.reload = new CompletableFuture<>();
+        flush(); // Marshaled below from the old classes, so persist pending changes while they still can be
+        for (Iterator<ProfiledApplication> it = applications.values().iterator(); it.hasNext(); ) {
+            ProfiledApplication app = it.next();
+            if (!unloading.contains(app.getClass().getClassLoader())) {
+                continue;
+            }
+            ApplicationProvider<?> provider = registeredProviders.get(app.getClass().getName());
+            try {
+                detached.put(app.getId(), new StoredApplication(app.getClass().getName(), provider.marshal(app)));
+            } catch (Throwable t) {
+                IEvaluate.getLogger().warn("Failed to marshal application " + app.getId() + " of reloaded plugin, it will not be available until restart", t);
+            }
+            it.remove();
+        }
+        registeredProviders.values().removeIf(provider -> unloading.contains(provider.getClass().getClassLoader())
+                || unloading.contains(provider.applicationClass().getClassLoader()));
+    }
+
+    @Override
+    public void pluginsReloaded(Set<ClassLoader> reloaded) {
+        for (Iterator<StoredApplication> it = detached.values().iterator(); it.hasNext(); ) {
+            loadApplication(it.next()); // Logs if the new version no longer provides the application type
+            it.remove();
+        }
+        CompletableFuture<Void> pending = this.reload;
+        if (pending != null) {
+            pending.complete(null);
+        }
+    }
+
     public void loadApplicationsFromStorage() {
         if (IEvaluate.getServer().getInitializationState().ordinal() < IEvaluateServer.InitState.ENABLING.ordinal()) {
             // State is before plugin enabling, thus no guarantee there *is* a storage provider that is accessible
@@ -61,20 +382,98 @@ public class ApplicationManagerCore implements ApplicationManager {
             return;
         }
         StorageProvider provider = IEvaluate.getStorage();
-        Map<String, JsonNode> applicationMappings = provider.loadRegisteredApplications();
-        applicationMappings.forEach((clazz, marshaled) -> {
-            ApplicationProvider<?> appProvider = registeredProviders.get(clazz);
-            if (appProvider == null) {
-                IEvaluate.getLogger().warn("No suitable provider found for application of type " + clazz +", skipping");
-                return;
+        if (provider instanceof IncrementalStorageProvider) {
+            // Keyed by ID rather than class, so multiple applications of the same type are retained. Stored
+            // applications may be decoded lazily, so decoding and unmarshalling are done in parallel
+            Map<UUID, StoredApplication> stored;
+            try (StartupProfiler.Span ignored = profiler.start("storage", provider.getClass().getName(), "loadApplications")) {
+                stored = ((IncrementalStorageProvider) provider).loadStoredApplications();
             }
-            try {
-                ProfiledApplication app = appProvider.unmarshal(marshaled);
-                applications.put(app.getId(), app); // Don't save apps for every loaded app, wait until end;
-            } catch (Throwable t) {
-                IEvaluate.getLogger().warn("Failed to successfully deserialize application", t);
+            loadInParallel(new ArrayList<>(stored.entrySet()));
+        } else {
+            Map<String, JsonNode> applicationMappings;
+            try (StartupProfiler.Span ignored = profiler.start("storage", provider.getClass().getName(), "loadApplications")) {
+                applicationMappings = provider.loadRegisteredApplications();
             }
+            applicationMappings.forEach((clazz, marshaled) -> loadApplication(new StoredApplication(clazz, marshaled)));
+        }
+        // Nothing to save, loaded applications are unchanged from what is in storage
+    }
+
+    private void loadInParallel(List<Map.Entry<UUID, StoredApplication>> stored) {
+        inParallel(stored.size(), i -> {
+            Map.Entry<UUID, StoredApplication> e = stored.get(i);
+            ProfiledApplication loaded = loadApplication(e.getValue());
+            if (loaded != null && !loaded.getId().equals(e.getKey())) {
+                // Stored under a different key (e.g. migrated from the legacy class-keyed layout), re-key it
+                markDirty(e.getKey());
+                markDirty(loaded.getId());
+            }
+        });
+    }
+
+    // On dedicated threads rather than the common fork-join pool, which is shared with (and may be starved by) plugins.
+    // Sized by -Dievaluate.applications.load.parallelism, the number of processors by default
+    private void inParallel(int count, IntConsumer task) {
+        int parallelism = Math.max(1, Math.min(count,
+                Integer.getInteger("ievaluate.applications.load.parallelism", Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "IEvaluate-Application-Loader");
+            t.setDaemon(true);
+            return t;
         });
-        IEvaluate.getStorage().saveRegisteredApplications();
+        try {
+            AtomicInteger next = new AtomicInteger();
+            CompletableFuture<?>[] workers = new CompletableFuture[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                workers[i] = CompletableFuture.runAsync(() -> {
+                    for (int j; (j = next.getAndIncrement()) < count; ) {
+                        task.accept(j);
+                    }
+                }, executor);
+            }
+            CompletableFuture.allOf(workers).join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Providers may resolve classes through the context class loader, e.g. when binding through Jackson
+    private static ProfiledApplication unmarshal(ApplicationProvider<?> provider, JsonNode data) {
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(provider.getClass().getClassLoader());
+        try {
+            return provider.unmarshal(data);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+        }
+    }
+
+    private ProfiledApplication loadApplication(StoredApplication stored) {
+        String clazz = stored.getType();
+        ApplicationProvider<?> appProvider = registeredProviders.get(clazz);
+        if (appProvider == null) {
+            IEvaluate.getLogger().warn("No suitable provider found for application of type " + clazz +", skipping");
+            return null;
+        }
+        try {
+            JsonNode data;
+            try (StartupProfiler.Span ignored = profiler.start("applications", clazz, "decode")) {
+                data = stored.getData(); // Possibly decoded lazily
+            }
+            ProfiledApplication app;
+            long start = LatencyHistogram.start();
+            try (StartupProfiler.Span ignored = profiler.start("applications", clazz, "unmarshal")) {
+                app = unmarshal(appProvider, data);
+            }
+            UNMARSHAL.recordSince(start);
+            applications.put(app.getId(), app); // Loaded apps are not marked dirty, they are already in storage
+            return app;
+        } catch (Throwable t) {
+            UNMARSHAL_FAILURES.increment();
+            IEvaluate.getLogger().warn("Failed to successfully deserialize application", t);
+            return null;
+        }
     }
 }
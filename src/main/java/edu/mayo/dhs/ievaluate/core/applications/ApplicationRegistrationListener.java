@@ -0,0 +1,16 @@
+package edu.mayo.dhs.ievaluate.core.applications;
+
+import java.util.UUID;
+
+/**
+ * Notified when applications are registered with {@link ApplicationManagerCore}, e.g. to discard state derived from a
+ * previous registration of the same application
+ */
+@FunctionalInterface
+public interface ApplicationRegistrationListener {
+    /**
+     * Invoked after an application was registered, including when it replaced an application with the same ID
+     * @param applicationId The ID of the registered application
+     */
+    void applicationRegistered(UUID applicationId);
+}
@@ -5,17 +5,28 @@ import edu.mayo.dhs.ievaluate.api.IEvaluateServer;
 import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionDefinition;
 import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionInput;
 import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionOutput;
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginReloadListener;
 
 import java.lang.reflect.Constructor;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Internal handling for {@link AssertionDefinition} management ensuring that definitions are all singletons
+ *
+ * Inputs and outputs are instantiated per request through cached constructor factories (see {@link InstanceFactories})
+ *
+ * Definitions of plugins being reloaded are dropped, and the new plugin versions may register theirs again
  */
-public final class AssertionDefinitionManager {
+public final class AssertionDefinitionManager implements PluginReloadListener {
+    private static final LatencyHistogram INSTANTIATION = RuntimeMetrics.histogram("assertions.instantiate");
+
     private final Map<String, AssertionDefinition> definitionMap = new ConcurrentHashMap<>();
+    private volatile boolean reloading;
 
     public final AssertionDefinition getDefinition(Class<? extends AssertionDefinition> clazz) {
         AssertionDefinition ret = definitionMap.get(clazz.getName());
@@ -26,9 +37,11 @@ public final class AssertionDefinitionManager {
     }
 
     public final AssertionInput getInputDefinition(Class<? extends AssertionInput> clazz) {
+        long start = LatencyHistogram.start();
         try {
-            Constructor<?> ctor = clazz.getConstructor();
-            return (AssertionInput) ctor.newInstance();
+            AssertionInput ret = (AssertionInput) InstanceFactories.newInstance(clazz);
+            INSTANTIATION.recordSince(start);
+            return ret;
         } catch (Throwable t) {
             IEvaluate.getLogger().warn("Could not load assertion input definition " + clazz.getName(), t);
             return null;
@@ -37,9 +50,11 @@ public final class AssertionDefinitionManager {
     }
 
     public final AssertionOutput getOutputDefinition(Class<? extends AssertionOutput> clazz) {
+        long start = LatencyHistogram.start();
         try {
-            Constructor<?> ctor = clazz.getConstructor();
-            return (AssertionOutput) ctor.newInstance();
+            AssertionOutput ret = (AssertionOutput) InstanceFactories.newInstance(clazz);
+            INSTANTIATION.recordSince(start);
+            return ret;
         } catch (Throwable t) {
             IEvaluate.getLogger().warn("Could not load assertion output definition " + clazz.getName(), t);
             return null;
@@ -48,7 +63,7 @@ public final class AssertionDefinitionManager {
 
 
     public final void registerDefinition(Class<? extends AssertionDefinition> clazz) {
-        if (IEvaluate.getServer().getInitializationState().ordinal() >= IEvaluateServer.InitState.POST_ENABLE.ordinal()) {
+        if (!reloading && IEvaluate.getServer().getInitializationState().ordinal() >= IEvaluateServer.InitState.POST_ENABLE.ordinal()) {
             IEvaluate.getLogger().warn("Attempted to register an assertion definition type after onEnable(), ignoring");
             return;
         }
@@ -65,4 +80,14 @@ public final class AssertionDefinitionManager {
         }
     }
 
+    @Override
+    public void pluginsUnloading(Set<ClassLoader> unloading) {
+        definitionMap.values().removeIf(def -> unloading.contains(def.getClass().getClassLoader()));
+        reloading = true;
+    }
+
+    @Override
+    public void pluginsReloaded(Set<ClassLoader> reloaded) {
+        reloading = false;
+    }
 }
@@ -0,0 +1,460 @@
+package edu.mayo.dhs.ievaluate.core.assertions;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionDefinition;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionOutput;
+import edu.mayo.dhs.ievaluate.core.applications.ApplicationRegistrationListener;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginReloadListener;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Memoizes assertion outputs by assertion definition, input parameters (irrespective of order) and application ID and
+ * version, so that evaluating the same assertion on the same inputs of the same application version again is free.
+ *
+ * At most a fixed number of outputs are held in memory, evicting the least recently used. Evicted outputs are
+ * optionally spilled to a file in their output map form, from which they are read back through
+ * {@link AssertionOutput#fromOutputMap(Map)} on their next use, without holding the cache's lock; the spill file is
+ * reset once it exceeds its maximum size. Only outputs cached along with a function producing their output map are
+ * spilled. Cached outputs of an application are invalidated when the application is
+ * (re-)registered, and all cached outputs when plugins are reloaded. Outputs are shared between callers and must not
+ * be modified. Failed evaluations are not cached.
+ */
+public class AssertionResultCache implements ApplicationRegistrationListener, PluginReloadListener, Closeable {
+    private final int maxEntries;
+    private final LinkedHashMap<Key, Cached> entries;
+    private final Map<Key, CompletableFuture<AssertionOutput>> inFlight = new ConcurrentHashMap<>();
+    // Incremented on invalidation, so that evaluations started before it are not cached
+    private final Map<UUID, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final AtomicLong globalGeneration = new AtomicLong();
+
+    private final File spillFile;
+    private final long maxSpillBytes;
+    private final Map<Key, long[]> spilled = new HashMap<>(); // Offset and length in the spill file
+    private FileChannel spill;
+    private long spillBytes;
+    private long spillEpoch; // Incremented whenever the spill file is reset, invalidating reads in progress
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong spillHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache holding outputs in memory only
+     * @param maxEntries The maximum number of outputs to hold
+     */
+    public AssertionResultCache(int maxEntries) {
+        this(maxEntries, null, 0);
+    }
+
+    /**
+     * @param maxEntries The maximum number of outputs to hold in memory
+     * @param spillFile The file to spill evicted outputs to, or null to discard them
+     * @param maxSpillBytes The size at which the spill file is reset
+     */
+    public AssertionResultCache(int maxEntries, File spillFile, long maxSpillBytes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one entry");
+        }
+        this.maxEntries = maxEntries;
+        this.spillFile = spillFile;
+        this.maxSpillBytes = maxSpillBytes;
+        this.entries = new LinkedHashMap<Key, Cached>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest) {
+                if (size() <= AssertionResultCache.this.maxEntries) {
+                    return false;
+                }
+                evictions.incrementAndGet();
+                spill(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached output for an evaluation, evaluating and caching it if absent. Concurrent requests for the
+     * same evaluation wait for a single evaluation. The output is discarded rather than spilled once evicted.
+     * @see #get(Class, Map, UUID, String, Class, Function, Callable)
+     */
+    public <O extends AssertionOutput> O get(Class<? extends AssertionDefinition> definition, Map<String, String> parameters,
+                                             UUID applicationId, String version, Class<O> outputClass,
+                                             Callable<? extends O> evaluation) throws Exception {
+        return get(definition, parameters, applicationId, version, outputClass, null, evaluation);
+    }
+
+    /**
+     * Returns the cached output for an evaluation, evaluating and caching it if absent. Concurrent requests for the
+     * same evaluation wait for a single evaluation.
+     * @param definition The assertion definition evaluated
+     * @param parameters The assertion input parameters
+     * @param applicationId The application evaluated
+     * @param version The application version evaluated
+     * @param outputClass The output type, instantiated to read spilled outputs back
+     * @param toOutputMap Produces the output map from which {@link AssertionOutput#fromOutputMap(Map)} restores an
+     *                    output, so that it can be spilled once evicted, or null to discard it instead
+     * @param evaluation Evaluates the assertion if its output is not cached
+     * @return The cached or newly evaluated output
+     * @throws Exception if the evaluation failed
+     */
+    public <O extends AssertionOutput> O get(Class<? extends AssertionDefinition> definition, Map<String, String> parameters,
+                                             UUID applicationId, String version, Class<O> outputClass,
+                                             Function<? super O, Map<String, String>> toOutputMap,
+                                             Callable<? extends O> evaluation) throws Exception {
+        Key key = new Key(definition.getName(), parameters, applicationId, version);
+        O cached = lookup(key, outputClass, toOutputMap);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<AssertionOutput> mine = new CompletableFuture<>();
+        CompletableFuture<AssertionOutput> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                O ret = outputClass.cast(existing.join());
+                hits.incrementAndGet(); // Answered without an evaluation of its own
+                return ret;
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        misses.incrementAndGet();
+        long global = globalGeneration.get();
+        long generation = generation(applicationId);
+        try {
+            O ret = evaluation.call();
+            if (ret != null) {
+                synchronized (this) {
+                    if (global == globalGeneration.get() && generation == generation(applicationId)) {
+                        entries.put(key, new Cached(ret, toOutputMap));
+                    }
+                }
+            }
+            mine.complete(ret);
+            return ret;
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Discards all cached outputs of an application
+     */
+    public synchronized void invalidate(UUID applicationId) {
+        generations.computeIfAbsent(applicationId, k -> new AtomicLong()).incrementAndGet();
+        entries.keySet().removeIf(k -> k.applicationId.equals(applicationId));
+        spilled.keySet().removeIf(k -> k.applicationId.equals(applicationId));
+    }
+
+    /**
+     * Discards all cached outputs
+     */
+    public synchronized void invalidateAll() {
+        globalGeneration.incrementAndGet();
+        entries.clear();
+        resetSpill();
+    }
+
+    @Override
+    public void applicationRegistered(UUID applicationId) {
+        invalidate(applicationId);
+    }
+
+    @Override
+    public void pluginsUnloading(Set<ClassLoader> unloading) {
+        invalidateAll(); // Cached outputs and definitions may be instances of the old plugin classes
+    }
+
+    @Override
+    public void pluginsReloaded(Set<ClassLoader> reloaded) {
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.get(), spillHits.get(), misses.get(), evictions.get(), entries.size(), spilled.size(), spillBytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        entries.clear();
+        spilled.clear();
+        spillEpoch++;
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            Files.deleteIfExists(spillFile.toPath());
+        }
+    }
+
+    private long generation(UUID applicationId) {
+        AtomicLong generation = generations.get(applicationId);
+        return generation == null ? 0 : generation.get();
+    }
+
+    private <O extends AssertionOutput> O lookup(Key key, Class<O> outputClass,
+                                                 Function<? super O, Map<String, String>> toOutputMap) {
+        long[] location;
+        FileChannel channel;
+        long epoch;
+        long global;
+        long generation;
+        synchronized (this) {
+            Cached ret = entries.get(key);
+            if (ret != null) {
+                hits.incrementAndGet();
+                return outputClass.cast(ret.output);
+            }
+            location = spilled.remove(key);
+            if (location == null) {
+                return null;
+            }
+            channel = spill;
+            epoch = spillEpoch;
+            global = globalGeneration.get();
+            generation = generation(key.applicationId);
+        }
+        // Read and restored without the lock; the region read is never rewritten unless the spill file is reset
+        O read;
+        try {
+            ByteBuffer buf = ByteBuffer.allocate((int) location[1]);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, location[0] + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of assertion result spill file");
+                }
+            }
+            read = outputClass.cast(InstanceFactories.newInstance(outputClass));
+            read.fromOutputMap(decode(buf.array()));
+        } catch (Throwable t) {
+            IEvaluate.getLogger().warn("Could not read spilled assertion output, re-evaluating", t);
+            return null;
+        }
+        synchronized (this) {
+            if (epoch != spillEpoch || global != globalGeneration.get() || generation != generation(key.applicationId)) {
+                return null; // Invalidated, or possibly overwritten, while being read
+            }
+            spillHits.incrementAndGet();
+            entries.put(key, new Cached(read, toOutputMap));
+        }
+        return read;
+    }
+
+    // Invoked with the lock held
+    private void spill(Key key, Cached cached) {
+        if (spillFile == null || cached.toOutputMap == null) {
+            return;
+        }
+        try {
+            byte[] data = encode(cached.toOutputMap.apply(cached.output));
+            if (spillBytes + data.length > maxSpillBytes) {
+                resetSpill();
+                if (data.length > maxSpillBytes) {
+                    return;
+                }
+            }
+            if (spill == null) {
+                spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                spill.write(buf, spillBytes + buf.position());
+            }
+            spilled.put(key, new long[]{spillBytes, data.length});
+            spillBytes += data.length;
+        } catch (IOException | RuntimeException e) {
+            IEvaluate.getLogger().debug("Could not spill assertion output of " + key.definition + ", discarding it", e);
+        }
+    }
+
+    // An output map as its entry count followed by each key and value, null values included
+    private static byte[] encode(Map<String, String> map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> e : map.entrySet()) {
+            writeString(out, e.getKey());
+            writeString(out, e.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, String> decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int size = in.readInt();
+        Map<String, String> ret = new HashMap<>(Math.max(16, size * 2));
+        for (int i = 0; i < size; i++) {
+            ret.put(readString(in), readString(in));
+        }
+        return ret;
+    }
+
+    // Length prefixed rather than writeUTF, which is limited to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void resetSpill() {
+        spilled.clear();
+        spillBytes = 0;
+        spillEpoch++;
+        if (spill != null) {
+            try {
+                spill.truncate(0);
+            } catch (IOException e) {
+                IEvaluate.getLogger().warn("Could not reset assertion result spill file " + spillFile, e);
+            }
+        }
+    }
+
+    private static final class Cached {
+        private final AssertionOutput output;
+        private final Function<AssertionOutput, Map<String, String>> toOutputMap;
+
+        @SuppressWarnings("unchecked") // Only ever applied to the output it was supplied with
+        private <O extends AssertionOutput> Cached(O output, Function<? super O, Map<String, String>> toOutputMap) {
+            this.output = output;
+            this.toOutputMap = (Function<AssertionOutput, Map<String, String>>) toOutputMap;
+        }
+    }
+
+    private static final class Key {
+        private final String definition;
+        private final Map<String, String> parameters;
+        private final UUID applicationId;
+        private final String version;
+        private final int hash;
+
+        private Key(String definition, Map<String, String> parameters, UUID applicationId, String version) {
+            this.definition = definition;
+            this.parameters = Collections.unmodifiableMap(new TreeMap<>(parameters)); // Normalized order
+            this.applicationId = applicationId;
+            this.version = version;
+            this.hash = Objects.hash(definition, this.parameters, applicationId, version);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && definition.equals(other.definition) && applicationId.equals(other.applicationId)
+                    && Objects.equals(version, other.version) && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public static final class Stats {
+        private final long hits;
+        private final long spillHits;
+        private final long misses;
+        private final long evictions;
+        private final int size;
+        private final int spilledSize;
+        private final long spilledBytes;
+
+        private Stats(long hits, long spillHits, long misses, long evictions, int size, int spilledSize, long spilledBytes) {
+            this.hits = hits;
+            this.spillHits = spillHits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.size = size;
+            this.spilledSize = spilledSize;
+            this.spilledBytes = spilledBytes;
+        }
+
+        /**
+         * @return Lookups answered from memory, or by waiting for a concurrent evaluation of the same output
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return Lookups answered from the spill file
+         */
+        public long getSpillHits() {
+            return spillHits;
+        }
+
+        /**
+         * @return Lookups that required an evaluation
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return Outputs evicted from memory
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return Outputs held in memory
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return Outputs held in the spill file
+         */
+        public int getSpilledSize() {
+            return spilledSize;
+        }
+
+        public long getSpilledBytes() {
+            return spilledBytes;
+        }
+
+        public double getHitRatio() {
+            long total = hits + spillHits + misses;
+            return total == 0 ? 0 : (double) (hits + spillHits) / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hits + ", spillHits=" + spillHits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", size=" + size + ", spilled=" + spilledSize + " (" + spilledBytes + " bytes)";
+        }
+    }
+}
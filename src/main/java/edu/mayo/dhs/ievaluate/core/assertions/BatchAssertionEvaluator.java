@@ -0,0 +1,231 @@
+package edu.mayo.dhs.ievaluate.core.assertions;
+
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionDefinition;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionInput;
+import edu.mayo.dhs.ievaluate.api.models.assertions.AssertionOutput;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Evaluates an assertion for many sets of input parameters concurrently. For each parameter map an input is built
+ * (as by {@link edu.mayo.dhs.ievaluate.api.IEvaluateServer#getAssertionInput(Class, Map)}) and passed to a caller
+ * supplied {@link Evaluator} on the executor, by default the common fork-join pool, so that all cores are used.
+ *
+ * Parameter maps are consumed lazily and evaluated in chunks, with at most a bounded number of items in flight, and
+ * results are streamed back either in input order or as each chunk completes. A failure to build an input or evaluate
+ * it is reported as the result for that item rather than failing the batch.
+ */
+public class BatchAssertionEvaluator {
+    private static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final AssertionDefinitionManager definitions;
+    private final Executor executor;
+    private final int maxInFlight;
+    private final int chunkSize;
+
+    /**
+     * Evaluates on the common fork-join pool
+     */
+    public BatchAssertionEvaluator(AssertionDefinitionManager definitions) {
+        this(definitions, ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism() * DEFAULT_CHUNK_SIZE * 4, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param definitions The registered assertion definitions
+     * @param executor Runs the evaluations
+     * @param maxInFlight The maximum number of items being evaluated, or evaluated but not yet consumed, at a time
+     * @param chunkSize The number of items handed to the executor as a single task, at most maxInFlight. Larger chunks
+     *                  amortize the cost of handing items between threads, smaller ones return results sooner
+     */
+    public BatchAssertionEvaluator(AssertionDefinitionManager definitions, Executor executor, int maxInFlight, int chunkSize) {
+        if (chunkSize < 1 || maxInFlight < chunkSize) {
+            throw new IllegalArgumentException("At least one chunk of at least one item must be allowed in flight");
+        }
+        this.definitions = definitions;
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Evaluates an assertion for each of the supplied parameter maps. Evaluation happens as the returned stream is
+     * consumed; the stream should be consumed sequentially.
+     * @param definitionClass The registered assertion definition to evaluate
+     * @param inputClass The input type, built from each parameter map
+     * @param evaluator Evaluates the definition for a single input, must be safe to invoke concurrently
+     * @param parameters The input parameters of each item
+     * @param ordered Whether results are returned in the order of the parameter maps rather than as they complete
+     * @return A result for every parameter map
+     * @throws IllegalArgumentException if the definition is not registered
+     */
+    public <I extends AssertionInput, O extends AssertionOutput> Stream<Result<O>> evaluate(
+            Class<? extends AssertionDefinition> definitionClass, Class<I> inputClass, Evaluator<? super I, ? extends O> evaluator,
+            Stream<Map<String, String>> parameters, boolean ordered) {
+        AssertionDefinition definition = definitions.getDefinition(definitionClass);
+        Results<I, O> results = new Results<>(definition, inputClass, evaluator, parameters.iterator(), ordered);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.NONNULL | (ordered ? Spliterator.ORDERED : 0)), false)
+                .onClose(parameters::close);
+    }
+
+    /**
+     * Evaluates an assertion for each of the supplied parameter maps and waits for all results
+     * @return The results, in the order of the parameter maps
+     * @see #evaluate(Class, Class, Evaluator, Stream, boolean)
+     */
+    public <I extends AssertionInput, O extends AssertionOutput> List<Result<O>> evaluateAll(
+            Class<? extends AssertionDefinition> definitionClass, Class<I> inputClass, Evaluator<? super I, ? extends O> evaluator,
+            Collection<Map<String, String>> parameters) {
+        List<Result<O>> ret = new ArrayList<>(parameters.size());
+        this.<I, O>evaluate(definitionClass, inputClass, evaluator, parameters.stream(), true).forEachOrdered(ret::add);
+        return ret;
+    }
+
+    @FunctionalInterface
+    public interface Evaluator<I extends AssertionInput, O extends AssertionOutput> {
+        O evaluate(AssertionDefinition definition, I input) throws Exception;
+    }
+
+    public static final class Result<O extends AssertionOutput> {
+        private final long index;
+        private final Map<String, String> parameters;
+        private final O output;
+        private final Throwable failure;
+
+        private Result(long index, Map<String, String> parameters, O output, Throwable failure) {
+            this.index = index;
+            this.parameters = parameters;
+            this.output = output;
+            this.failure = failure;
+        }
+
+        /**
+         * @return The position of the item's parameter map in the input
+         */
+        public long getIndex() {
+            return index;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        /**
+         * @return The evaluation output, null if evaluation failed
+         */
+        public O getOutput() {
+            return output;
+        }
+
+        /**
+         * @return Why the input could not be built or evaluated, null if successful
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+    }
+
+    // Submits chunks of items as results are consumed, keeping at most maxInFlight items outstanding
+    private final class Results<I extends AssertionInput, O extends AssertionOutput> implements Iterator<Result<O>> {
+        private final AssertionDefinition definition;
+        private final Class<I> inputClass;
+        private final Evaluator<? super I, ? extends O> evaluator;
+        private final Iterator<Map<String, String>> source;
+        private final boolean ordered;
+        private final Deque<CompletableFuture<List<Result<O>>>> pending = new ArrayDeque<>();
+        private final BlockingQueue<List<Result<O>>> completed = new LinkedBlockingQueue<>();
+        private Iterator<Result<O>> current = Collections.emptyIterator();
+        private long submitted;
+        private int inFlight;
+
+        private Results(AssertionDefinition definition, Class<I> inputClass, Evaluator<? super I, ? extends O> evaluator,
+                        Iterator<Map<String, String>> source, boolean ordered) {
+            this.definition = definition;
+            this.inputClass = inputClass;
+            this.evaluator = evaluator;
+            this.source = source;
+            this.ordered = ordered;
+        }
+
+        @Override
+        public boolean hasNext() {
+            fill();
+            return current.hasNext() || inFlight > 0;
+        }
+
+        @Override
+        public Result<O> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (!current.hasNext()) {
+                List<Result<O>> chunk;
+                if (ordered) {
+                    chunk = pending.removeFirst().join(); // Never completes exceptionally, failures are results
+                } else {
+                    try {
+                        chunk = completed.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CancellationException("Interrupted while waiting for assertion results");
+                    }
+                }
+                inFlight -= chunk.size();
+                current = chunk.iterator();
+            }
+            return current.next();
+        }
+
+        private void fill() {
+            while (inFlight + chunkSize <= maxInFlight && source.hasNext()) {
+                long first = submitted;
+                List<Map<String, String>> chunk = new ArrayList<>(chunkSize);
+                while (chunk.size() < chunkSize && source.hasNext()) {
+                    chunk.add(source.next());
+                }
+                submitted += chunk.size();
+                inFlight += chunk.size();
+                CompletableFuture<List<Result<O>>> future;
+                try {
+                    future = CompletableFuture.supplyAsync(() -> evaluateChunk(first, chunk), executor);
+                } catch (RejectedExecutionException e) {
+                    List<Result<O>> rejected = new ArrayList<>(chunk.size());
+                    for (int i = 0; i < chunk.size(); i++) {
+                        rejected.add(new Result<>(first + i, chunk.get(i), null, e));
+                    }
+                    future = CompletableFuture.completedFuture(rejected);
+                }
+                if (ordered) {
+                    pending.addLast(future);
+                } else {
+                    future.thenAccept(completed::add);
+                }
+            }
+        }
+
+        private List<Result<O>> evaluateChunk(long first, List<Map<String, String>> chunk) {
+            List<Result<O>> ret = new ArrayList<>(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                ret.add(evaluateOne(first + i, chunk.get(i)));
+            }
+            return ret;
+        }
+
+        private Result<O> evaluateOne(long index, Map<String, String> parameters) {
+            try {
+                I input = inputClass.cast(InstanceFactories.newInstance(inputClass)); // Reported per item rather than logged
+                input.fromParameterMap(parameters);
+                O output = evaluator.evaluate(definition, input);
+                return new Result<>(index, parameters, output, null);
+            } catch (Throwable t) {
+                return new Result<>(index, parameters, null, t);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package edu.mayo.dhs.ievaluate.core.assertions;
+
+import edu.mayo.dhs.ievaluate.core.plugins.classloader.PluginClassLoader;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.function.Supplier;
+
+/**
+ * Per-class factories invoking public no-argument constructors, built on first use so that repeated instantiation
+ * does not look up the constructor or go through reflection each time.
+ *
+ * Classes are instantiated through a {@link LambdaMetafactory} generated {@link Supplier}, which the JIT can inline
+ * like a direct constructor call. A class generated alongside the core cannot link against classes only visible to
+ * plugin class loaders, so for plugin classes the supplier is generated through {@link PluginClassLoader#lookup()} and
+ * defined by the plugin's class loader instead. Classes of other class loaders the core cannot see are instantiated
+ * through a {@link MethodHandle}, and anything else falls back to reflection. Factories are held in a
+ * {@link ClassValue}, so they do not keep the classes of unloaded plugins reachable.
+ */
+final class InstanceFactories {
+    private static final MethodType NO_ARGS = MethodType.methodType(void.class);
+
+    private static final ClassValue<Factory> FACTORIES = new ClassValue<Factory>() {
+        @Override
+        protected Factory computeValue(Class<?> type) {
+            return create(type);
+        }
+    };
+
+    private InstanceFactories() {
+    }
+
+    /**
+     * @param clazz A class with a public no-argument constructor
+     * @return A new instance of the class
+     * @throws Throwable if the class has no such constructor, or if the constructor throws
+     */
+    static Object newInstance(Class<?> clazz) throws Throwable {
+        return FACTORIES.get(clazz).newInstance();
+    }
+
+    @FunctionalInterface
+    private interface Factory {
+        Object newInstance() throws Throwable;
+    }
+
+    private static Factory create(Class<?> clazz) {
+        if (Modifier.isPublic(clazz.getModifiers()) && !Modifier.isAbstract(clazz.getModifiers())) {
+            try {
+                MethodHandle ctor = MethodHandles.publicLookup().findConstructor(clazz, NO_ARGS);
+                try {
+                    MethodHandles.Lookup caller = isVisible(clazz) ? MethodHandles.lookup() : pluginLookup(clazz);
+                    if (caller != null) {
+                        CallSite site = LambdaMetafactory.metafactory(caller, "get",
+                                MethodType.methodType(Supplier.class), MethodType.methodType(Object.class), ctor,
+                                MethodType.methodType(clazz));
+                        Supplier<?> supplier = (Supplier<?>) site.getTarget().invoke();
+                        return supplier::get;
+                    }
+                } catch (Throwable t) {
+                    // Fall back to the method handle
+                }
+                MethodHandle generic = ctor.asType(MethodType.methodType(Object.class));
+                return () -> (Object) generic.invokeExact();
+            } catch (Throwable t) {
+                // Fall back to reflection, which reports why the class cannot be instantiated
+            }
+        }
+        try {
+            Constructor<?> ctor = clazz.getConstructor();
+            return ctor::newInstance;
+        } catch (NoSuchMethodException e) {
+            return () -> {
+                throw e;
+            };
+        }
+    }
+
+    // A lookup whose generated classes can link against the class, if it was defined by a plugin class loader
+    private static MethodHandles.Lookup pluginLookup(Class<?> clazz) throws ReflectiveOperationException {
+        ClassLoader loader = clazz.getClassLoader();
+        return loader instanceof PluginClassLoader ? ((PluginClassLoader) loader).lookup() : null;
+    }
+
+    // Whether classes generated next to this one can link against the class
+    private static boolean isVisible(Class<?> clazz) {
+        try {
+            return Class.forName(clazz.getName(), false, InstanceFactories.class.getClassLoader()) == clazz;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
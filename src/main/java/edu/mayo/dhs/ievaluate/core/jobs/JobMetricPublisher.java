@@ -0,0 +1,386 @@
+package edu.mayo.dhs.ievaluate.core.jobs;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.api.models.tasks.ApplicationTask;
+import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the metric datapoints produced by completed jobs and writes them to the storage provider in large batches,
+ * so that many jobs completing at once result in a few large writes rather than one write per job.
+ *
+ * Datapoints are buffered per (application, task). A buffer is written once it holds a full batch, or once its oldest
+ * datapoint has waited for the linger time; only one write per (application, task) is in flight at a time, so
+ * datapoints published while a write is in flight accumulate into the next batch and writes for a pair are applied in
+ * publication order. Writes run on a small pool of writer threads (or, for an {@link InMemoryStorageProvider},
+ * through its asynchronous ingestion) and are retried with exponential backoff on failure, except where the storage
+ * provider rejected the datapoints as invalid.
+ *
+ * At most a fixed number of datapoints are buffered or being written; publishers block once that bound is reached
+ * until writes catch up.
+ *
+ * Configured by -Dievaluate.jobs.metrics.batch (datapoints per write, by default 10000), -Dievaluate.jobs.metrics.linger
+ * (ms, by default 100), -Dievaluate.jobs.metrics.capacity (datapoints, by default 262144),
+ * -Dievaluate.jobs.metrics.writers (by default 2) and -Dievaluate.jobs.metrics.retries (by default 5).
+ */
+public class JobMetricPublisher implements Closeable {
+    private static final long RETRY_BASE_MILLIS = 100;
+    private static final long RETRY_MAX_MILLIS = 10000;
+
+    private volatile StorageProvider storage;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final int capacity;
+    private final int maxRetries;
+    private final Semaphore permits;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService writers;
+
+    // Guarded by this
+    private final Map<List<String>, Lane> lanes = new LinkedHashMap<>();
+    private int writesInFlight;
+    private boolean closed;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public JobMetricPublisher(StorageProvider storage) {
+        this(storage, Integer.getInteger("ievaluate.jobs.metrics.batch", 10000),
+                Long.getLong("ievaluate.jobs.metrics.linger", 100),
+                Integer.getInteger("ievaluate.jobs.metrics.capacity", 1 << 18),
+                Integer.getInteger("ievaluate.jobs.metrics.writers", 2),
+                Integer.getInteger("ievaluate.jobs.metrics.retries", 5));
+    }
+
+    /**
+     * @param storage The storage provider to write to
+     * @param maxBatchSize The number of datapoints at which a buffer is written without waiting for the linger time
+     * @param lingerMillis How long datapoints may wait for more to be published to the same application and task
+     * @param capacity The maximum number of datapoints buffered or being written before publishers block
+     * @param writerThreads The number of threads writing to the storage provider
+     * @param maxRetries How often a failed write is retried before its datapoints are dropped
+     */
+    public JobMetricPublisher(StorageProvider storage, int maxBatchSize, long lingerMillis, int capacity, int writerThreads,
+                              int maxRetries) {
+        if (maxBatchSize < 1 || lingerMillis < 0 || capacity < 1 || writerThreads < 1 || maxRetries < 0) {
+            throw new IllegalArgumentException("Invalid metric publishing configuration");
+        }
+        this.storage = storage;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.capacity = capacity;
+        this.maxRetries = maxRetries;
+        this.permits = new Semaphore(capacity);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IEvaluate-Metric-Publisher");
+            t.setDaemon(true);
+            return t;
+        });
+        AtomicInteger writerIndex = new AtomicInteger();
+        this.writers = Executors.newFixedThreadPool(writerThreads, r -> {
+            Thread t = new Thread(r, "IEvaluate-Metric-Writer-" + writerIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+        long tick = Math.max(1, lingerMillis / 2);
+        this.scheduler.scheduleWithFixedDelay(this::writeLingering, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues the datapoints of a job for writing, blocking while the maximum number of datapoints is buffered
+     * @param application The application the job ran for
+     * @param task The task the datapoints were measured for
+     * @param datapoints The datapoints, copied before this method returns
+     * @return A future completed once the datapoints were written, or exceptionally if writing them failed
+     * @throws InterruptedException if interrupted while waiting for capacity
+     * @throws IllegalStateException if the publisher is closed
+     */
+    public CompletableFuture<Void> publish(ProfiledApplication application, ApplicationTask task,
+                                           Collection<? extends MetricDatapoint> datapoints) throws InterruptedException {
+        Publication publication = new Publication(new ArrayList<>(datapoints), Math.min(datapoints.size(), capacity));
+        if (publication.datapoints.isEmpty()) {
+            publication.done.complete(null);
+            return publication.done;
+        }
+        permits.acquire(publication.permits);
+        Batch ready;
+        synchronized (this) {
+            if (closed) {
+                permits.release(publication.permits);
+                throw new IllegalStateException("Job metric publishing has been shut down");
+            }
+            Lane lane = lanes.computeIfAbsent(Arrays.asList(application.getName(), task.getName()),
+                    k -> new Lane(application, task));
+            if (lane.pending.isEmpty()) {
+                lane.oldestNanos = System.nanoTime();
+            }
+            lane.pending.add(publication);
+            lane.pendingSize += publication.datapoints.size();
+            published.addAndGet(publication.datapoints.size());
+            ready = lane.pendingSize >= maxBatchSize ? takeBatch(lane) : null;
+        }
+        if (ready != null) {
+            write(ready, 0);
+        }
+        return publication.done;
+    }
+
+    /**
+     * Writes all buffered datapoints without waiting for the linger time, and waits for all writes to complete
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<Batch> ready = new ArrayList<>();
+        synchronized (this) {
+            for (Lane lane : lanes.values()) {
+                lane.pending.forEach(p -> pending.add(p.done));
+                lane.inFlight.forEach(p -> pending.add(p.done));
+                Batch batch = takeBatch(lane);
+                if (batch != null) {
+                    ready.add(batch);
+                }
+            }
+        }
+        ready.forEach(b -> write(b, 0));
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            // Reported through the futures returned on publication
+        }
+    }
+
+    /**
+     * Directs subsequent writes, including retries, to another storage provider, e.g. once the plugin providing the
+     * current one is reloaded. Writes already issued complete against the previous provider; {@link #flush()} waits
+     * for them.
+     * @param storage The storage provider to write to
+     */
+    public void setStorage(StorageProvider storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return The number of datapoints published
+     */
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    /**
+     * @return The number of writes issued to the storage provider, excluding retries
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return The number of writes whose datapoints were dropped
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Stops accepting datapoints, writes all buffered datapoints and waits for all writes to complete. Does not close
+     * the storage provider.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                flush(); // Loops in case retries are still pending
+                synchronized (this) {
+                    if (writesInFlight == 0 && lanes.values().stream().allMatch(l -> l.pending.isEmpty())) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        scheduler.shutdownNow();
+        writers.shutdown();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Invoked periodically on the scheduler thread
+    private void writeLingering() {
+        try {
+            List<Batch> ready = new ArrayList<>();
+            long now = System.nanoTime();
+            synchronized (this) {
+                for (Lane lane : lanes.values()) {
+                    if (!lane.pending.isEmpty() && now - lane.oldestNanos >= lingerNanos) {
+                        Batch batch = takeBatch(lane);
+                        if (batch != null) {
+                            ready.add(batch);
+                        }
+                    }
+                }
+            }
+            ready.forEach(b -> write(b, 0));
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure writing buffered job metrics", t);
+        }
+    }
+
+    // Takes up to a batch of pending publications from a lane unless it already has a write in flight; invoked with the
+    // lock held
+    private Batch takeBatch(Lane lane) {
+        if (lane.writing || lane.pending.isEmpty()) {
+            return null;
+        }
+        List<MetricDatapoint> datapoints = new ArrayList<>(Math.min(lane.pendingSize, maxBatchSize));
+        while (!lane.pending.isEmpty()
+                && (datapoints.isEmpty() || datapoints.size() + lane.pending.peek().datapoints.size() <= maxBatchSize)) {
+            Publication p = lane.pending.poll();
+            datapoints.addAll(p.datapoints);
+            lane.pendingSize -= p.datapoints.size();
+            lane.inFlight.add(p);
+        }
+        lane.oldestNanos = System.nanoTime(); // The remainder waited for this write, so may be written right after it
+        lane.writing = true;
+        writesInFlight++;
+        writes.incrementAndGet();
+        return new Batch(lane, datapoints);
+    }
+
+    private void write(Batch batch, int attempt) {
+        StorageProvider storage = this.storage;
+        CompletableFuture<Void> written;
+        try {
+            if (storage instanceof InMemoryStorageProvider) {
+                written = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return ((InMemoryStorageProvider) storage).saveMetricsAsync(batch.lane.application, batch.lane.task, batch.datapoints);
+                    } catch (InterruptedException e) {
+                        throw new CompletionException(e);
+                    }
+                }, writers).thenCompose(f -> f);
+            } else {
+                written = CompletableFuture.runAsync(
+                        () -> storage.saveMetrics(batch.lane.application, batch.lane.task, batch.datapoints), writers);
+            }
+        } catch (RejectedExecutionException e) {
+            written = new CompletableFuture<>();
+            written.completeExceptionally(e);
+        }
+        written.whenComplete((v, t) -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause == null) {
+                written(batch, null);
+            } else if (attempt < maxRetries && isTransient(cause)) {
+                retries.incrementAndGet();
+                long delay = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(attempt, 20));
+                IEvaluate.getLogger().debug("Failure writing " + batch.datapoints.size() + " metrics for "
+                        + batch.lane.application.getName() + ", retrying in " + delay + " ms", cause);
+                try {
+                    scheduler.schedule(() -> write(batch, attempt + 1), delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    written(batch, cause);
+                }
+            } else {
+                IEvaluate.getLogger().error("Failure writing " + batch.datapoints.size() + " metrics for "
+                        + batch.lane.application.getName() + ", dropping them", cause);
+                written(batch, cause);
+            }
+        });
+    }
+
+    private void written(Batch batch, Throwable failure) {
+        List<Publication> done;
+        Batch next;
+        synchronized (this) {
+            Lane lane = batch.lane;
+            done = new ArrayList<>(lane.inFlight);
+            lane.inFlight.clear();
+            lane.writing = false;
+            writesInFlight--;
+            if (failure != null) {
+                failures.incrementAndGet();
+            }
+            // Datapoints that accumulated during the write have waited long enough
+            next = takeBatch(lane);
+            if (next == null && lane.pending.isEmpty()) {
+                lanes.remove(Arrays.asList(lane.application.getName(), lane.task.getName()));
+            }
+        }
+        for (Publication p : done) {
+            permits.release(p.permits);
+            if (failure == null) {
+                p.done.complete(null);
+            } else {
+                p.done.completeExceptionally(failure);
+            }
+        }
+        if (next != null) {
+            write(next, 0);
+        }
+    }
+
+    // Invalid datapoints will not be accepted on retry either
+    private static boolean isTransient(Throwable t) {
+        return !(t instanceof IllegalArgumentException || t instanceof NullPointerException
+                || t instanceof ClassCastException || t instanceof InterruptedException || t instanceof Error);
+    }
+
+    private static final class Lane {
+        private final ProfiledApplication application;
+        private final ApplicationTask task;
+        private final ArrayDeque<Publication> pending = new ArrayDeque<>();
+        private final List<Publication> inFlight = new ArrayList<>();
+        private int pendingSize;
+        private long oldestNanos;
+        private boolean writing;
+
+        private Lane(ProfiledApplication application, ApplicationTask task) {
+            this.application = application;
+            this.task = task;
+        }
+    }
+
+    private static final class Batch {
+        private final Lane lane;
+        private final List<MetricDatapoint> datapoints;
+
+        private Batch(Lane lane, List<MetricDatapoint> datapoints) {
+            this.lane = lane;
+            this.datapoints = datapoints;
+        }
+    }
+
+    private static final class Publication {
+        private final List<MetricDatapoint> datapoints;
+        private final int permits;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Publication(List<MetricDatapoint> datapoints, int permits) {
+            this.datapoints = datapoints;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package edu.mayo.dhs.ievaluate.core.jobs;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs application jobs (e.g. submitting an {@link edu.mayo.dhs.ievaluate.api.models.jobs.ApplicationJob} and waiting
+ * for it through the {@link JobStatusPoller}) with bounded concurrency, so that a single application cannot starve
+ * the others.
+ *
+ * Each application has its own priority queue. Whenever a slot frees up, the highest priority job at the head of the
+ * queue of any application below its concurrency limit is started, ties going to the application that was served
+ * least recently. At most a global number of jobs run at a time, and at most a per-application number, which may be
+ * overridden per application.
+ *
+ * Admission is bounded both globally and per application: {@link #submit} waits for queue capacity, providing
+ * backpressure to producers, whereas {@link #offer} rejects the job immediately. Jobs may be cancelled through their
+ * future, interrupting them if running, and may be given a timeout on their run time, after which they fail with a
+ * {@link TimeoutException} and are interrupted. A job holds its slot until it actually returns.
+ *
+ * Jobs run on virtual threads where the JVM supports them (Java 21 and above), as jobs mostly wait on remote
+ * services, and otherwise on a work-stealing pool sized to the global concurrency limit.
+ *
+ * Configured by -Dievaluate.jobs.concurrency (by default 4 per processor), -Dievaluate.jobs.concurrency.app (by
+ * default a quarter of the global limit), -Dievaluate.jobs.queue and -Dievaluate.jobs.queue.app (queued jobs, by
+ * default 10000 and 1000) and -Dievaluate.jobs.virtual (by default true).
+ */
+public class JobScheduler implements Closeable {
+    private final int maxConcurrency;
+    private final int maxApplicationConcurrency;
+    private final int maxQueued;
+    private final int maxApplicationQueued;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final ScheduledExecutorService timeouts;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admission = lock.newCondition();
+    // Guarded by lock
+    private final Map<UUID, ApplicationQueue> applications = new HashMap<>();
+    private int queued;
+    private int running;
+    private long sequence;
+    private long served;
+    private boolean closed;
+
+    public JobScheduler() {
+        this(Integer.getInteger("ievaluate.jobs.concurrency", Runtime.getRuntime().availableProcessors() * 4),
+                Integer.getInteger("ievaluate.jobs.concurrency.app", -1),
+                Integer.getInteger("ievaluate.jobs.queue", 10000),
+                Integer.getInteger("ievaluate.jobs.queue.app", 1000),
+                Boolean.parseBoolean(System.getProperty("ievaluate.jobs.virtual", "true")));
+    }
+
+    /**
+     * @param maxConcurrency The maximum number of jobs running at a time
+     * @param maxApplicationConcurrency The maximum number of jobs of one application running at a time, or -1 for a
+     *                                  quarter of maxConcurrency
+     * @param maxQueued The maximum number of jobs waiting to run
+     * @param maxApplicationQueued The maximum number of jobs of one application waiting to run
+     * @param virtualThreads Whether to run jobs on virtual threads where supported
+     */
+    public JobScheduler(int maxConcurrency, int maxApplicationConcurrency, int maxQueued, int maxApplicationQueued,
+                        boolean virtualThreads) {
+        if (maxApplicationConcurrency == -1) {
+            maxApplicationConcurrency = Math.max(1, maxConcurrency / 4);
+        }
+        if (maxConcurrency < 1 || maxApplicationConcurrency < 1 || maxQueued < 1 || maxApplicationQueued < 1) {
+            throw new IllegalArgumentException("Invalid job scheduler configuration");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxApplicationConcurrency = Math.min(maxApplicationConcurrency, maxConcurrency);
+        this.maxQueued = maxQueued;
+        this.maxApplicationQueued = Math.min(maxApplicationQueued, maxQueued);
+        ExecutorService virtual = virtualThreads ? virtualThreadExecutor() : null;
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newWorkStealingPool(maxConcurrency);
+        this.timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IEvaluate-Job-Timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues a job, waiting for queue capacity if the global or the application's queue is full
+     * @param applicationId The application the job belongs to
+     * @param priority Higher priority jobs of an application run first; across applications the highest priority
+     *                 job at the head of a queue runs first
+     * @param timeoutMillis The maximum run time of the job, or 0 for none
+     * @param job The job
+     * @return Completed with the job's result; cancelling it removes the job from the queue or interrupts it
+     * @throws InterruptedException if interrupted while waiting for queue capacity
+     * @throws RejectedExecutionException if the scheduler is closed
+     */
+    public <T> CompletableFuture<T> submit(UUID applicationId, int priority, long timeoutMillis, Callable<T> job)
+            throws InterruptedException {
+        return admit(applicationId, priority, timeoutMillis, job, true);
+    }
+
+    /**
+     * Queues a job if there is queue capacity
+     * @return Completed with the job's result, or exceptionally with a {@link RejectedExecutionException} if the global
+     * or the application's queue is full or the scheduler is closed
+     * @see #submit(UUID, int, long, Callable)
+     */
+    public <T> CompletableFuture<T> offer(UUID applicationId, int priority, long timeoutMillis, Callable<T> job) {
+        try {
+            return admit(applicationId, priority, timeoutMillis, job, false);
+        } catch (InterruptedException | RejectedExecutionException e) {
+            CompletableFuture<T> ret = new CompletableFuture<>();
+            ret.completeExceptionally(e instanceof RejectedExecutionException ? e : new RejectedExecutionException(e));
+            return ret;
+        }
+    }
+
+    /**
+     * Overrides the number of jobs of an application that may run at a time
+     * @param maxConcurrency The limit, or -1 to revert to the default
+     */
+    public void setApplicationConcurrency(UUID applicationId, int maxConcurrency) {
+        lock.lock();
+        try {
+            ApplicationQueue app = applications.computeIfAbsent(applicationId, ApplicationQueue::new);
+            app.maxConcurrency = maxConcurrency == -1 ? maxApplicationConcurrency : Math.max(1, maxConcurrency);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Whether jobs run on virtual threads rather than a work-stealing pool
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return Queue and timing statistics of an application's jobs, null if it never had any
+     */
+    public Stats getStats(UUID applicationId) {
+        lock.lock();
+        try {
+            ApplicationQueue app = applications.get(applicationId);
+            return app == null ? null : app.stats();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Queue and timing statistics of the jobs of each application
+     */
+    public Map<UUID, Stats> getStats() {
+        lock.lock();
+        try {
+            Map<UUID, Stats> ret = new HashMap<>();
+            applications.forEach((id, app) -> ret.put(id, app.stats()));
+            return ret;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting jobs, cancels all queued and running jobs and stops the executor
+     */
+    @Override
+    public void close() {
+        List<Job<?>> cancelled = new ArrayList<>();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (ApplicationQueue app : applications.values()) {
+                cancelled.addAll(app.queue);
+                cancelled.addAll(app.running);
+            }
+            admission.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        cancelled.forEach(job -> job.future.cancel(true)); // Outside the lock, as cancellation re-enters the scheduler
+        timeouts.shutdownNow();
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> admit(UUID applicationId, int priority, long timeoutMillis, Callable<T> task,
+                                           boolean wait) throws InterruptedException {
+        Objects.requireNonNull(applicationId, "applicationId");
+        Objects.requireNonNull(task, "job");
+        Job<T> job;
+        lock.lockInterruptibly();
+        try {
+            ApplicationQueue app = applications.computeIfAbsent(applicationId, ApplicationQueue::new);
+            while (!closed && (queued >= maxQueued || app.queue.size() >= maxApplicationQueued)) {
+                if (!wait) {
+                    app.rejected++;
+                    throw new RejectedExecutionException("Job queue of application " + applicationId + " is full");
+                }
+                admission.await();
+            }
+            if (closed) {
+                throw new RejectedExecutionException("Job scheduler is closed");
+            }
+            job = new Job<>(app, priority, sequence++, timeoutMillis, task);
+            app.queue.add(job);
+            app.submitted++;
+            queued++;
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+        job.future.whenComplete((r, t) -> {
+            if (job.future.isCancelled()) {
+                cancelled(job);
+            }
+        });
+        return job.future;
+    }
+
+    // Starts queued jobs while there are free slots, invoked with the lock held
+    private void dispatch() {
+        while (running < maxConcurrency && queued > 0) {
+            ApplicationQueue next = null;
+            for (ApplicationQueue app : applications.values()) {
+                Job<?> head = app.queue.peek();
+                if (head == null || app.running.size() >= app.maxConcurrency) {
+                    continue;
+                }
+                if (next == null || head.priority > next.queue.peek().priority
+                        || (head.priority == next.queue.peek().priority && app.lastServed < next.lastServed)) {
+                    next = app;
+                }
+            }
+            if (next == null) {
+                return; // Every application with queued jobs is at its limit
+            }
+            Job<?> job = next.queue.poll();
+            queued--;
+            admission.signal();
+            next.lastServed = ++served;
+            next.running.add(job);
+            running++;
+            long now = System.nanoTime();
+            next.recordWait(now - job.queuedNanos);
+            job.startedNanos = now;
+            try {
+                executor.execute(job);
+            } catch (RejectedExecutionException e) {
+                finished(job);
+                job.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void finished(Job<?> job) {
+        lock.lock();
+        try {
+            if (job.app.running.remove(job)) {
+                running--;
+                long runNanos = System.nanoTime() - job.startedNanos;
+                job.app.recordRun(runNanos, job.future);
+                dispatch();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancelled(Job<?> job) {
+        lock.lock();
+        try {
+            if (job.app.queue.remove(job)) {
+                queued--;
+                job.app.cancelled++;
+                admission.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        job.interrupt(); // Running, the slot is released once it returns
+    }
+
+    private void timedOut(Job<?> job) {
+        if (job.future.completeExceptionally(new TimeoutException("Job exceeded its timeout of " + job.timeoutMillis + " ms"))) {
+            job.interrupt();
+        }
+    }
+
+    // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("IEvaluate-Job-", 0).factory()), on Java 21 and above
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "IEvaluate-Job-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method executor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) executor.invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            IEvaluate.getLogger().debug("Virtual threads are not available, running jobs on a work-stealing pool");
+            return null;
+        }
+    }
+
+    private final class ApplicationQueue {
+        private final UUID applicationId;
+        private final PriorityQueue<Job<?>> queue = new PriorityQueue<>();
+        private final Set<Job<?>> running = new HashSet<>();
+        private int maxConcurrency = maxApplicationConcurrency;
+        private long lastServed;
+        private long submitted;
+        private long completed;
+        private long failed;
+        private long cancelled;
+        private long rejected;
+        private long started;
+        private long waitNanos;
+        private long maxWaitNanos;
+        private long ran;
+        private long runNanos;
+        private long maxRunNanos;
+
+        private ApplicationQueue(UUID applicationId) {
+            this.applicationId = applicationId;
+        }
+
+        private void recordWait(long nanos) {
+            started++;
+            waitNanos += nanos;
+            maxWaitNanos = Math.max(maxWaitNanos, nanos);
+        }
+
+        private void recordRun(long nanos, CompletableFuture<?> future) {
+            ran++;
+            runNanos += nanos;
+            maxRunNanos = Math.max(maxRunNanos, nanos);
+            if (future.isCancelled()) {
+                cancelled++;
+            } else if (future.isCompletedExceptionally()) {
+                failed++;
+            } else {
+                completed++;
+            }
+        }
+
+        private Stats stats() {
+            return new Stats(applicationId, queue.size(), running.size(), submitted, completed, failed, cancelled, rejected,
+                    started == 0 ? 0 : waitNanos / started, maxWaitNanos, ran == 0 ? 0 : runNanos / ran, maxRunNanos);
+        }
+    }
+
+    private final class Job<T> implements Runnable, Comparable<Job<?>> {
+        private final ApplicationQueue app;
+        private final int priority;
+        private final long sequence;
+        private final long timeoutMillis;
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queuedNanos = System.nanoTime();
+        private long startedNanos; // Guarded by the scheduler lock
+        private Thread runner; // Guarded by this
+
+        private Job(ApplicationQueue app, int priority, long sequence, long timeoutMillis, Callable<T> task) {
+            this.app = app;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.timeoutMillis = timeoutMillis;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            ScheduledFuture<?> timeout = null;
+            try {
+                synchronized (this) {
+                    if (future.isDone()) {
+                        return; // Cancelled between dispatch and start
+                    }
+                    runner = Thread.currentThread();
+                }
+                if (timeoutMillis > 0) {
+                    try {
+                        timeout = timeouts.schedule(() -> timedOut(this), timeoutMillis, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // Closing
+                    }
+                }
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    Thread.interrupted(); // Do not leak an interrupt to the next job on a pooled thread
+                }
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                finished(this);
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        @Override
+        public int compareTo(Job<?> o) {
+            int ret = Integer.compare(o.priority, priority); // Highest priority first
+            return ret != 0 ? ret : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    public static final class Stats {
+        private final UUID applicationId;
+        private final int queued;
+        private final int running;
+        private final long submitted;
+        private final long completed;
+        private final long failed;
+        private final long cancelled;
+        private final long rejected;
+        private final long meanWaitNanos;
+        private final long maxWaitNanos;
+        private final long meanRunNanos;
+        private final long maxRunNanos;
+
+        private Stats(UUID applicationId, int queued, int running, long submitted, long completed, long failed,
+                      long cancelled, long rejected, long meanWaitNanos, long maxWaitNanos, long meanRunNanos, long maxRunNanos) {
+            this.applicationId = applicationId;
+            this.queued = queued;
+            this.running = running;
+            this.submitted = submitted;
+            this.completed = completed;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.rejected = rejected;
+            this.meanWaitNanos = meanWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.meanRunNanos = meanRunNanos;
+            this.maxRunNanos = maxRunNanos;
+        }
+
+        public UUID getApplicationId() {
+            return applicationId;
+        }
+
+        /**
+         * @return Jobs waiting to run
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        public int getRunning() {
+            return running;
+        }
+
+        /**
+         * @return Jobs admitted to the queue
+         */
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * @return Jobs that threw or timed out
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * @return Jobs cancelled while queued or running
+         */
+        public long getCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return Jobs offered while the queue was full
+         */
+        public long getRejected() {
+            return rejected;
+        }
+
+        /**
+         * @return The mean time from admission until the job started
+         */
+        public long getMeanWaitNanos() {
+            return meanWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        /**
+         * @return The mean time from the start of a job until it returned
+         */
+        public long getMeanRunNanos() {
+            return meanRunNanos;
+        }
+
+        public long getMaxRunNanos() {
+            return maxRunNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "queued=" + queued + ", running=" + running + ", submitted=" + submitted + ", completed=" + completed
+                    + ", failed=" + failed + ", cancelled=" + cancelled + ", rejected=" + rejected
+                    + ", meanWait=" + meanWaitNanos / 1_000_000 + " ms, maxWait=" + maxWaitNanos / 1_000_000
+                    + " ms, meanRun=" + meanRunNanos / 1_000_000 + " ms, maxRun=" + maxRunNanos / 1_000_000 + " ms";
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package edu.mayo.dhs.ievaluate.core.jobs;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Polls the status endpoints of {@link RESTfulApplicationJob}s without blocking a thread per job: all polls share a
+ * single pooled, non-blocking HTTP client, and are scheduled by a single thread.
+ *
+ * Each job is polled at an adaptive interval: it starts at the minimum interval, is multiplied by 1.5 whenever a poll
+ * returns an unchanged status and doubled whenever a poll fails, up to the maximum interval, and is reset to the
+ * minimum whenever the status changes. Intervals are jittered so that jobs started together spread out.
+ *
+ * Polls are coalesced by status URL: jobs whose status URL is the same once %JOB_UID% is substituted are polled with a
+ * single request, and jobs with a batch status endpoint are polled with one request per batch of distinct status
+ * URLs. At most a fixed number of requests are in flight to any one host; further requests to that host wait in the
+ * host's queue, where polls for the same endpoint falling due in the meantime join them, and are issued as requests to
+ * the host complete.
+ *
+ * Configured by -Dievaluate.jobs.poll.min and -Dievaluate.jobs.poll.max (intervals in ms, by default 1000 and 60000),
+ * -Dievaluate.jobs.poll.host.concurrency (by default 8) and -Dievaluate.jobs.poll.batch (jobs per batch request, by
+ * default 100).
+ */
+public class JobStatusPoller implements Closeable {
+    private static final long TICK_MILLIS = 50;
+    private static final double BACKOFF = 1.5;
+    private static final double ERROR_BACKOFF = 2;
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final int hostConcurrency;
+    private final int maxBatchSize;
+    private final CloseableHttpAsyncClient client;
+    private final ScheduledExecutorService scheduler;
+
+    // Only accessed on the scheduler thread
+    private final PriorityQueue<Tracked> due = new PriorityQueue<>(Comparator.comparingLong(t -> t.nextPollNanos));
+    private final Map<RESTfulApplicationJob, Tracked> tracked = new IdentityHashMap<>();
+    private final Map<String, Host> hosts = new HashMap<>();
+    // Written on the scheduler thread only
+    private volatile int trackedCount;
+    private volatile long requests;
+    private volatile long polls;
+
+    public JobStatusPoller() {
+        this(Long.getLong("ievaluate.jobs.poll.min", 1000), Long.getLong("ievaluate.jobs.poll.max", 60000),
+                Integer.getInteger("ievaluate.jobs.poll.host.concurrency", 8), Integer.getInteger("ievaluate.jobs.poll.batch", 100));
+    }
+
+    /**
+     * @param minIntervalMillis The interval at which jobs are polled initially and after their status changes
+     * @param maxIntervalMillis The longest interval polls are backed off to
+     * @param hostConcurrency The maximum number of requests in flight to any one host
+     * @param maxBatchSize The maximum number of jobs polled with a single batch status request
+     */
+    public JobStatusPoller(long minIntervalMillis, long maxIntervalMillis, int hostConcurrency, int maxBatchSize) {
+        if (minIntervalMillis <= 0 || maxIntervalMillis < minIntervalMillis || hostConcurrency < 1 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid job polling configuration");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.hostConcurrency = hostConcurrency;
+        this.maxBatchSize = maxBatchSize;
+        int timeout = (int) Math.min(Integer.MAX_VALUE, Math.max(TimeUnit.SECONDS.toMillis(30), maxIntervalMillis));
+        this.client = HttpAsyncClients.custom()
+                .setMaxConnPerRoute(hostConcurrency)
+                .setMaxConnTotal(Math.max(hostConcurrency, 256))
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(timeout)
+                        .setSocketTimeout(timeout)
+                        .setConnectionRequestTimeout(timeout)
+                        .build())
+                .build();
+        this.client.start();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "IEvaluate-Job-Poller");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts polling a job's status until the job reports it is complete
+     * @param job The job to poll
+     * @return Completed with the job once it is complete, or exceptionally if polling stops beforehand
+     */
+    public CompletableFuture<RESTfulApplicationJob> track(RESTfulApplicationJob job) {
+        CompletableFuture<RESTfulApplicationJob> ret = new CompletableFuture<>();
+        try {
+            scheduler.execute(() -> {
+                Tracked existing = tracked.get(job);
+                if (existing != null) {
+                    existing.completion.whenComplete((j, t) -> {
+                        if (t != null) {
+                            ret.completeExceptionally(t);
+                        } else {
+                            ret.complete(j);
+                        }
+                    });
+                    return;
+                }
+                Tracked t;
+                try {
+                    t = new Tracked(job, ret, minIntervalMillis);
+                } catch (RuntimeException e) {
+                    IEvaluate.getLogger().error("Invalid status endpoint for job " + job.getJobUIDString() + ", not polling", e);
+                    ret.completeExceptionally(e);
+                    return;
+                }
+                t.nextPollNanos = System.nanoTime();
+                tracked.put(job, t);
+                trackedCount = tracked.size();
+                due.add(t);
+            });
+        } catch (RejectedExecutionException e) {
+            ret.completeExceptionally(new IllegalStateException("Job status poller is closed"));
+        }
+        return ret;
+    }
+
+    /**
+     * Stops polling a job, completing its future exceptionally
+     */
+    public void untrack(RESTfulApplicationJob job) {
+        dispatch(() -> {
+            Tracked t = tracked.remove(job);
+            trackedCount = tracked.size();
+            if (t != null) {
+                due.remove(t);
+                t.completion.completeExceptionally(new CancellationException("Job is no longer polled"));
+            }
+        });
+    }
+
+    /**
+     * @return The number of jobs being polled
+     */
+    public int getTrackedJobCount() {
+        return trackedCount;
+    }
+
+    /**
+     * @return The number of status requests issued
+     */
+    public long getRequestCount() {
+        return requests;
+    }
+
+    /**
+     * @return The number of job polls answered, which exceeds the number of requests where polls were coalesced
+     */
+    public long getPollCount() {
+        return polls;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            scheduler.submit(() -> {
+                IllegalStateException closed = new IllegalStateException("Job status poller was closed");
+                tracked.values().forEach(t -> t.completion.completeExceptionally(closed));
+                tracked.clear();
+                trackedCount = 0;
+                due.clear();
+                hosts.clear();
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            // Already closed
+        }
+        scheduler.shutdownNow();
+        client.close();
+    }
+
+    // Queues all polls that are due on their hosts, joining requests for the same endpoint that are still waiting,
+    // and issues as many requests as the hosts allow
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            Set<Host> ready = new LinkedHashSet<>();
+            while (!due.isEmpty() && due.peek().nextPollNanos - now <= 0) {
+                Tracked t = due.poll();
+                Host host = hosts.computeIfAbsent(t.host, Host::new);
+                String endpoint = t.batchEndpoint != null ? t.batchEndpoint : t.statusUrl;
+                Request request = host.joinable.get(endpoint);
+                if (request == null || !request.add(t)) {
+                    request = new Request(host, endpoint, t.batchEndpoint != null);
+                    request.add(t);
+                    host.joinable.put(endpoint, request);
+                    host.waiting.add(request);
+                }
+                ready.add(host);
+            }
+            ready.forEach(this::drain);
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure scheduling job status polls", t);
+        }
+    }
+
+    // Issues the host's waiting requests while it has a free request slot
+    private void drain(Host host) {
+        while (host.inFlight < hostConcurrency && !host.waiting.isEmpty()) {
+            Request request = host.waiting.poll();
+            host.joinable.remove(request.endpoint, request);
+            request.jobs.values().forEach(jobs -> jobs.removeIf(t -> tracked.get(t.job) != t));
+            request.jobs.values().removeIf(List::isEmpty);
+            if (!request.jobs.isEmpty()) {
+                issue(request);
+            }
+        }
+        if (host.inFlight == 0 && host.waiting.isEmpty()) {
+            hosts.remove(host.authority);
+        }
+    }
+
+    private void issue(Request request) {
+        Host host = request.host;
+        String url = request.batch
+                ? request.endpoint.replace(RESTfulApplicationJob.JOB_UIDS_MACRO, String.join(",", request.uids.keySet()))
+                : request.endpoint;
+        host.inFlight++;
+        requests++; // Single writer
+        client.execute(new HttpGet(url), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                JsonNode body = null;
+                Exception failure = null;
+                try {
+                    int code = response.getStatusLine().getStatusCode();
+                    byte[] content = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+                    if (code >= 300) {
+                        failure = new IOException("Job status endpoint " + url + " responded with HTTP " + code);
+                    } else {
+                        body = om.readTree(content);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                }
+                JsonNode status = body;
+                Exception error = failure;
+                dispatch(() -> handle(request, status, error));
+            }
+
+            @Override
+            public void failed(Exception e) {
+                dispatch(() -> handle(request, null, e));
+            }
+
+            @Override
+            public void cancelled() {
+                dispatch(() -> handle(request, null, new CancellationException("Job status request cancelled")));
+            }
+        });
+    }
+
+    private void dispatch(Runnable handler) {
+        try {
+            scheduler.execute(handler);
+        } catch (RejectedExecutionException ignored) {
+            // Closed, jobs were already completed
+        }
+    }
+
+    private void handle(Request request, JsonNode body, Exception failure) {
+        request.host.inFlight--;
+        if (hosts.get(request.host.authority) == request.host) { // Otherwise closed
+            request.jobs.forEach((statusUrl, jobs) -> {
+                JsonNode status = body != null && request.batch ? body.get(request.statusUrls.get(statusUrl)) : body;
+                jobs.forEach(t -> handle(t, status, failure));
+            });
+            drain(request.host);
+        }
+    }
+
+    private void handle(Tracked t, JsonNode status, Exception failure) {
+        if (tracked.get(t.job) != t) {
+            return; // No longer polled
+        }
+        polls++; // Single writer
+        RESTfulApplicationJob.PollOutcome outcome;
+        if (failure != null || status == null) {
+            t.failures++;
+            if (t.failures == 5) {
+                IEvaluate.getLogger().warn("Repeated failures polling status of job " + t.job.getJobUIDString()
+                        + (failure == null ? ", missing from batch status response" : ""), failure);
+            }
+            reschedule(t, Math.min(maxIntervalMillis, (long) (t.intervalMillis * ERROR_BACKOFF)));
+            return;
+        }
+        t.failures = 0;
+        try {
+            outcome = t.job.onStatusUpdate(status);
+        } catch (Throwable e) {
+            IEvaluate.getLogger().error("Failure handling status of job " + t.job.getJobUIDString() + ", no longer polling", e);
+            tracked.remove(t.job);
+            trackedCount = tracked.size();
+            t.completion.completeExceptionally(e);
+            return;
+        }
+        if (outcome == RESTfulApplicationJob.PollOutcome.COMPLETE) {
+            tracked.remove(t.job);
+            trackedCount = tracked.size();
+            t.completion.complete(t.job);
+        } else if (outcome == RESTfulApplicationJob.PollOutcome.CHANGED) {
+            reschedule(t, minIntervalMillis);
+        } else {
+            reschedule(t, Math.min(maxIntervalMillis, (long) (t.intervalMillis * BACKOFF)));
+        }
+    }
+
+    private void reschedule(Tracked t, long intervalMillis) {
+        t.intervalMillis = intervalMillis;
+        double jitter = 0.9 + ThreadLocalRandom.current().nextDouble() * 0.2; // +-10%
+        t.nextPollNanos = System.nanoTime() + (long) (TimeUnit.MILLISECONDS.toNanos(intervalMillis) * jitter);
+        due.add(t);
+    }
+
+    private static final class Tracked {
+        private final RESTfulApplicationJob job;
+        private final CompletableFuture<RESTfulApplicationJob> completion;
+        private final String statusUrl;
+        private final String batchEndpoint;
+        private final String host; // Of the endpoint polled
+        private long intervalMillis;
+        private long nextPollNanos;
+        private int failures;
+
+        private Tracked(RESTfulApplicationJob job, CompletableFuture<RESTfulApplicationJob> completion, long intervalMillis) {
+            this.job = job;
+            this.completion = completion;
+            this.intervalMillis = intervalMillis;
+            this.statusUrl = job.getJobStatusRestEndpoint();
+            this.batchEndpoint = job.getJobBatchStatusRestEndpoint();
+            String polled = batchEndpoint != null ? batchEndpoint.replace(RESTfulApplicationJob.JOB_UIDS_MACRO, "") : statusUrl;
+            this.host = URI.create(polled).getAuthority();
+        }
+    }
+
+    /**
+     * The request slots of a host, and its requests waiting for one
+     */
+    private static final class Host {
+        private final String authority;
+        private final Queue<Request> waiting = new ArrayDeque<>();
+        // The most recent waiting request per endpoint, which due polls for that endpoint join while it has room
+        private final Map<String, Request> joinable = new HashMap<>();
+        private int inFlight;
+
+        private Host(String authority) {
+            this.authority = authority;
+        }
+    }
+
+    /**
+     * A status request, and the jobs it polls by status URL
+     */
+    private final class Request {
+        private final Host host;
+        private final String endpoint; // The status URL, or the batch endpoint with %JOB_UIDS% still to be substituted
+        private final boolean batch;
+        private final Map<String, List<Tracked>> jobs = new LinkedHashMap<>();
+        // For batch requests, the status URL of the jobs found under each UID in the response and vice versa
+        private final Map<String, String> uids = new LinkedHashMap<>();
+        private final Map<String, String> statusUrls = new HashMap<>();
+
+        private Request(Host host, String endpoint, boolean batch) {
+            this.host = host;
+            this.endpoint = endpoint;
+            this.batch = batch;
+        }
+
+        // Returns false if the job must be polled by another request: the batch is full, or another status URL of
+        // the batch has the same UID and so would share its entry in the response
+        private boolean add(Tracked t) {
+            List<Tracked> polled = jobs.get(t.statusUrl);
+            if (polled == null) {
+                if (batch) {
+                    String uid = t.job.getJobUIDString();
+                    if (uids.size() >= maxBatchSize || uids.containsKey(uid)) {
+                        return false;
+                    }
+                    uids.put(uid, t.statusUrl);
+                    statusUrls.put(t.statusUrl, uid);
+                }
+                polled = new ArrayList<>();
+                jobs.put(t.statusUrl, polled);
+            }
+            polled.add(t);
+            return true;
+        }
+    }
+}
@@ -1,17 +1,98 @@
 package edu.mayo.dhs.ievaluate.core.jobs;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import edu.mayo.dhs.ievaluate.api.models.jobs.ApplicationJob;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
 /**
  * A default implementation of an application job that utilizes RESTful endpoints for execution and state updates.
  *
  * All REST endpoints must contain the macro %JOB_UID% which will be substituted with the appropriate {@link #jobUID}
+ *
+ * Job status is polled by a {@link JobStatusPoller}, which hands each status response to
+ * {@link #onStatusUpdate(JsonNode)}. Where the job service offers an endpoint returning the status of many jobs at
+ * once, it may be supplied as a batch status endpoint containing the macro %JOB_UIDS%, which is substituted with a
+ * comma separated list of job UIDs; it must respond with a JSON object mapping each job UID to its status.
  */
 public abstract class RESTfulApplicationJob extends ApplicationJob {
+    public static final String JOB_UID_MACRO = "%JOB_UID%";
+    public static final String JOB_UIDS_MACRO = "%JOB_UIDS%";
+
+    private static final Set<String> TERMINAL_STATES = new HashSet<>(Arrays.asList(
+            "COMPLETE", "COMPLETED", "DONE", "SUCCEEDED", "SUCCESS", "FAILED", "FAILURE", "ERROR", "CANCELLED", "CANCELED"));
 
     private String jobStatusRestEndpoint;
+    private String jobBatchStatusRestEndpoint;
+    private volatile JsonNode lastStatus;
 
     public RESTfulApplicationJob(String jobStatusRestEndpoint) {
+        this(jobStatusRestEndpoint, null);
+    }
+
+    /**
+     * @param jobStatusRestEndpoint The status endpoint of this job, containing %JOB_UID%
+     * @param jobBatchStatusRestEndpoint An endpoint returning the status of many jobs, containing %JOB_UIDS%, or null
+     */
+    public RESTfulApplicationJob(String jobStatusRestEndpoint, String jobBatchStatusRestEndpoint) {
         this.jobStatusRestEndpoint = jobStatusRestEndpoint;
+        this.jobBatchStatusRestEndpoint = jobBatchStatusRestEndpoint;
+    }
+
+    /**
+     * @return The status endpoint, with %JOB_UID% substituted
+     */
+    public String getJobStatusRestEndpoint() {
+        return jobStatusRestEndpoint.replace(JOB_UID_MACRO, String.valueOf(jobUID));
+    }
+
+    /**
+     * @return The batch status endpoint, with %JOB_UIDS% left to be substituted, or null if there is none
+     */
+    public String getJobBatchStatusRestEndpoint() {
+        return jobBatchStatusRestEndpoint;
+    }
+
+    /**
+     * @return The UID substituted into endpoints, and by which this job is found in batch status responses
+     */
+    public String getJobUIDString() {
+        return String.valueOf(jobUID);
+    }
+
+    /**
+     * @return The most recent status response, null if none was received yet
+     */
+    public JsonNode getLastStatus() {
+        return lastStatus;
+    }
+
+    /**
+     * Invoked by the poller with each status response; must return quickly. By default, the job is considered
+     * complete once the status (or its "status" or "state" field) is a terminal state such as COMPLETED or FAILED.
+     * @param status The status response
+     * @return Whether the status changed since the previous response, or the job is complete and need not be polled
+     * any longer
+     */
+    protected PollOutcome onStatusUpdate(JsonNode status) {
+        JsonNode previous = lastStatus;
+        lastStatus = status;
+        JsonNode state = status.isObject() ? (status.has("status") ? status.get("status") : status.get("state")) : status;
+        if (state != null && state.isValueNode() && TERMINAL_STATES.contains(state.asText().toUpperCase(Locale.ROOT))) {
+            return PollOutcome.COMPLETE;
+        }
+        return status.equals(previous) ? PollOutcome.UNCHANGED : PollOutcome.CHANGED;
+    }
+
+    public enum PollOutcome {
+        /** The job is still running and its status did not change, polls are backed off */
+        UNCHANGED,
+        /** The job is still running and its status changed, polls continue at the minimum interval */
+        CHANGED,
+        /** The job has finished and is no longer polled */
+        COMPLETE
     }
 }
@@ -0,0 +1,36 @@
+package edu.mayo.dhs.ievaluate.core.monitoring;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count, striped so that concurrent increments do not contend. Increments are no-ops if
+ * {@link RuntimeMetrics#ENABLED runtime metrics are disabled}.
+ */
+public final class Counter {
+    private final String name;
+    private final LongAdder count = new LongAdder();
+
+    Counter(String name) {
+        this.name = name;
+    }
+
+    public void increment() {
+        if (RuntimeMetrics.ENABLED) {
+            count.increment();
+        }
+    }
+
+    public void add(long n) {
+        if (RuntimeMetrics.ENABLED) {
+            count.add(n);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+}
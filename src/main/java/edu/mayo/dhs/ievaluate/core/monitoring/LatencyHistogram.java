@@ -0,0 +1,172 @@
+package edu.mayo.dhs.ievaluate.core.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds covering the full range of a long with a bounded relative error.
+ *
+ * Buckets are log-linear: each power of two is split into 16 equally wide sub-buckets, so any recorded value falls in
+ * a bucket less than 1/16th of its value wide and quantiles are reported to within about 3%, using 976 fixed buckets
+ * regardless of the range of values recorded. Recording is lock-free and allocation-free, and a no-op if {@link
+ * RuntimeMetrics#ENABLED runtime metrics are disabled}.
+ *
+ * Typically used as:
+ * <pre>
+ * long start = LatencyHistogram.start();
+ * ...
+ * histogram.recordSince(start);
+ * </pre>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The start time to pass to {@link #recordSince(long)}, not read from the clock if disabled
+     */
+    public static long start() {
+        return RuntimeMetrics.ENABLED ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time elapsed since a start time returned by {@link #start()}
+     */
+    public void recordSince(long startNanos) {
+        if (RuntimeMetrics.ENABLED) {
+            record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @param nanos The duration to record, negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        if (!RuntimeMetrics.ENABLED) {
+            return;
+        }
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The recorded durations. Concurrent recordings may be partially reflected
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long maxNanos = max.get();
+        return new Snapshot(total, total == 0 ? 0 : sum.sum() / total, maxNanos,
+                quantile(counts, total, 0.5, maxNanos), quantile(counts, total, 0.9, maxNanos),
+                quantile(counts, total, 0.99, maxNanos), quantile(counts, total, 0.999, maxNanos));
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // The midpoint of the bucket holding the quantile
+    private static long quantile(long[] counts, long total, double q, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                if (i < SUB_BUCKETS) {
+                    return i;
+                }
+                int exponent = i / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+                long width = 1L << (exponent - SUB_BUCKET_BITS);
+                long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+                return Math.min(max, lower + width / 2);
+            }
+        }
+        return max;
+    }
+
+    public static final class Snapshot {
+        private final long count;
+        private final long meanNanos;
+        private final long maxNanos;
+        private final long p50Nanos;
+        private final long p90Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+
+        private Snapshot(long count, long meanNanos, long maxNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.maxNanos = maxNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return meanNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP90Nanos() {
+            return p90Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + meanNanos + " ns, p50=" + p50Nanos + " ns, p90=" + p90Nanos
+                    + " ns, p99=" + p99Nanos + " ns, p99.9=" + p999Nanos + " ns, max=" + maxNanos + " ns";
+        }
+    }
+}
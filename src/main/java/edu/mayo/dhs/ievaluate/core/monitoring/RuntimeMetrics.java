@@ -0,0 +1,181 @@
+package edu.mayo.dhs.ievaluate.core.monitoring;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The registry of runtime metrics of the server: counters, latency histograms and gauges, identified by dotted names
+ * such as "storage.saveMetrics". Metrics are created on first use and shared by name, so instrumented classes usually
+ * hold them in static fields.
+ *
+ * All metrics are exposed as attributes of a single MBean, {@value #OBJECT_NAME}, once {@link #registerMBean()} is
+ * invoked: counters and gauges by their name, histograms as name.count, name.mean, name.p50, name.p90, name.p99,
+ * name.p999 and name.max (in microseconds). {@link #snapshot()} returns the same values programmatically.
+ *
+ * Disabled by -Dievaluate.metrics.runtime=false, in which case recording reduces to a check of a constant that the JIT
+ * removes, and the clock is not read.
+ */
+public final class RuntimeMetrics {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("ievaluate.metrics.runtime", "true"));
+    public static final String OBJECT_NAME = "edu.mayo.dhs.ievaluate:type=RuntimeMetrics";
+
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    private static final String[] HISTOGRAM_ATTRIBUTES = {"count", "mean", "p50", "p90", "p99", "p999", "max"};
+
+    private RuntimeMetrics() {
+    }
+
+    /**
+     * @return The counter of the given name, created if absent
+     */
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, Counter::new);
+    }
+
+    /**
+     * @return The latency histogram of the given name, created if absent
+     */
+    public static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    /**
+     * Registers a gauge, replacing any previously registered under the same name. The supplier is invoked whenever the
+     * gauge is read, must be thread safe and should be cheap.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    public static void removeGauge(String name) {
+        GAUGES.remove(name);
+    }
+
+    /**
+     * @return The current value of each metric by name: a Long for counters and gauges, and a {@link
+     * LatencyHistogram.Snapshot} for histograms
+     */
+    public static SortedMap<String, Object> snapshot() {
+        SortedMap<String, Object> ret = new TreeMap<>();
+        COUNTERS.forEach((name, counter) -> ret.put(name, counter.getCount()));
+        HISTOGRAMS.forEach((name, histogram) -> ret.put(name, histogram.snapshot()));
+        GAUGES.forEach((name, gauge) -> ret.put(name, readGauge(name, gauge)));
+        return ret;
+    }
+
+    /**
+     * Exposes all metrics over JMX, if enabled and not already registered
+     */
+    public static void registerMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (ENABLED && !server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(), name);
+        }
+    }
+
+    public static void unregisterMBean() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static long readGauge(String name, LongSupplier gauge) {
+        try {
+            return gauge.getAsLong();
+        } catch (RuntimeException e) {
+            return -1; // Not available, e.g. the component it reads was closed
+        }
+    }
+
+    // Attributes are looked up on every read, so metrics created after registration are exposed too
+    private static final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Counter counter = COUNTERS.get(attribute);
+            if (counter != null) {
+                return counter.getCount();
+            }
+            LongSupplier gauge = GAUGES.get(attribute);
+            if (gauge != null) {
+                return readGauge(attribute, gauge);
+            }
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram histogram = dot < 0 ? null : HISTOGRAMS.get(attribute.substring(0, dot));
+            if (histogram != null) {
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+                switch (attribute.substring(dot + 1)) {
+                    case "count":
+                        return snapshot.getCount();
+                    case "mean":
+                        return snapshot.getMeanNanos() / 1000.0;
+                    case "p50":
+                        return snapshot.getP50Nanos() / 1000.0;
+                    case "p90":
+                        return snapshot.getP90Nanos() / 1000.0;
+                    case "p99":
+                        return snapshot.getP99Nanos() / 1000.0;
+                    case "p999":
+                        return snapshot.getP999Nanos() / 1000.0;
+                    case "max":
+                        return snapshot.getMaxNanos() / 1000.0;
+                    default:
+                        break;
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList ret = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    ret.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Omitted, as per the DynamicMBean contract
+                }
+            }
+            return ret;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Runtime metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            new TreeSet<>(COUNTERS.keySet()).forEach(name ->
+                    attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false)));
+            new TreeSet<>(GAUGES.keySet()).forEach(name ->
+                    attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false)));
+            for (String name : new TreeSet<>(HISTOGRAMS.keySet())) {
+                for (String suffix : HISTOGRAM_ATTRIBUTES) {
+                    attributes.add(new MBeanAttributeInfo(name + "." + suffix, suffix.equals("count") ? "long" : "double",
+                            suffix.equals("count") ? "Recorded durations" : "Duration in microseconds", true, false, false));
+                }
+            }
+            return new MBeanInfo(RuntimeMetrics.class.getName(), "IEvaluate runtime metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package edu.mayo.dhs.ievaluate.core.plugins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * A persistent cache of each plugin JAR's plugin.json and the names of the classes and resources it contains, so that
+ * unchanged JARs need not be scanned on startup and class loaders can resolve classes and resources directly to the JAR
+ * containing them.
+ *
+ * Entries are keyed by JAR path and validated by size and a SHA-256 of the JAR's central directory, which records the
+ * name, size and CRC-32 of every entry, so that a JAR rewritten in place with the same size and modification time is
+ * still detected while only its directory, rather than the whole JAR, is read on startup. If the directory differs,
+ * the SHA-256 of the whole JAR is compared before the JAR is rescanned.
+ */
+public class PluginIndexCache {
+    private static final int VERSION = 2;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Set<String> used = ConcurrentHashMap.newKeySet();
+    private volatile boolean dirty;
+
+    public PluginIndexCache(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JsonNode root = om.readTree(file);
+            if (root == null || root.path("version").asInt() != VERSION) {
+                dirty = true;
+                return;
+            }
+            root.path("jars").fields().forEachRemaining(e -> entries.put(e.getKey(), Entry.fromJson(e.getValue())));
+        } catch (IOException | RuntimeException e) {
+            IEvaluate.getLogger().warn("Ignoring unreadable plugin index cache " + file, e);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Retrieves the cached entry for a JAR, scanning the JAR if it has no valid entry
+     * @param jar The plugin JAR
+     * @return The JAR's descriptor and class index
+     * @throws IOException if the JAR could not be read
+     */
+    public Entry get(File jar) throws IOException {
+        String key = jar.getCanonicalPath();
+        used.add(key);
+        Entry cached = entries.get(key);
+        long size = jar.length();
+        long modified = jar.lastModified();
+        String directory = centralDirectorySha256(jar);
+        if (cached != null && cached.size == size && cached.directory.equals(directory)) {
+            if (cached.modified == modified) {
+                return cached;
+            }
+            Entry ret = new Entry(size, modified, directory, cached.sha256, cached.descriptor, cached.classes, cached.resources);
+            entries.put(key, ret);
+            dirty = true;
+            return ret;
+        }
+        String sha256 = sha256(jar);
+        Entry ret;
+        if (cached != null && cached.sha256.equals(sha256)) {
+            ret = new Entry(size, modified, directory, sha256, cached.descriptor, cached.classes, cached.resources);
+        } else {
+            ret = scan(jar, size, modified, directory, sha256);
+        }
+        entries.put(key, ret);
+        dirty = true;
+        return ret;
+    }
+
+    /**
+     * Writes the cache if it changed, dropping entries for JARs that were not requested since it was loaded
+     */
+    public void save() {
+        if (entries.keySet().retainAll(used)) {
+            dirty = true;
+        }
+        if (!dirty) {
+            return;
+        }
+        ObjectNode root = om.createObjectNode();
+        root.put("version", VERSION);
+        ObjectNode jars = root.putObject("jars");
+        new TreeMap<>(entries).forEach((path, entry) -> jars.set(path, entry.toJson(om)));
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            om.writeValue(tmp, root);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            IEvaluate.getLogger().warn("Could not write plugin index cache " + file, e);
+        }
+    }
+
+    private Entry scan(File jar, long size, long modified, String directory, String sha256) throws IOException {
+        try (JarFile jf = new JarFile(jar)) {
+            JsonNode descriptor = null;
+            ZipEntry descriptorEntry = jf.getEntry("plugin.json");
+            if (descriptorEntry != null) {
+                try (InputStream is = jf.getInputStream(descriptorEntry)) {
+                    descriptor = om.readTree(is);
+                }
+            }
+            Set<String> classes = new HashSet<>();
+            Set<String> resources = new HashSet<>();
+            for (Enumeration<JarEntry> it = jf.entries(); it.hasMoreElements(); ) {
+                String name = it.nextElement().getName();
+                if (name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/")) {
+                    classes.add(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'));
+                } else {
+                    resources.add(name);
+                }
+            }
+            return new Entry(size, modified, directory, sha256, descriptor, Collections.unmodifiableSet(classes),
+                    Collections.unmodifiableSet(resources));
+        }
+    }
+
+    // Falls back to the SHA-256 of the whole JAR if the central directory cannot be located (e.g. ZIP64 archives)
+    private static String centralDirectorySha256(File jar) throws IOException {
+        try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // The end of central directory record is followed by a comment of at most 64KB
+            int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+            ByteBuffer tail = read(channel, size - tailLength, tailLength).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) != END_OF_CENTRAL_DIRECTORY) {
+                    continue;
+                }
+                long directorySize = tail.getInt(i + 12) & 0xFFFFFFFFL;
+                long directoryOffset = tail.getInt(i + 16) & 0xFFFFFFFFL;
+                if (directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL
+                        || directoryOffset + directorySize > size - tailLength + i) {
+                    break;
+                }
+                MessageDigest digest = sha256Digest();
+                digest.update(read(channel, directoryOffset, (int) directorySize));
+                return hex(digest.digest());
+            }
+        }
+        return sha256(jar);
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate(length);
+        while (ret.hasRemaining()) {
+            if (channel.read(ret, position + ret.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+    private static String sha256(File jar) throws IOException {
+        MessageDigest digest = sha256Digest();
+        byte[] buf = new byte[1 << 16];
+        try (InputStream is = new DigestInputStream(new FileInputStream(jar), digest)) {
+            while (is.read(buf) != -1) {
+                // Digested as read
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Required of every Java platform
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static final class Entry {
+        private final long size;
+        private final long modified;
+        private final String directory;
+        private final String sha256;
+        private final JsonNode descriptor;
+        private final Set<String> classes;
+        private final Set<String> resources;
+
+        Entry(long size, long modified, String directory, String sha256, JsonNode descriptor, Set<String> classes,
+              Set<String> resources) {
+            this.size = size;
+            this.modified = modified;
+            this.directory = directory;
+            this.sha256 = sha256;
+            this.descriptor = descriptor;
+            this.classes = classes;
+            this.resources = resources;
+        }
+
+        /**
+         * @return The contents of the JAR's plugin.json, or null if it has none
+         */
+        public JsonNode getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * @return The binary names of all classes contained in the JAR
+         */
+        public Set<String> getClasses() {
+            return classes;
+        }
+
+        /**
+         * @return The names of all other entries in the JAR, including directories (which end with a slash)
+         */
+        public Set<String> getResources() {
+            return resources;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+
+        private ObjectNode toJson(ObjectMapper om) {
+            ObjectNode ret = om.createObjectNode();
+            ret.put("size", size);
+            ret.put("modified", modified);
+            ret.put("directory", directory);
+            ret.put("sha256", sha256);
+            ret.set("descriptor", descriptor);
+            ArrayNode names = ret.putArray("classes");
+            new TreeSet<>(classes).forEach(names::add);
+            ArrayNode resourceNames = ret.putArray("resources");
+            new TreeSet<>(resources).forEach(resourceNames::add);
+            return ret;
+        }
+
+        private static Entry fromJson(JsonNode node) {
+            Set<String> classes = new HashSet<>();
+            node.get("classes").forEach(n -> classes.add(n.asText()));
+            Set<String> resources = new HashSet<>();
+            node.get("resources").forEach(n -> resources.add(n.asText()));
+            JsonNode descriptor = node.get("descriptor");
+            return new Entry(
+                    node.get("size").asLong(),
+                    node.get("modified").asLong(),
+                    node.get("directory").asText(),
+                    node.get("sha256").asText(),
+                    descriptor == null || descriptor.isNull() ? null : descriptor,
+                    Collections.unmodifiableSet(classes),
+                    Collections.unmodifiableSet(resources)
+            );
+        }
+    }
+}
@@ -8,6 +8,7 @@ import edu.mayo.dhs.ievaluate.api.plugins.IEvaluatePlugin;
 import edu.mayo.dhs.ievaluate.api.plugins.PluginDescriptor;
 import edu.mayo.dhs.ievaluate.api.plugins.PluginManager;
 import edu.mayo.dhs.ievaluate.core.plugins.classloader.PluginClassLoader;
+import edu.mayo.dhs.ievaluate.core.startup.StartupProfiler;
 
 import java.io.File;
 import java.io.IOException;
@@ -15,85 +16,117 @@ import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarFile;
-import java.util.zip.ZipEntry;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 /**
  * Heavily inspired by PL4J's implementation of plugin management, but modified to suit our use cases.
  * Fully thread-safe
+ *
+ * Plugin JARs are always scanned concurrently. Supplying -Dievaluate.plugins.parallel=true additionally runs the
+ * onInit/onEnable steps of plugins that do not depend on each other concurrently (on up to
+ * -Dievaluate.plugins.parallelism threads)
+ *
+ * Each JAR's plugin.json and class names are cached in plugins/plugin-index.json (see {@link PluginIndexCache}), so
+ * unchanged JARs are not rescanned on startup
+ *
+ * A single plugin can be replaced at runtime with {@link #reloadPlugin(String, File)}, which restarts only that plugin
+ * and the plugins depending on it
  */
 public class PluginManagerCore implements PluginManager {
+    // Runs onInit/onEnable of independent plugins concurrently, which requires plugins to be safe to start in parallel
+    private static final boolean PARALLEL_STARTUP = Boolean.getBoolean("ievaluate.plugins.parallel");
+    private static final long RELOAD_WAIT_MILLIS = Long.getLong("ievaluate.plugins.reload.wait", 30000);
+    // The reload run by the current thread, inherited by the threads it starts (e.g. from a plugin's onEnable)
+    private static final InheritableThreadLocal<CompletableFuture<Void>> CURRENT_RELOAD = new InheritableThreadLocal<>();
+
     private Map<String, IEvaluatePlugin> registeredPlugins;
     private Map<String, PluginClassLoader> pluginClassLoaders;
     private Map<String, PluginDescriptor> descriptors;
 
+    private PluginIndexCache indexCache;
+    private File pluginConfigDir;
+    // Plugins being reloaded, lookups of which wait for the reload to complete
+    private final Map<String, CompletableFuture<Void>> quiesced = new ConcurrentHashMap<>();
+    private final List<PluginReloadListener> reloadListeners = new CopyOnWriteArrayList<>();
+    private final StartupProfiler profiler;
+
+    public PluginManagerCore() {
+        this(StartupProfiler.NONE);
+    }
+
+    /**
+     * @param profiler Records the time taken by each plugin's startup steps
+     */
+    public PluginManagerCore(StartupProfiler profiler) {
+        this.profiler = profiler;
+    }
+
     public void loadPlugins(File pluginJarDir, File pluginConfigDir) {
-        loadDescriptorsAndClassloaders(pluginJarDir);
+        PluginIndexCache cache = new PluginIndexCache(new File(pluginJarDir.getParentFile(), "plugin-index.json"));
+        loadDescriptorsAndClassloaders(pluginJarDir, cache);
+        cache.save();
+        this.indexCache = cache;
+        this.pluginConfigDir = pluginConfigDir;
         registerPlugins(pluginConfigDir);
     }
 
-    private void loadDescriptorsAndClassloaders(File pluginsDir) {
+    private void loadDescriptorsAndClassloaders(File pluginsDir, PluginIndexCache cache) {
         this.pluginClassLoaders = new ConcurrentHashMap<>();
         this.descriptors = new ConcurrentHashMap<>();
         ObjectMapper om = new ObjectMapper();
-        for (File f : Objects.requireNonNull(pluginsDir.listFiles())) {
-            if (f.getName().endsWith(".jar")) { // Ignore non-jars
-                try (JarFile jar = new JarFile(f)) {
-                    ZipEntry entry = jar.getEntry("plugin.json");
-                    if (entry == null) {
-                        IEvaluate.getLogger().warn("Skipping plugin JAR with no plugin.json: " + f.getName());
-                        continue;
-                    }
-                    PluginDescriptor descriptor = om.readValue(jar.getInputStream(entry), PluginDescriptor.class);
-                    IEvaluate.getLogger().info("Loading plugin " + descriptor.getName());
-                    PluginClassLoader classLoader = new PluginClassLoader(this, descriptor, f, getClass().getClassLoader());
-                    pluginClassLoaders.put(descriptor.getName(), classLoader);
-                    descriptors.put(descriptor.getName(), descriptor);
-                    IEvaluate.getLogger().info("Successfully loaded plugin " + descriptor.getName());
-                } catch (IOException e) {
-                    IEvaluate.getLogger().warn("Failed to load plugin " + f.getName(), e);
-                }
+        File[] jars = Objects.requireNonNull(pluginsDir.listFiles((dir, name) -> name.endsWith(".jar"))); // Ignore non-jars
+        Arrays.sort(jars);
+        // JARs are opened and parsed concurrently, but registered in file order so that duplicate names resolve as before
+        List<PluginClassLoader> loaded = Arrays.stream(jars)
+                .parallel()
+                .map(f -> loadDescriptorAndClassloader(om, cache, f))
+                .collect(Collectors.toList());
+        for (PluginClassLoader classLoader : loaded) {
+            if (classLoader != null) {
+                PluginDescriptor descriptor = classLoader.getDescriptor();
+                pluginClassLoaders.put(descriptor.getName(), classLoader);
+                descriptors.put(descriptor.getName(), descriptor);
+                IEvaluate.getLogger().info("Successfully loaded plugin " + descriptor.getName());
             }
         }
     }
 
+    private PluginClassLoader loadDescriptorAndClassloader(ObjectMapper om, PluginIndexCache cache, File f) {
+        try (StartupProfiler.Span ignored = profiler.start("pluginJar", f.getName(), "scan")) {
+            PluginIndexCache.Entry entry = cache.get(f); // Only opens the JAR if it changed since the last startup
+            if (entry.getDescriptor() == null) {
+                IEvaluate.getLogger().warn("Skipping plugin JAR with no plugin.json: " + f.getName());
+                return null;
+            }
+            PluginDescriptor descriptor = om.treeToValue(entry.getDescriptor(), PluginDescriptor.class);
+            IEvaluate.getLogger().info("Loading plugin " + descriptor.getName());
+            PluginClassLoader classLoader = new PluginClassLoader(this, descriptor, f, getClass().getClassLoader());
+            classLoader.setIndex(entry.getClasses(), entry.getResources());
+            return classLoader;
+        } catch (IOException e) {
+            IEvaluate.getLogger().warn("Failed to load plugin " + f.getName(), e);
+            return null;
+        }
+    }
+
     private void registerPlugins(File confDir) {
         this.registeredPlugins = new ConcurrentHashMap<>();
         ObjectMapper om = new ObjectMapper();
         descriptors.forEach((name, descriptor) -> {
             // Copy and load configuration
-            File pluginConfDir = new File(confDir, name);
-            if (!pluginConfDir.isDirectory() || (!pluginConfDir.exists() && !pluginConfDir.mkdirs())) {
+            File pluginConfDir;
+            try (StartupProfiler.Span ignored = profiler.start("plugin", name, "config")) {
+                pluginConfDir = prepareConfiguration(om, confDir, name, pluginClassLoaders.get(name));
+            }
+            if (pluginConfDir == null) {
                 IEvaluate.getLogger().fatal("Could not create plugin configuration directory for " + name + "!");
                 System.exit(-1); // Fatal error
             }
-            JsonNode currConfig;
-            File conf = new File(pluginConfDir, "config.json");
-            if (!conf.exists()) {
-                try (InputStream is = pluginClassLoaders.get(name).getResourceAsStream("/config.json")) {
-                    currConfig = om.readTree(is);
-                    om.writerWithDefaultPrettyPrinter().writeValue(conf, currConfig);
-                } catch (IOException e) {
-                    IEvaluate.getLogger().error("Could not copy plugin configuration file for " + name, e);
-                }
-            } else {
-                try (InputStream is = pluginClassLoaders.get(name).getResourceAsStream("/config.json")) {
-                    JsonNode defaultConfig = om.readTree(is);
-                    currConfig = om.readTree(conf);
-                    currConfig = mergeDefaultconfigIntoCurrent(defaultConfig, currConfig, name);
-                    om.writerWithDefaultPrettyPrinter().writeValue(conf, currConfig);
-                } catch (IOException e) {
-                    IEvaluate.getLogger().error("Could not copy plugin configuration file for " + name, e);
-                }
-            }
             // Now try to load the plugin
-            String mainClass = descriptor.getMainClass();
             try {
-                Class<?> pluginClazz = Class.forName(mainClass, true, pluginClassLoaders.get(name));
-                Constructor<?> ctor = pluginClazz.getConstructor();
-                registeredPlugins.put(name, (IEvaluatePlugin) ctor.newInstance());
-                registeredPlugins.get(name).loadConfig(pluginConfDir);
+                registeredPlugins.put(name, instantiatePlugin(descriptor, pluginClassLoaders.get(name), pluginConfDir));
             } catch (Throwable t) {
                 IEvaluate.getLogger().fatal("Could not load plugin " + name, t);
                 System.exit(-1);
@@ -101,7 +134,52 @@ public class PluginManagerCore implements PluginManager {
         });
     }
 
+    // Copies the plugin's default configuration, or merges it into the existing configuration
+    private File prepareConfiguration(ObjectMapper om, File confDir, String name, PluginClassLoader classLoader) {
+        File pluginConfDir = new File(confDir, name);
+        if (!pluginConfDir.isDirectory() || (!pluginConfDir.exists() && !pluginConfDir.mkdirs())) {
+            return null;
+        }
+        JsonNode currConfig;
+        File conf = new File(pluginConfDir, "config.json");
+        if (!conf.exists()) {
+            try (InputStream is = classLoader.getResourceAsStream("/config.json")) {
+                currConfig = om.readTree(is);
+                om.writerWithDefaultPrettyPrinter().writeValue(conf, currConfig);
+            } catch (IOException e) {
+                IEvaluate.getLogger().error("Could not copy plugin configuration file for " + name, e);
+            }
+        } else {
+            try (InputStream is = classLoader.getResourceAsStream("/config.json")) {
+                JsonNode defaultConfig = om.readTree(is);
+                currConfig = om.readTree(conf);
+                currConfig = mergeDefaultconfigIntoCurrent(defaultConfig, currConfig, name);
+                om.writerWithDefaultPrettyPrinter().writeValue(conf, currConfig);
+            } catch (IOException e) {
+                IEvaluate.getLogger().error("Could not copy plugin configuration file for " + name, e);
+            }
+        }
+        return pluginConfDir;
+    }
+
+    private IEvaluatePlugin instantiatePlugin(PluginDescriptor descriptor, PluginClassLoader classLoader, File pluginConfDir) throws ReflectiveOperationException {
+        Class<?> pluginClazz;
+        try (StartupProfiler.Span ignored = profiler.start("plugin", descriptor.getName(), "classLoad")) {
+            pluginClazz = Class.forName(descriptor.getMainClass(), true, classLoader);
+        }
+        try (StartupProfiler.Span ignored = profiler.start("plugin", descriptor.getName(), "construct")) {
+            Constructor<?> ctor = pluginClazz.getConstructor();
+            IEvaluatePlugin ret = (IEvaluatePlugin) ctor.newInstance();
+            ret.loadConfig(pluginConfDir);
+            return ret;
+        }
+    }
+
     public void initializePlugins() {
+        if (PARALLEL_STARTUP) {
+            runInDependencyOrder("onInit", "Initializing", "initialized", IEvaluatePlugin::onInit);
+            return;
+        }
         Set<String> visiting = ConcurrentHashMap.newKeySet();
         Set<String> initialized = ConcurrentHashMap.newKeySet();
         registeredPlugins.forEach((name, plugin) -> initializePluginRecursive(visiting, initialized, name, plugin));
@@ -123,7 +201,7 @@ public class PluginManagerCore implements PluginManager {
         }
         visiting.remove(name); // We are no longer recursing, thus no longer at risk of circular dependencies
         IEvaluate.getLogger().info("Initializing plugin " + name);
-        try {
+        try (StartupProfiler.Span ignored = profiler.start("plugin", name, "onInit")) {
             plugin.onInit();
             IEvaluate.getLogger().info("Successfully initialized plugin " + name);
         } catch (Throwable t) {
@@ -134,6 +212,10 @@ public class PluginManagerCore implements PluginManager {
     }
 
     public void enablePlugins() {
+        if (PARALLEL_STARTUP) {
+            runInDependencyOrder("onEnable", "Enabling", "enabled", IEvaluatePlugin::onEnable);
+            return;
+        }
         Set<String> visiting = ConcurrentHashMap.newKeySet();
         Set<String> initialized = ConcurrentHashMap.newKeySet();
         registeredPlugins.forEach((name, plugin) -> enablePluginRecursive(visiting, initialized, name, plugin));
@@ -155,7 +237,7 @@ public class PluginManagerCore implements PluginManager {
         }
         visiting.remove(name); // We are no longer recursing, thus no longer at risk of circular dependencies
         IEvaluate.getLogger().info("Enabling plugin " + name);
-        try {
+        try (StartupProfiler.Span ignored = profiler.start("plugin", name, "onEnable")) {
             plugin.onEnable();
             IEvaluate.getLogger().info("Successfully enabled plugin " + name);
         } catch (Throwable t) {
@@ -165,6 +247,301 @@ public class PluginManagerCore implements PluginManager {
         enabled.add(name);
     }
 
+    /**
+     * Runs a lifecycle step for every plugin as a task graph: each plugin's step is started as soon as the steps of all
+     * plugins it requires have completed, so independent plugins run concurrently. As with sequential startup, cyclic
+     * dependencies and step failures are fatal.
+     */
+    private void runInDependencyOrder(String stepName, String action, String outcome, LifecycleStep step) {
+        // Validate the whole graph up front, so that no step runs if it would not complete
+        Set<String> visited = new HashSet<>();
+        for (String name : registeredPlugins.keySet()) {
+            checkAcyclic(name, new LinkedHashSet<>(), visited);
+        }
+        int parallelism = Math.max(1, Math.min(registeredPlugins.size(),
+                Integer.getInteger("ievaluate.plugins.parallelism", Runtime.getRuntime().availableProcessors() * 2)));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "IEvaluate-Plugin-Startup");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            Map<String, CompletableFuture<Void>> tasks = new HashMap<>();
+            for (String name : registeredPlugins.keySet()) {
+                schedule(name, tasks, executor, stepName, action, outcome, step);
+            }
+            CompletableFuture.allOf(tasks.values().toArray(new CompletableFuture[0])).join();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private CompletableFuture<Void> schedule(String name, Map<String, CompletableFuture<Void>> tasks, Executor executor,
+                                             String stepName, String action, String outcome, LifecycleStep step) {
+        CompletableFuture<Void> ret = tasks.get(name);
+        if (ret != null) {
+            return ret;
+        }
+        List<CompletableFuture<Void>> required = new ArrayList<>();
+        for (String s : descriptors.get(name).getRequired()) {
+            required.add(schedule(s, tasks, executor, stepName, action, outcome, step));
+        }
+        IEvaluatePlugin plugin = registeredPlugins.get(name);
+        ret = CompletableFuture.allOf(required.toArray(new CompletableFuture[0])).thenRunAsync(() -> {
+            IEvaluate.getLogger().info(action + " plugin " + name);
+            try (StartupProfiler.Span ignored = profiler.start("plugin", name, stepName)) {
+                step.run(plugin);
+                IEvaluate.getLogger().info("Successfully " + outcome + " plugin " + name);
+            } catch (Throwable t) {
+                IEvaluate.getLogger().fatal("Failure " + action.toLowerCase() + " " + name, t);
+                System.exit(-1); // Fatal fail to prevent security leak (from, e.g., an authentication plugin)
+            }
+        }, executor);
+        tasks.put(name, ret);
+        return ret;
+    }
+
+    private void checkAcyclic(String name, Set<String> visiting, Set<String> visited) {
+        if (visited.contains(name)) {
+            return;
+        }
+        if (!visiting.add(name)) {
+            IEvaluate.getLogger().fatal("Circular dependencies in plugin, dependency graph for " + name + " resulted in a cyclic load");
+            System.exit(-1); // Fatal exit
+        }
+        PluginDescriptor descriptor = descriptors.get(name);
+        if (descriptor == null || !registeredPlugins.containsKey(name)) {
+            IEvaluate.getLogger().fatal("Required plugin " + name + " is not present, dependency chain: " + visiting);
+            System.exit(-1); // Fatal exit
+        }
+        for (String s : descriptor.getRequired()) {
+            checkAcyclic(s, visiting, visited);
+        }
+        visiting.remove(name);
+        visited.add(name);
+    }
+
+    public void addReloadListener(PluginReloadListener listener) {
+        reloadListeners.add(listener);
+    }
+
+    /**
+     * Reloads a plugin from the JAR it was loaded from, e.g. after the JAR was replaced
+     * @see #reloadPlugin(String, File)
+     */
+    public boolean reloadPlugin(String name) {
+        PluginClassLoader current = pluginClassLoaders.get(name);
+        if (current == null) {
+            IEvaluate.getLogger().warn("Attempted to reload unknown plugin " + name);
+            return false;
+        }
+        return reloadPlugin(name, current.getPluginFile());
+    }
+
+    /**
+     * Replaces a plugin with the version contained in the supplied JAR without restarting the server. The plugin and
+     * the plugins (transitively) depending on it are quiesced, i.e. {@link #getPlugin(String, Class)} waits for them
+     * until the reload completes (see {@link #awaitReload}), and are reinstantiated from new class loaders and re-run
+     * through onInit/onEnable in dependency order. All other plugins keep serving throughout. Plugins implementing
+     * {@link AutoCloseable} are closed before being replaced. The old class loaders are closed, releasing their JARs.
+     * <br>
+     * If the new plugins cannot be instantiated, the old plugins are kept. If onInit/onEnable of a new plugin fails,
+     * the affected plugins are unregistered rather than terminating the server.
+     * @param name The name of the plugin to reload
+     * @param jar The JAR to load the new version of the plugin from
+     * @return True if the plugin and its dependents were reloaded successfully
+     */
+    public synchronized boolean reloadPlugin(String name, File jar) {
+        if (!registeredPlugins.containsKey(name)) {
+            IEvaluate.getLogger().warn("Attempted to reload unknown plugin " + name);
+            return false;
+        }
+        // Read the new version's descriptor and validate that it can replace the current one
+        PluginDescriptor descriptor;
+        try {
+            PluginIndexCache.Entry entry = indexCache.get(jar);
+            if (entry.getDescriptor() == null) {
+                IEvaluate.getLogger().error("Cannot reload " + name + ", " + jar.getName() + " has no plugin.json");
+                return false;
+            }
+            descriptor = new ObjectMapper().treeToValue(entry.getDescriptor(), PluginDescriptor.class);
+        } catch (IOException e) {
+            IEvaluate.getLogger().error("Cannot reload " + name + ", failed to read " + jar.getName(), e);
+            return false;
+        }
+        if (!name.equals(descriptor.getName())) {
+            IEvaluate.getLogger().error("Cannot reload " + name + ", " + jar.getName() + " contains plugin " + descriptor.getName());
+            return false;
+        }
+        List<String> affected = dependentsInOrder(name, descriptor);
+        for (String s : descriptor.getRequired()) {
+            if (!registeredPlugins.containsKey(s) || affected.contains(s)) {
+                IEvaluate.getLogger().error("Cannot reload " + name + ", required plugin " + s + " is missing or depends on " + name);
+                return false;
+            }
+        }
+        IEvaluate.getLogger().info("Reloading plugins " + affected);
+
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        CURRENT_RELOAD.set(gate);
+        try {
+            return reload(name, jar, descriptor, affected, gate);
+        } finally {
+            CURRENT_RELOAD.remove();
+            if (!gate.isDone()) { // Only if the reload itself failed unexpectedly
+                affected.forEach(quiesced::remove);
+                gate.complete(null);
+            }
+        }
+    }
+
+    private boolean reload(String name, File jar, PluginDescriptor descriptor, List<String> affected, CompletableFuture<Void> gate) {
+        Map<String, PluginClassLoader> oldLoaders = new LinkedHashMap<>();
+        Map<String, PluginDescriptor> oldDescriptors = new HashMap<>();
+        Map<String, PluginClassLoader> newLoaders = new LinkedHashMap<>();
+        Map<String, IEvaluatePlugin> newPlugins = new LinkedHashMap<>();
+        try {
+            affected.forEach(s -> quiesced.put(s, gate));
+            // Swap in new class loaders first, so that dependents resolve classes against the new versions
+            for (String s : affected) {
+                PluginDescriptor d = s.equals(name) ? descriptor : descriptors.get(s);
+                PluginClassLoader old = pluginClassLoaders.get(s);
+                File f = s.equals(name) ? jar : old.getPluginFile();
+                PluginClassLoader classLoader = new PluginClassLoader(this, d, f, getClass().getClassLoader());
+                PluginIndexCache.Entry entry = indexCache.get(f);
+                classLoader.setIndex(entry.getClasses(), entry.getResources());
+                oldLoaders.put(s, old);
+                oldDescriptors.put(s, descriptors.get(s));
+                newLoaders.put(s, classLoader);
+                pluginClassLoaders.put(s, classLoader);
+                descriptors.put(s, d);
+            }
+            indexCache.save();
+            ObjectMapper om = new ObjectMapper();
+            for (String s : affected) {
+                File pluginConfDir = prepareConfiguration(om, pluginConfigDir, s, newLoaders.get(s));
+                if (pluginConfDir == null) {
+                    throw new IOException("Could not create plugin configuration directory for " + s);
+                }
+                newPlugins.put(s, instantiatePlugin(descriptors.get(s), newLoaders.get(s), pluginConfDir));
+            }
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Could not load new version of " + name + ", keeping the current version", t);
+            pluginClassLoaders.putAll(oldLoaders);
+            descriptors.putAll(oldDescriptors);
+            closeAll(newLoaders.values());
+            affected.forEach(quiesced::remove);
+            gate.complete(null);
+            return false;
+        }
+
+        // Point of no return: release the old plugins and anything registered from their classes
+        Set<ClassLoader> unloading = new HashSet<>(oldLoaders.values());
+        Set<ClassLoader> reloaded = new HashSet<>(newLoaders.values());
+        notifyReloadListeners(l -> l.pluginsUnloading(unloading));
+        List<String> reversed = new ArrayList<>(affected);
+        Collections.reverse(reversed);
+        for (String s : reversed) { // Dependents first
+            IEvaluatePlugin old = registeredPlugins.get(s);
+            if (old instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) old).close();
+                } catch (Throwable t) {
+                    IEvaluate.getLogger().warn("Failure closing previous version of plugin " + s, t);
+                }
+            }
+        }
+        registeredPlugins.putAll(newPlugins);
+        boolean success = runReloadStep(affected, "Initializing", "initialized", IEvaluatePlugin::onInit)
+                && runReloadStep(affected, "Enabling", "enabled", IEvaluatePlugin::onEnable);
+        if (!success) {
+            affected.forEach(registeredPlugins::remove);
+        }
+        notifyReloadListeners(l -> l.pluginsReloaded(reloaded));
+        closeAll(oldLoaders.values());
+        affected.forEach(quiesced::remove);
+        gate.complete(null);
+        if (success) {
+            IEvaluate.getLogger().info("Successfully reloaded plugins " + affected);
+        } else {
+            IEvaluate.getLogger().error("Failed to reload " + name + ", unregistered plugins " + affected);
+        }
+        return success;
+    }
+
+    // The named plugin and all plugins transitively requiring it, ordered such that required plugins come first
+    private List<String> dependentsInOrder(String name, PluginDescriptor replacement) {
+        Set<String> affected = new HashSet<>();
+        affected.add(name);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, PluginDescriptor> e : descriptors.entrySet()) {
+                if (!affected.contains(e.getKey()) && !Collections.disjoint(e.getValue().getRequired(), affected)) {
+                    affected.add(e.getKey());
+                    changed = true;
+                }
+            }
+        }
+        List<String> ret = new ArrayList<>();
+        for (String s : new TreeSet<>(affected)) {
+            addInOrder(s, affected, replacement, ret);
+        }
+        return ret;
+    }
+
+    private void addInOrder(String name, Set<String> affected, PluginDescriptor replacement, List<String> ordered) {
+        if (ordered.contains(name)) {
+            return;
+        }
+        PluginDescriptor descriptor = name.equals(replacement.getName()) ? replacement : descriptors.get(name);
+        for (String s : descriptor.getRequired()) {
+            if (affected.contains(s) && !s.equals(name)) {
+                addInOrder(s, affected, replacement, ordered);
+            }
+        }
+        ordered.add(name);
+    }
+
+    private boolean runReloadStep(List<String> affected, String action, String outcome, LifecycleStep step) {
+        for (String s : affected) {
+            IEvaluate.getLogger().info(action + " plugin " + s);
+            try {
+                step.run(registeredPlugins.get(s));
+                IEvaluate.getLogger().info("Successfully " + outcome + " plugin " + s);
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure " + action.toLowerCase() + " " + s, t);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void notifyReloadListeners(Consumer<PluginReloadListener> event) {
+        for (PluginReloadListener listener : reloadListeners) {
+            try {
+                event.accept(listener);
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure notifying " + listener.getClass().getName() + " of plugin reload", t);
+            }
+        }
+    }
+
+    private static void closeAll(Collection<PluginClassLoader> classLoaders) {
+        for (PluginClassLoader classLoader : classLoaders) {
+            try {
+                classLoader.close();
+            } catch (IOException e) {
+                IEvaluate.getLogger().warn("Failure closing class loader of " + classLoader.getPluginFile().getName(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface LifecycleStep {
+        void run(IEvaluatePlugin plugin) throws Exception;
+    }
+
     private JsonNode mergeDefaultconfigIntoCurrent(JsonNode defaultConfig, JsonNode currConfig, String currPlugin) {
         if (!(defaultConfig instanceof ObjectNode)) {
             return currConfig; // This is a value, not a mapping, so we just return the default value
@@ -190,6 +567,10 @@ public class PluginManagerCore implements PluginManager {
 
     @Override
     public <T extends IEvaluatePlugin> T getPlugin(String name, Class<T> clazz) {
+        CompletableFuture<Void> reload = quiesced.get(name);
+        if (reload != null) {
+            awaitReload(reload, "plugin " + name); // Being reloaded, wait for the new version
+        }
         IEvaluatePlugin plugin = registeredPlugins.get(name);
         if (plugin == null) {
             return null;
@@ -203,6 +584,31 @@ public class PluginManagerCore implements PluginManager {
         }
     }
 
+    /**
+     * Waits for a plugin reload to complete, unless called from the thread running the reload or a thread it started.
+     * Plugins may also hand work to threads they did not start (e.g. a shared executor) and wait for it, so waits are
+     * bounded by -Dievaluate.plugins.reload.wait (in milliseconds, 30000 by default), after which the caller proceeds
+     * without the reload having completed rather than deadlocking it
+     * @param reload Completed once the reload finishes
+     * @param waiting What is being waited for, for logging
+     */
+    public static void awaitReload(CompletableFuture<?> reload, String waiting) {
+        CompletableFuture<Void> current = CURRENT_RELOAD.get();
+        if (reload.isDone() || (current != null && !current.isDone())) {
+            return; // Part of a reload in progress, which would otherwise wait on itself
+        }
+        try {
+            reload.get(RELOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            IEvaluate.getLogger().warn("Timed out after " + RELOAD_WAIT_MILLIS + "ms waiting for the reload of "
+                    + waiting + ", continuing without it");
+        } catch (ExecutionException e) {
+            // Reload outcomes are reported by reloadPlugin
+        }
+    }
+
     @Override
     public Map<String, IEvaluatePlugin> getRegisteredPlugins() {
         return registeredPlugins;
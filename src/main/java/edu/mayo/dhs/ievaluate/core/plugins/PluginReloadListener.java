@@ -0,0 +1,22 @@
+package edu.mayo.dhs.ievaluate.core.plugins;
+
+import java.util.Set;
+
+/**
+ * Notified when plugins are reloaded (see {@link PluginManagerCore#reloadPlugin(String, java.io.File)}), so that
+ * anything registered by or instantiated from the old plugin classes can be released and re-created from the new ones.
+ * Otherwise, such references keep the old class loaders from being garbage collected.
+ */
+public interface PluginReloadListener {
+    /**
+     * Invoked once the reloaded plugins have been quiesced, before their replacements are initialized
+     * @param unloading The class loaders of the plugins being replaced
+     */
+    void pluginsUnloading(Set<ClassLoader> unloading);
+
+    /**
+     * Invoked once the replacement plugins have been initialized and enabled, or failed to be
+     * @param reloaded The class loaders of the replacement plugins
+     */
+    void pluginsReloaded(Set<ClassLoader> reloaded);
+}
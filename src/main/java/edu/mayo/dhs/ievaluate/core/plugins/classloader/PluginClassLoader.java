@@ -2,32 +2,46 @@ package edu.mayo.dhs.ievaluate.core.plugins.classloader;
 
 import edu.mayo.dhs.ievaluate.api.IEvaluate;
 import edu.mayo.dhs.ievaluate.api.plugins.PluginDescriptor;
+import edu.mayo.dhs.ievaluate.core.monitoring.Counter;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
 import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
 import java.net.JarURLConnection;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
-import java.util.List;
-import java.util.WeakHashMap;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 /**
  * Special class-loader for plugins that prioritizes children first so as to reduce dependency overwrite issues
  * One class-loader per plugin.
+ *
+ * Given indexes (see {@link #setIndex(Set, Set)}) for this plugin and its dependencies, each class is resolved through
+ * a class name to owning loader index and defined directly from its entry in the owner's JAR, rather than by trying
+ * each JAR's class path in turn, so lookups of classes that plugins do not contain never throw and catch exceptions.
+ * Resources absent from the plugin JAR skip the JAR altogether. Classes missing altogether are remembered in a bounded
+ * negative cache. Parallel capable, so unrelated classes are loaded concurrently.
  */
 public class PluginClassLoader extends URLClassLoader {
     private PluginManagerCore pluginManager;
     private PluginDescriptor descriptor;
+    private final File pluginFile;
 
     public PluginClassLoader(PluginManagerCore pluginManager, PluginDescriptor descriptor, File pluginFile, ClassLoader parent) {
         super(new URL[0], parent); // Start off with empty URL classpath (we will add plugin JAR) then delegate back ot parent
         this.pluginManager = pluginManager;
         this.descriptor = descriptor;
+        this.pluginFile = pluginFile;
         this.addJar(pluginFile);
     }
 
@@ -48,9 +62,132 @@ public class PluginClassLoader extends URLClassLoader {
 
     private final WeakHashMap<Closeable,Void> openFiles = new WeakHashMap<>();
 
+    private static final int MISSING_CACHE_SIZE = 4096;
+    private static final Map<String, PluginClassLoader> UNINDEXED = Collections.emptyMap();
+    private static final String CLASS_SUFFIX = ".class";
+    // Lookups answered by an already loaded class, the negative cache, a plugin JAR, the parent, or not at all
+    private static final Counter LOADED_HITS = RuntimeMetrics.counter("plugins.classloader.loadedHits");
+    private static final Counter MISSING_HITS = RuntimeMetrics.counter("plugins.classloader.missingHits");
+    private static final Counter PLUGIN_LOADS = RuntimeMetrics.counter("plugins.classloader.pluginLoads");
+    private static final Counter PARENT_LOADS = RuntimeMetrics.counter("plugins.classloader.parentLoads");
+    private static final Counter MISSES = RuntimeMetrics.counter("plugins.classloader.misses");
+
+    static {
+        ClassLoader.registerAsParallelCapable(); // Lock per class name rather than per loader
+    }
+
+    private volatile Set<String> classIndex; // Null if unknown
+    private volatile Set<String> resourceIndex; // Null if unknown
+    private volatile Map<String, PluginClassLoader> classOwners; // Built lazily, see classOwners()
+    private JarFile jar; // Opened on the first indexed class definition, guarded by openFiles
+    private URL jarUrl;
+    private boolean closed;
+    private volatile MethodHandles.Lookup lookup; // Created on first use, see lookup()
+    // Bounded LRU of class names not found in this plugin, its dependencies or the parent
+    private final Set<String> missing = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MISSING_CACHE_SIZE;
+                }
+            }));
+
+    public PluginDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return The plugin JAR this class loader was created for
+     */
+    public File getPluginFile() {
+        return pluginFile;
+    }
+
+    /**
+     * Supplies the names of all classes contained in the plugin JAR, so that lookups of other classes skip the JAR
+     * @param classIndex The binary names of the classes in the plugin JAR
+     */
+    public void setClassIndex(Set<String> classIndex) {
+        setIndex(classIndex, null);
+    }
+
+    /**
+     * Supplies the names of all entries in the plugin JAR, so that lookups of other classes and resources skip the JAR
+     * @param classIndex The binary names of the classes in the plugin JAR
+     * @param resourceIndex The names of all other entries in the plugin JAR, or null if unknown
+     */
+    public void setIndex(Set<String> classIndex, Set<String> resourceIndex) {
+        this.classIndex = classIndex;
+        this.resourceIndex = classIndex == null ? null : resourceIndex;
+        invalidateIndex();
+    }
+
+    /**
+     * @param className The binary name of a class
+     * @return False if the class is known not to be contained in the plugin JAR
+     */
+    public boolean mayDefine(String className) {
+        Set<String> index = classIndex;
+        return index == null || index.contains(className);
+    }
+
+    /**
+     * @param name The name of a resource
+     * @return False if the resource is known not to be contained in the plugin JAR
+     */
+    public boolean mayContainResource(String name) {
+        Set<String> classes = classIndex;
+        Set<String> resources = resourceIndex;
+        if (classes == null || resources == null) {
+            return true;
+        }
+        if (name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/")) {
+            return classes.contains(name.substring(0, name.length() - CLASS_SUFFIX.length()).replace('/', '.'));
+        }
+        return resources.contains(name) || resources.contains(name + "/"); // As directory entries are looked up
+    }
+
+    /**
+     * Classes generated through the returned lookup, e.g. by {@link java.lang.invoke.LambdaMetafactory}, are defined
+     * by this loader and so link against the plugin's classes, which classes generated alongside the core cannot.
+     * @return A lookup with full privileges in a copy of {@link PluginLookup} defined by this loader
+     * @throws ReflectiveOperationException if the copy could not be defined
+     */
+    public MethodHandles.Lookup lookup() throws ReflectiveOperationException {
+        MethodHandles.Lookup ret = lookup;
+        if (ret != null) {
+            return ret;
+        }
+        String name = PluginLookup.class.getName();
+        synchronized (getClassLoadingLock(name)) {
+            if (lookup == null) {
+                Class<?> copy = findLoadedClass(name);
+                if (copy == null) {
+                    byte[] bytes;
+                    try (InputStream in = PluginLookup.class.getResourceAsStream(PluginLookup.class.getSimpleName() + CLASS_SUFFIX)) {
+                        if (in == null) {
+                            throw new ClassNotFoundException(name);
+                        }
+                        bytes = readFully(in, -1);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                    copy = defineClass(name, bytes, 0, bytes.length, PluginLookup.class.getProtectionDomain());
+                }
+                lookup = (MethodHandles.Lookup) copy.getMethod("lookup").invoke(null);
+            }
+            return lookup;
+        }
+    }
+
     @Override
     public void addURL(URL url) { // Public access to protected method
         super.addURL(url);
+        if (classIndex != null) {
+            classIndex = null; // Contents of the added URL are not indexed
+            resourceIndex = null;
+            invalidateIndex();
+        }
     }
 
     private void addJar(File jar) {
@@ -71,32 +208,170 @@ public class PluginClassLoader extends URLClassLoader {
             // Check if already loaded
             Class<?> loadedClass = findLoadedClass(className);
             if (loadedClass != null) {
+                LOADED_HITS.increment();
                 return loadedClass;
             }
 
-            // Not loaded, so first try to find in direct plugin
-            try {
-                loadedClass = findClass(className);
+            // Known to be missing everywhere
+            if (missing.contains(className)) {
+                MISSING_HITS.increment();
+                throw new MissingClassException(className);
+            }
+
+            // Look in the direct plugin, then its dependencies
+            Map<String, PluginClassLoader> owners = classOwners();
+            if (owners != null) {
+                PluginClassLoader owner = owners.get(className);
+                loadedClass = owner == null ? null : owner.findLocal(className);
+            } else {
+                loadedClass = findUnindexed(className);
+            }
+            if (loadedClass != null) {
+                PLUGIN_LOADS.increment();
                 return loadedClass;
+            }
+
+            // Not found within plugin (or dependency) classes, return control to standard classloader. If the JARs are
+            // indexed, the index has no owner for the class, so only the parent can define it
+            try {
+                Class<?> ret = owners != null ? loadParentClass(className) : super.loadClass(className);
+                PARENT_LOADS.increment();
+                return ret;
             } catch (ClassNotFoundException e) {
-                // try next step
+                MISSES.increment();
+                missing.add(className);
+                throw new MissingClassException(className);
             }
+        }
+    }
 
-            // Look in Dependencies
-            loadedClass = loadDependencyClass(className);
+    private Class<?> loadParentClass(String className) throws ClassNotFoundException {
+        ClassLoader parent = getParent();
+        return parent != null ? parent.loadClass(className) : findSystemClass(className);
+    }
+
+    /**
+     * Discards the class index and negative lookup cache, e.g. after a dependency's class loader was replaced
+     */
+    public void invalidateIndex() {
+        classOwners = null;
+        missing.clear();
+    }
+
+    // Defines a class indexed as contained in this plugin's JAR directly from its entry
+    private Class<?> findLocal(String className) {
+        synchronized (getClassLoadingLock(className)) {
+            Class<?> loadedClass = findLoadedClass(className);
             if (loadedClass != null) {
                 return loadedClass;
             }
+            try {
+                return defineFromJar(className);
+            } catch (IOException e) {
+                IEvaluate.getLogger().warn("Failed to read class " + className + " from " + pluginFile.getName(), e);
+                return null;
+            }
+        }
+    }
+
+    private Class<?> defineFromJar(String className) throws IOException {
+        JarFile jar;
+        URL url;
+        synchronized (openFiles) {
+            if (closed) {
+                return null;
+            }
+            if (this.jar == null) {
+                File file = pluginFile.getCanonicalFile();
+                this.jar = new JarFile(file);
+                this.jarUrl = file.toURI().toURL();
+            }
+            jar = this.jar;
+            url = jarUrl;
+        }
+        JarEntry entry = jar.getJarEntry(className.replace('.', '/') + CLASS_SUFFIX);
+        if (entry == null) {
+            return null; // Only if the index is stale
+        }
+        byte[] bytes;
+        try (InputStream in = jar.getInputStream(entry)) {
+            bytes = readFully(in, entry.getSize());
+        }
+        definePackageOf(packageOf(className), jar.getManifest(), url);
+        // Signers are only known once the entry has been read in full
+        return defineClass(className, bytes, 0, bytes.length, new CodeSource(url, entry.getCodeSigners()));
+    }
 
-            // Not found within plugin (or dependency) classes, return control to standard classloader
-            return super.loadClass(className);
+    // As URLClassLoader defines the packages of the classes it loads
+    @SuppressWarnings("deprecation")
+    private void definePackageOf(String packageName, Manifest manifest, URL url) {
+        if (packageName.isEmpty() || getPackage(packageName) != null) {
+            return;
+        }
+        try {
+            if (manifest != null) {
+                definePackage(packageName, manifest, url);
+            } else {
+                definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (IllegalArgumentException e) {
+            // Defined concurrently by another class of the package
+        }
+    }
 
+    private static byte[] readFully(InputStream in, long size) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
         }
+        return out.toByteArray();
     }
 
-    private Class<?> loadDependencyClass(String className) {
-        List<String> dependencies = descriptor.getRequired();
-        for (String dependency : dependencies) {
+    /**
+     * The loader of this plugin or its transitive dependencies defining each class, the first in resolution order
+     * (this plugin, then each dependency and its own dependencies in declaration order) if several do. Built on first
+     * use, as dependency loaders may be created after this one.
+     * @return The index, or null if a loader in the dependency closure has no class index
+     */
+    private Map<String, PluginClassLoader> classOwners() {
+        Map<String, PluginClassLoader> ret = classOwners;
+        if (ret == null) {
+            ret = buildClassOwners();
+            classOwners = ret == null ? UNINDEXED : ret;
+        }
+        return ret == UNINDEXED ? null : ret;
+    }
+
+    private Map<String, PluginClassLoader> buildClassOwners() {
+        Map<String, PluginClassLoader> ret = new HashMap<>();
+        Deque<PluginClassLoader> pending = new ArrayDeque<>();
+        Set<PluginClassLoader> visited = new HashSet<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            PluginClassLoader loader = pending.pop();
+            if (!visited.add(loader)) {
+                continue;
+            }
+            Set<String> classes = loader.classIndex;
+            if (classes == null) {
+                return null;
+            }
+            for (String className : classes) {
+                ret.putIfAbsent(className, loader);
+            }
+            List<PluginClassLoader> dependencies = loader.dependencyLoaders();
+            for (int i = dependencies.size() - 1; i >= 0; i--) { // Reversed, so the first dependency is popped first
+                pending.push(dependencies.get(i));
+            }
+        }
+        return ret;
+    }
+
+    private List<PluginClassLoader> dependencyLoaders() {
+        List<PluginClassLoader> ret = new ArrayList<>();
+        for (String dependency : descriptor.getRequired()) {
             ClassLoader classLoader = pluginManager.getPluginClassLoaders().get(dependency.toLowerCase());
 
             // If not found, well there is an issue but let's not die here
@@ -104,7 +379,25 @@ public class PluginClassLoader extends URLClassLoader {
                 IEvaluate.getLogger().error(String.format("%s has dependency on %s but no corresponding classloader was found", descriptor.getName(), dependency));
                 continue;
             }
+            ret.add((PluginClassLoader) classLoader);
+        }
+        return ret;
+    }
 
+    // Fallback for when class indexes are unavailable: look up the JARs themselves
+    private Class<?> findUnindexed(String className) {
+        if (mayDefine(className)) {
+            try {
+                return findClass(className);
+            } catch (ClassNotFoundException e) {
+                // try next step
+            }
+        }
+        return loadDependencyClass(className);
+    }
+
+    private Class<?> loadDependencyClass(String className) {
+        for (PluginClassLoader classLoader : dependencyLoaders()) {
             try {
                 return classLoader.loadClass(className);
             } catch (ClassNotFoundException ignored) {
@@ -115,10 +408,68 @@ public class PluginClassLoader extends URLClassLoader {
         return null;
     }
 
+    private static String packageOf(String className) {
+        int idx = className.lastIndexOf('.');
+        return idx < 0 ? "" : className.substring(0, idx);
+    }
+
+    /**
+     * Thrown for lookups of classes not found in this plugin, its dependencies or the parent; skips filling in the stack
+     * trace, which dominates the cost of constructing an exception
+     */
+    private static final class MissingClassException extends ClassNotFoundException {
+        MissingClassException(String className) {
+            super(className);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    /**
+     * Closes the plugin JAR and any resource streams opened through {@link #getResourceAsStream(String)}, so that the
+     * JAR can be replaced and this loader (and its classes) garbage collected once no longer referenced
+     */
+    @Override
+    public void close() throws IOException {
+        List<Closeable> resources;
+        synchronized (openFiles) {
+            resources = new ArrayList<>(openFiles.keySet());
+            openFiles.clear();
+            if (jar != null) {
+                resources.add(jar);
+                jar = null;
+            }
+            closed = true;
+        }
+        classIndex = null;
+        resourceIndex = null;
+        classOwners = UNINDEXED; // Do not rebuild, this would pin the dependency loaders
+        missing.clear();
+        IOException failure = null;
+        for (Closeable resource : resources) {
+            try {
+                resource.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        super.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     @Override
     public URL getResource(String name) {
         // Check locally
-        URL url = findResource(name);
+        URL url = mayContainResource(name) ? findResource(name) : null;
         if (url != null) {
             return url;
         }
@@ -130,7 +481,7 @@ public class PluginClassLoader extends URLClassLoader {
     @Override
     public InputStream getResourceAsStream(String name) {
         // Check locally
-        URL url = findResource(name);
+        URL url = mayContainResource(name) ? findResource(name) : null;
         if (url != null) {
             try {
                 URLConnection urlc = url.openConnection();
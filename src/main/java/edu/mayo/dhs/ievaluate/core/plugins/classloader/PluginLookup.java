@@ -0,0 +1,17 @@
+package edu.mayo.dhs.ievaluate.core.plugins.classloader;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Copied into each plugin class loader by {@link PluginClassLoader#lookup()}, so that the core can obtain a lookup with
+ * full privileges in a class defined by that loader. Grants no access to the plugin's own classes beyond their public
+ * members.
+ */
+public final class PluginLookup {
+    private PluginLookup() {
+    }
+
+    public static MethodHandles.Lookup lookup() {
+        return MethodHandles.lookup();
+    }
+}
@@ -0,0 +1,275 @@
+package edu.mayo.dhs.ievaluate.core.startup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginIndexCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+
+/**
+ * Generation and validation of a class data sharing (AppCDS) archive of the classes loaded while starting up the core
+ * and all plugins, so that later JVMs can map those classes in pre-parsed and pre-verified rather than loading them.
+ *
+ * A training run ({@link #train(File)}) boots the core in child JVMs: once without an archive to measure a baseline,
+ * once to record the archive, and once with the archive to measure the time saved. On Java 13 and later the archive is
+ * a dynamic archive, which includes classes loaded by plugin class loaders; on Java 10 to 12 it is a static archive of
+ * the class path only, which Java 10 only uses with -XX:+UseAppCDS. Older versions are not supported. Each child JVM
+ * writes its startup time to a file named by {@link #EXIT_AFTER_STARTUP_ARGUMENT}, rather than reporting it on its
+ * console output alongside whatever the core and plugins log there.
+ *
+ * The archive is used by launching the JVM with the argument file written next to it, i.e. java @cds/jvm.args. On
+ * startup ({@link #check(File, long)}), the archive is validated against the current JVM and plugin JARs. A stale
+ * archive is disabled by emptying the argument file, so later launches fall back to regular class loading until the
+ * training run is repeated.
+ */
+public final class ClassDataSharing {
+    public static final String TRAIN_ARGUMENT = "--cds-train";
+    /** Followed by =&lt;file&gt;, the file to write the startup time in milliseconds to before exiting */
+    public static final String EXIT_AFTER_STARTUP_ARGUMENT = "--exit-after-startup";
+
+    private static final String DIRECTORY = "cds";
+    private static final String ARCHIVE_FILE = "ievaluate.jsa";
+    private static final String CLASS_LIST_FILE = "classes.lst";
+    private static final String MANIFEST_FILE = "archive.json";
+    private static final String ARGS_FILE = "jvm.args";
+    private static final String STARTUP_FILE = "startup.tmp";
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private ClassDataSharing() {
+    }
+
+    /**
+     * Performs a training run, producing an archive and argument file under the working directory's cds folder
+     * @param workingDir The working directory
+     * @return True if an archive was produced
+     * @throws IOException if a child JVM could not be run
+     * @throws InterruptedException if interrupted while waiting for a child JVM
+     */
+    public static boolean train(File workingDir) throws IOException, InterruptedException {
+        int javaVersion = javaFeatureVersion();
+        if (javaVersion < 10) {
+            logger().error("Class data sharing archives of application classes require Java 10 or later, running " + javaVersion);
+            return false;
+        }
+        File dir = new File(workingDir, DIRECTORY);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create class data sharing directory " + dir);
+        }
+        File archive = new File(dir, ARCHIVE_FILE);
+        File args = new File(dir, ARGS_FILE);
+        Files.deleteIfExists(archive.toPath());
+        writeArgs(args, null); // Do not pick up a previous archive while training
+
+        long baseline = runChild(workingDir, Collections.singletonList("-Xshare:auto"));
+        if (javaVersion >= 13) {
+            runChild(workingDir, Collections.singletonList("-XX:ArchiveClassesAtExit=" + archive.getAbsolutePath()));
+        } else {
+            File classList = new File(dir, CLASS_LIST_FILE);
+            runChild(workingDir, withAppCds("-XX:DumpLoadedClassList=" + classList.getAbsolutePath()));
+            List<String> dump = new ArrayList<>();
+            dump.add(javaExecutable());
+            dump.addAll(withAppCds("-Xshare:dump", "-XX:SharedClassListFile=" + classList.getAbsolutePath(),
+                    "-XX:SharedArchiveFile=" + archive.getAbsolutePath(), "-cp", System.getProperty("java.class.path")));
+            run(dump);
+        }
+        if (!archive.isFile()) {
+            logger().error("Training run did not produce a class data sharing archive");
+            return false;
+        }
+        long archived = runChild(workingDir, withAppCds("-Xshare:auto", "-XX:SharedArchiveFile=" + archive.getAbsolutePath()));
+
+        ObjectNode manifest = fingerprint(workingDir);
+        manifest.put("baselineMillis", baseline);
+        manifest.put("archivedMillis", archived);
+        OM.writerWithDefaultPrettyPrinter().writeValue(new File(dir, MANIFEST_FILE), manifest);
+        writeArgs(args, archive);
+        logger().info("Created class data sharing archive " + archive + " (" + archive.length() / 1024
+                + "KiB): startup took " + archived + "ms with the archive versus " + baseline + "ms without. Launch with @"
+                + args.getAbsolutePath() + " to use it");
+        return true;
+    }
+
+    /**
+     * Validates the archive produced by a previous training run, if any, and reports the startup time saved by it
+     * @param workingDir The working directory
+     * @param startupMillis How long the current startup took
+     * @return The status of the archive
+     */
+    public static Status check(File workingDir, long startupMillis) {
+        File dir = new File(workingDir, DIRECTORY);
+        File manifestFile = new File(dir, MANIFEST_FILE);
+        if (!manifestFile.isFile()) {
+            return Status.NONE;
+        }
+        try {
+            JsonNode manifest = OM.readTree(manifestFile);
+            File archive = new File(dir, ARCHIVE_FILE);
+            if (!archive.isFile() || !fingerprint(workingDir).equals(withoutTimings(manifest))) {
+                logger().warn("Class data sharing archive is out of date (the JVM or plugin JARs changed) and has been"
+                        + " disabled, rerun with " + TRAIN_ARGUMENT + " to recreate it");
+                writeArgs(new File(dir, ARGS_FILE), null);
+                return Status.STALE;
+            }
+            if (!usingArchive(archive)) {
+                logger().info("A class data sharing archive is available but not in use, launch with @"
+                        + new File(dir, ARGS_FILE).getAbsolutePath() + " to use it");
+                return Status.UNUSED;
+            }
+            long baseline = manifest.path("baselineMillis").asLong();
+            logger().info("Started using class data sharing archive in " + startupMillis + "ms, "
+                    + (baseline - startupMillis) + "ms faster than the " + baseline + "ms measured without it");
+            return Status.ACTIVE;
+        } catch (IOException e) {
+            logger().warn("Could not validate class data sharing archive", e);
+            return Status.STALE;
+        }
+    }
+
+    /**
+     * Writes the startup time of a child JVM of a training run, if the arguments request it
+     * @param options The arguments following the working directory
+     * @param startupMillis How long startup took
+     * @return True if the JVM was started by a training run and should now exit
+     * @throws IOException if the startup time could not be written
+     */
+    public static boolean reportStartup(List<String> options, long startupMillis) throws IOException {
+        for (String option : options) {
+            if (option.startsWith(EXIT_AFTER_STARTUP_ARGUMENT + "=")) {
+                File file = new File(option.substring(EXIT_AFTER_STARTUP_ARGUMENT.length() + 1));
+                Files.write(file.toPath(), String.valueOf(startupMillis).getBytes(StandardCharsets.UTF_8));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public enum Status {
+        /** No training run has been performed */
+        NONE,
+        /** The archive no longer matches the JVM or plugin JARs and has been disabled */
+        STALE,
+        /** The archive is valid, but this JVM was not launched with it */
+        UNUSED,
+        /** The archive is valid and in use */
+        ACTIVE
+    }
+
+    // The JVM and the exact plugin JARs the archive was created with
+    private static ObjectNode fingerprint(File workingDir) throws IOException {
+        ObjectNode ret = OM.createObjectNode();
+        ret.put("javaVersion", System.getProperty("java.vm.version"));
+        ret.put("javaHome", System.getProperty("java.home"));
+        ret.put("classPath", System.getProperty("java.class.path"));
+        ObjectNode jars = ret.putObject("plugins");
+        File pluginDir = new File(workingDir, "plugins");
+        File[] files = new File(pluginDir, "jars").listFiles((d, name) -> name.endsWith(".jar"));
+        if (files != null) {
+            Arrays.sort(files);
+            PluginIndexCache cache = new PluginIndexCache(new File(pluginDir, "plugin-index.json"));
+            for (File jar : files) {
+                jars.put(jar.getName(), cache.get(jar).getSha256());
+            }
+            cache.save();
+        }
+        return ret;
+    }
+
+    private static JsonNode withoutTimings(JsonNode manifest) {
+        ObjectNode ret = manifest.deepCopy();
+        ret.remove("baselineMillis");
+        ret.remove("archivedMillis");
+        return ret;
+    }
+
+    private static boolean usingArchive(File archive) {
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (arg.startsWith("-XX:SharedArchiveFile=") && new File(arg.substring(arg.indexOf('=') + 1)).getAbsoluteFile().equals(archive.getAbsoluteFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeArgs(File args, File archive) throws IOException {
+        StringBuilder content = new StringBuilder();
+        if (archive != null) {
+            for (String option : withAppCds("-Xshare:auto")) {
+                content.append(option).append('\n');
+            }
+            content.append("\"-XX:SharedArchiveFile=").append(archive.getAbsolutePath().replace("\\", "\\\\")).append("\"\n");
+        }
+        Files.write(args.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Static archives of application classes must be enabled explicitly up to Java 10, the option was removed in 11
+    private static List<String> withAppCds(String... options) {
+        List<String> ret = new ArrayList<>();
+        if (javaFeatureVersion() <= 10) {
+            ret.add("-XX:+UseAppCDS");
+        }
+        ret.addAll(Arrays.asList(options));
+        return ret;
+    }
+
+    // Boots the core in a child JVM with the supplied JVM options and returns the startup time it wrote
+    private static long runChild(File workingDir, List<String> jvmOptions) throws IOException, InterruptedException {
+        File startup = new File(new File(workingDir, DIRECTORY), STARTUP_FILE);
+        Files.deleteIfExists(startup.toPath());
+        List<String> command = new ArrayList<>();
+        command.add(javaExecutable());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("edu.mayo.dhs.ievaluate.core.IEvaluateCore");
+        command.add(workingDir.getAbsolutePath());
+        command.add(EXIT_AFTER_STARTUP_ARGUMENT + "=" + startup.getAbsolutePath());
+        try {
+            run(command);
+            return Long.parseLong(new String(Files.readAllBytes(startup.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (NoSuchFileException | NumberFormatException e) {
+            throw new IOException("Training JVM did not report its startup time", e);
+        } finally {
+            Files.deleteIfExists(startup.toPath());
+        }
+    }
+
+    private static void run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.add(line);
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            output.forEach(logger()::error);
+            throw new IOException("Training JVM exited with status " + exit + ": " + String.join(" ", command));
+        }
+    }
+
+    // Training runs happen before (and instead of) a server being registered
+    private static Logger logger() {
+        return IEvaluate.getServer() != null ? IEvaluate.getLogger() : LogManager.getLogger("Integrated Evaluation Framework");
+    }
+
+    private static String javaExecutable() {
+        return new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+    }
+
+    private static int javaFeatureVersion() {
+        String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
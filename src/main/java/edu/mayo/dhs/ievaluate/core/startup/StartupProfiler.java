@@ -0,0 +1,285 @@
+package edu.mayo.dhs.ievaluate.core.startup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records wall time, CPU time and heap allocation of startup steps, such as each {@link
+ * edu.mayo.dhs.ievaluate.api.IEvaluateServer.InitState} phase and each plugin's lifecycle steps.
+ *
+ * Steps are identified by a category, a subject (e.g. a plugin name) and optionally a step name. Steps recorded
+ * repeatedly under the same identity, e.g. unmarshalling each application of a type, are aggregated. CPU time and
+ * allocation are measured for the thread performing the step, so steps run concurrently are each accounted for, but a
+ * phase does not include work it hands off to other threads. Nothing is recorded once {@link #finish(long)} was called.
+ *
+ * Recording does not lock: steps are aggregated into a concurrent map of adders, as steps such as unmarshalling each
+ * application run once per item on many threads at once.
+ */
+public final class StartupProfiler {
+    /** A profiler that records nothing */
+    public static final StartupProfiler NONE = new StartupProfiler(false);
+
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private final boolean enabled;
+    private final long created = System.nanoTime();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final boolean cpuTime;
+    private final boolean allocation;
+    private final ConcurrentMap<List<String>, Step> steps = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile boolean finished;
+    private volatile long startupMillis = -1;
+
+    public StartupProfiler() {
+        this(true);
+    }
+
+    private StartupProfiler(boolean enabled) {
+        this.enabled = enabled;
+        this.cpuTime = enabled && threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+        this.allocation = enabled && threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Starts timing a step on the current thread, to be closed on the same thread once the step completes
+     * @param category The kind of step, e.g. "phase" or "plugin"
+     * @param subject What the step applies to, e.g. a plugin name
+     * @param step The step, or null if the subject only has one
+     */
+    public Span start(String category, String subject, String step) {
+        if (!enabled || finished) {
+            return Span.NOOP;
+        }
+        return new Span(this, Arrays.asList(category, subject, step));
+    }
+
+    /**
+     * Stops recording, e.g. once startup completed
+     * @param startupMillis The total startup time to report
+     */
+    public void finish(long startupMillis) {
+        this.startupMillis = startupMillis;
+        this.finished = true;
+    }
+
+    /**
+     * @return Whether anything is recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return A snapshot of all recorded steps, in the order they first started
+     */
+    public List<Entry> getEntries() {
+        List<Step> ordered = new ArrayList<>(steps.values());
+        ordered.sort(Comparator.comparingLong((Step step) -> step.firstStartNanos.get()).thenComparingLong(step -> step.sequence));
+        List<Entry> ret = new ArrayList<>(ordered.size());
+        for (Step step : ordered) {
+            ret.add(step.snapshot(created));
+        }
+        return ret;
+    }
+
+    /**
+     * @return The recorded steps grouped by category, subject and step
+     */
+    public ObjectNode toJson() {
+        ObjectNode ret = OM.createObjectNode();
+        ret.put("startupMillis", startupMillis);
+        ret.put("cpuTimeMeasured", cpuTime);
+        ret.put("allocationMeasured", allocation);
+        for (Entry e : getEntries()) {
+            ObjectNode subject = ret.with(e.category).with(e.subject);
+            e.toJson(e.step == null ? subject : subject.with(e.step));
+        }
+        return ret;
+    }
+
+    /**
+     * Writes the report returned by {@link #toJson()}
+     */
+    public void writeReport(File file) throws IOException {
+        OM.writerWithDefaultPrettyPrinter().writeValue(file, toJson());
+    }
+
+    private long cpuNanos() {
+        return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+    }
+
+    private long allocatedBytes() {
+        return allocation ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    private void record(List<String> key, long startNanos, long wallNanos, long cpuNanos, long allocated) {
+        if (finished) {
+            return;
+        }
+        Step step = steps.get(key);
+        if (step == null) {
+            Step added = new Step(key, startNanos, sequence.getAndIncrement());
+            step = steps.putIfAbsent(key, added);
+            if (step == null) {
+                step = added;
+            }
+        }
+        step.add(startNanos, wallNanos, cpuNanos, allocated);
+    }
+
+    /**
+     * The running totals of a step, updated concurrently
+     */
+    private static final class Step {
+        private final List<String> key;
+        private final long sequence; // Orders steps first started at the same time
+        private final AtomicLong firstStartNanos;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder wallNanos = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        private Step(List<String> key, long startNanos, long sequence) {
+            this.key = key;
+            this.sequence = sequence;
+            this.firstStartNanos = new AtomicLong(startNanos);
+        }
+
+        private void add(long startNanos, long wallNanos, long cpuNanos, long allocatedBytes) {
+            long first;
+            while (startNanos - (first = firstStartNanos.get()) < 0 && !firstStartNanos.compareAndSet(first, startNanos)) {
+                // Raced with another span of the step, retry
+            }
+            this.count.increment();
+            this.wallNanos.add(wallNanos);
+            this.cpuNanos.add(cpuNanos);
+            this.allocatedBytes.add(allocatedBytes);
+        }
+
+        private Entry snapshot(long createdNanos) {
+            Entry ret = new Entry(key.get(0), key.get(1), key.get(2), (firstStartNanos.get() - createdNanos) / 1_000_000);
+            ret.count = count.sum();
+            ret.wallNanos = wallNanos.sum();
+            ret.cpuNanos = cpuNanos.sum();
+            ret.allocatedBytes = allocatedBytes.sum();
+            return ret;
+        }
+    }
+
+    public static final class Span implements AutoCloseable {
+        private static final Span NOOP = new Span(null, null);
+
+        private final StartupProfiler profiler;
+        private final List<String> key;
+        private final long wallStart;
+        private final long cpuStart;
+        private final long allocationStart;
+
+        private Span(StartupProfiler profiler, List<String> key) {
+            this.profiler = profiler;
+            this.key = key;
+            this.wallStart = profiler == null ? 0 : System.nanoTime();
+            this.cpuStart = profiler == null ? 0 : profiler.cpuNanos();
+            this.allocationStart = profiler == null ? 0 : profiler.allocatedBytes();
+        }
+
+        @Override
+        public void close() {
+            if (profiler == null) {
+                return;
+            }
+            long wall = System.nanoTime() - wallStart;
+            long cpu = profiler.cpuNanos() - cpuStart;
+            long allocated = profiler.allocatedBytes() - allocationStart;
+            profiler.record(key, wallStart, wall, cpu, allocated);
+        }
+    }
+
+    public static final class Entry {
+        private final String category;
+        private final String subject;
+        private final String step;
+        private final long startOffsetMillis;
+        private long count;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+
+        private Entry(String category, String subject, String step, long startOffsetMillis) {
+            this.category = category;
+            this.subject = subject;
+            this.step = step;
+            this.startOffsetMillis = startOffsetMillis;
+        }
+
+        private void toJson(ObjectNode node) {
+            node.put("startOffsetMillis", startOffsetMillis);
+            if (count > 1) {
+                node.put("count", count);
+            }
+            node.put("wallMillis", wallNanos / 1e6);
+            node.put("cpuMillis", cpuNanos / 1e6);
+            node.put("allocatedBytes", allocatedBytes);
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        /**
+         * @return The step, or null if the subject only has one
+         */
+        public String getStep() {
+            return step;
+        }
+
+        /**
+         * @return When the step first started, relative to the creation of the profiler
+         */
+        public long getStartOffsetMillis() {
+            return startOffsetMillis;
+        }
+
+        /**
+         * @return How many times the step was recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return CPU time of the thread(s) performing the step, 0 if not measured
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return Heap allocated by the thread(s) performing the step, 0 if not measured
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+}
@@ -1,88 +1,385 @@
 package edu.mayo.dhs.ievaluate.core.storage;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import edu.mayo.dhs.ievaluate.api.IEvaluate;
 import edu.mayo.dhs.ievaluate.api.applications.ApplicationProvider;
 import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
 import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
 import edu.mayo.dhs.ievaluate.api.models.tasks.ApplicationTask;
-import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.monitoring.Counter;
+import edu.mayo.dhs.ievaluate.core.monitoring.LatencyHistogram;
+import edu.mayo.dhs.ievaluate.core.monitoring.RuntimeMetrics;
+import edu.mayo.dhs.ievaluate.core.storage.journal.ApplicationJournal;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricIndex;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricIngestPipeline;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricRollup;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricRollups;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricSpliterator;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.MetricStore;
+import edu.mayo.dhs.ievaluate.core.storage.metrics.SegmentMetricStore;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
- * A default fallback storage provider that writes to JSON in the supplied working directory.
+ * A default fallback storage provider that writes to the supplied working directory.
  * Its usage is not recommended for production use cases
+ *
+ * Application changes are appended to a journal (IEvaluateMemStore.journal) which is periodically compacted into the
+ * binary snapshot (IEvaluateMemStore.snapshot), so that saving a single application does not require rewriting every
+ * registered application. A JSON snapshot (IEvaluateMemStore.json) from a previous version is migrated automatically
+ *
+ * Metrics are persisted to memory-mapped segment files under the metrics directory, unless
+ * -Dievaluate.storage.metrics.inmemory=true is supplied in which case they are held (compressed) in memory only.
+ * Per-bucket rollups are additionally maintained at ingest for each of the (comma separated, in milliseconds) resolutions
+ * supplied via -Dievaluate.storage.metrics.rollups, hourly and daily by default, retaining the latest 1000 buckets of
+ * each (-Dievaluate.storage.metrics.rollups.retained)
+ *
+ * Metric writes are applied by a {@link MetricIngestPipeline} with one stripe per available processor
+ * (-Dievaluate.storage.metrics.ingest.stripes) admitting up to 65536 queued datapoints each
+ * (-Dievaluate.storage.metrics.ingest.queue). {@link #saveMetrics} waits for its write to be applied, while
+ * {@link #saveMetricsAsync} returns once it is queued; use {@link #flushMetrics()} to await durability
  */
-public class InMemoryStorageProvider implements StorageProvider {
+public class InMemoryStorageProvider implements IncrementalStorageProvider, Closeable {
+    private static final LatencyHistogram SAVE_METRICS = RuntimeMetrics.histogram("storage.saveMetrics");
+    private static final LatencyHistogram SAVE_METRICS_ASYNC = RuntimeMetrics.histogram("storage.saveMetricsAsync");
+    private static final LatencyHistogram GET_METRICS = RuntimeMetrics.histogram("storage.getMetrics");
+    private static final Counter DATAPOINTS_WRITTEN = RuntimeMetrics.counter("storage.saveMetrics.datapoints");
+    private static final Counter DATAPOINTS_READ = RuntimeMetrics.counter("storage.getMetrics.datapoints");
 
-    private Map<String, JsonNode> registeredApplications;
-    @JsonIgnore
-    private File saveBase;
+    private Map<UUID, StoredApplication> registeredApplications;
+    private ApplicationJournal journal;
 
-    private Map<String, Map<String, Collection<MetricDatapoint>>> metrics;
+    private MetricStore metrics;
+    private MetricRollups rollups;
+    private MetricIngestPipeline ingest;
 
     public InMemoryStorageProvider(File workingDirectory) throws IOException {
-        this.registeredApplications = new HashMap<>();
-        this.metrics = new HashMap<>();
-        this.saveBase = new File(workingDirectory, "IEvaluateMemStore.json");
-        if (saveBase.exists()) {
-            InMemoryStorageProvider inMem = new ObjectMapper().readValue(saveBase, InMemoryStorageProvider.class);
-            registeredApplications = inMem.registeredApplications;
-        }
+        this.metrics = Boolean.getBoolean("ievaluate.storage.metrics.inmemory")
+                ? new MetricIndex()
+                : new SegmentMetricStore(new File(workingDirectory, "metrics"));
+        this.rollups = new MetricRollups(this.metrics,
+                parseResolutions(System.getProperty("ievaluate.storage.metrics.rollups")),
+                Integer.getInteger("ievaluate.storage.metrics.rollups.retained",
+                        MetricRollups.DEFAULT_RETAINED_BUCKETS));
+        this.ingest = new MetricIngestPipeline(this.metrics, this.rollups,
+                Integer.getInteger("ievaluate.storage.metrics.ingest.stripes", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("ievaluate.storage.metrics.ingest.queue", MetricIngestPipeline.DEFAULT_QUEUE_CAPACITY));
+        this.journal = new ApplicationJournal(
+                new File(workingDirectory, "IEvaluateMemStore.snapshot"),
+                new File(workingDirectory, "IEvaluateMemStore.json"),
+                new File(workingDirectory, "IEvaluateMemStore.journal"),
+                !Boolean.getBoolean("ievaluate.storage.journal.nofsync")
+        );
+        this.registeredApplications = journal.replay();
+        this.rollups.seedInBackground();
+    }
+
+    @Override
+    public synchronized Map<String, JsonNode> loadRegisteredApplications() {
+        Map<String, JsonNode> ret = new HashMap<>();
+        registeredApplications.forEach((id, app) -> ret.put(app.getType(), app.getData()));
+        return ret;
     }
 
     @Override
-    public Map<String, JsonNode> loadRegisteredApplications() {
-        return registeredApplications; // In-memory just returns what is ... in-memory
+    public synchronized Map<UUID, StoredApplication> loadStoredApplications() {
+        return new HashMap<>(registeredApplications); // In-memory just returns what is ... in-memory
     }
 
     @Override
-    public void saveRegisteredApplications() {
+    public synchronized void saveRegisteredApplications() {
         registeredApplications.clear(); // Clear saved applications
         for (ProfiledApplication app : IEvaluate.getApplicationManager().getRegisteredApplications()) {
-            try {
-                ApplicationProvider<?> pertinentProvider = IEvaluate
-                        .getApplicationManager()
-                        .getApplicationProviders()
-                        .get(app.getClass().getName());
-                if (pertinentProvider == null) {
-                    throw new IllegalArgumentException(
-                            "Application is of type "
-                                    + app.getClass().getName()
-                                    + " but no suitable application provider was found"
-                    );
-                }
-                registeredApplications.put(app.getClass().getName(), pertinentProvider.marshal(app));
-            } catch (Throwable t) {
-                IEvaluate.getLogger().error("Failure saving " + app.getName() + " with ID " + app.getId(), t);
-                IEvaluate.getLogger().error("Data may be lost");
+            StoredApplication marshaled = marshal(app);
+            if (marshaled != null) {
+                registeredApplications.put(app.getId(), marshaled);
             }
         }
         saveInternal();
     }
 
+    @Override
+    public synchronized void saveRegisteredApplication(ProfiledApplication application) {
+        StoredApplication marshaled = marshal(application);
+        if (marshaled == null) {
+            return;
+        }
+        registeredApplications.put(application.getId(), marshaled);
+        try {
+            journal.appendUpsert(application.getId(), marshaled);
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure appending " + application.getId() + " to journal, falling back to snapshot", t);
+            saveInternal();
+            return;
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void removeRegisteredApplication(UUID applicationId) {
+        if (registeredApplications.remove(applicationId) == null) {
+            return;
+        }
+        try {
+            journal.appendRemove(applicationId);
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure appending removal of " + applicationId + " to journal, falling back to snapshot", t);
+            saveInternal();
+            return;
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public synchronized void saveRegisteredApplications(Collection<? extends ProfiledApplication> changed, Collection<UUID> removed) {
+        Map<UUID, StoredApplication> upserts = new LinkedHashMap<>();
+        for (ProfiledApplication app : changed) {
+            StoredApplication marshaled = marshal(app);
+            if (marshaled != null) {
+                upserts.put(app.getId(), marshaled);
+            }
+        }
+        registeredApplications.putAll(upserts);
+        List<UUID> removals = new ArrayList<>();
+        for (UUID id : removed) {
+            if (registeredApplications.remove(id) != null) {
+                removals.add(id);
+            }
+        }
+        if (upserts.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+        try {
+            journal.appendBatch(upserts, removals);
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure appending " + (upserts.size() + removals.size())
+                    + " application changes to journal, falling back to snapshot", t);
+            saveInternal();
+            return;
+        }
+        compactIfNeeded();
+    }
+
     @Override
     public List<MetricDatapoint> getMetrics(ProfiledApplication application, String metricName, ApplicationTask task, Collection<String> versions) {
-        List<MetricDatapoint> ret = new ArrayList<>(this.metrics.computeIfAbsent(application.getName(), k -> new HashMap<>())
-                .computeIfAbsent(task.getName(), k -> new HashSet<>()));
-        ret.sort(Comparator.comparingLong(m -> m.getMeasuredTime().getTime()));
+        return getMetrics(application, metricName, task, versions, null, null);
+    }
+
+    /**
+     * Retrieves only the datapoints measured within the supplied time range, already sorted by measured time
+     * @param application The application
+     * @param metricName The metric name, or null for all metrics
+     * @param task The application task
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound, or null for unbounded
+     * @param to Exclusive upper bound, or null for unbounded
+     * @return The matching datapoints sorted by measured time
+     */
+    public List<MetricDatapoint> getMetrics(ProfiledApplication application, String metricName, ApplicationTask task,
+                                            Collection<String> versions, Date from, Date to) {
+        long start = LatencyHistogram.start();
+        List<MetricDatapoint> ret = this.metrics.query(application.getName(), task.getName(), metricName, versions,
+                from == null ? Long.MIN_VALUE : from.getTime(),
+                to == null ? Long.MAX_VALUE : to.getTime());
+        GET_METRICS.recordSince(start);
+        DATAPOINTS_READ.add(ret.size());
         return ret;
     }
 
+    /**
+     * Lazily streams the datapoints measured within the supplied time range in time order, reading them a page at a
+     * time so that memory use is bounded by the page size rather than the size of the range. Short-circuiting
+     * operations (e.g. {@link Stream#limit(long)}) stop reading early, and parallel streams split the range by time.
+     * @param application The application
+     * @param metricName The metric name, or null for all metrics
+     * @param task The application task
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound, or null for unbounded
+     * @param to Exclusive upper bound, or null for unbounded
+     * @return A lazy stream of the matching datapoints
+     */
+    public Stream<MetricDatapoint> streamMetrics(ProfiledApplication application, String metricName, ApplicationTask task,
+                                                 Collection<String> versions, Date from, Date to) {
+        return StreamSupport.stream(openCursor(application, metricName, task, versions, from, to), false);
+    }
+
+    /**
+     * Retrieves a single page of the datapoints measured within the supplied time range, skipping over preceding
+     * datapoints without reading them where possible
+     * @param application The application
+     * @param metricName The metric name, or null for all metrics
+     * @param task The application task
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound, or null for unbounded
+     * @param to Exclusive upper bound, or null for unbounded
+     * @param offset The number of matching datapoints to skip
+     * @param limit The maximum number of datapoints to return
+     * @return The requested page of datapoints sorted by measured time
+     */
+    public List<MetricDatapoint> getMetrics(ProfiledApplication application, String metricName, ApplicationTask task,
+                                            Collection<String> versions, Date from, Date to, long offset, int limit) {
+        MetricSpliterator cursor = openCursor(application, metricName, task, versions, from, to).skip(offset);
+        return StreamSupport.stream(cursor, false).limit(limit).collect(Collectors.toList());
+    }
+
+    /**
+     * Retrieves aggregate statistics (count, min, max, sum, mean and quantiles) of the numeric datapoints measured within
+     * the supplied time range, in buckets of the requested resolution merged across all matching series.
+     *
+     * Served from the coarsest maintained rollup tier whose resolution evenly divides the requested one, so the cost
+     * depends on the number of buckets rather than the number of datapoints; falls back to aggregating raw datapoints
+     * if no tier does. The time range is widened to whole buckets.
+     * @param application The application
+     * @param metricName The metric name, or null for all metrics
+     * @param task The application task
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound, or null for unbounded
+     * @param to Exclusive upper bound, or null for unbounded
+     * @param resolutionMillis The bucket width in milliseconds
+     * @return The non-empty buckets sorted by start time
+     */
+    public List<MetricRollup> getRollups(ProfiledApplication application, String metricName, ApplicationTask task,
+                                         Collection<String> versions, Date from, Date to, long resolutionMillis) {
+        return this.rollups.query(application.getName(), task.getName(), metricName, versions,
+                from == null ? Long.MIN_VALUE : from.getTime(),
+                to == null ? Long.MAX_VALUE : to.getTime(),
+                resolutionMillis);
+    }
+
+    private MetricSpliterator openCursor(ProfiledApplication application, String metricName, ApplicationTask task,
+                                         Collection<String> versions, Date from, Date to) {
+        return new MetricSpliterator(
+                this.metrics.readers(application.getName(), task.getName(), metricName, versions),
+                from == null ? Long.MIN_VALUE : from.getTime(),
+                to == null ? Long.MAX_VALUE : to.getTime(),
+                MetricSpliterator.DEFAULT_PAGE_SIZE
+        );
+    }
+
+    /**
+     * Writes metrics, returning once they are visible to queries. Use {@link #flushMetrics()} to also force them to
+     * disk, or {@link #saveMetricsAsync} to return as soon as they are queued.
+     * @throws UncheckedIOException if the metrics could not be written
+     * @throws IllegalStateException if this provider has been closed, or the thread was interrupted while waiting for
+     * queue capacity
+     */
     @Override
     public void saveMetrics(ProfiledApplication application, ApplicationTask task, Collection<MetricDatapoint> metrics) {
-        this.metrics.computeIfAbsent(application.getName(), k -> new HashMap<>()).computeIfAbsent(task.getName(), k -> new HashSet<>()).addAll(metrics);
+        long start = LatencyHistogram.start();
+        CompletableFuture<Void> written;
+        try {
+            written = this.ingest.submit(application.getName(), task.getName(), metrics);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing metrics for " + application.getName()
+                    + ", " + metrics.size() + " datapoints were not saved", e);
+        }
+        try {
+            written.join(); // Queued writes are applied regardless, so this wait is not interruptible
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException("Failed to save metrics for " + application.getName(), (IOException) cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+        SAVE_METRICS.recordSince(start);
+        DATAPOINTS_WRITTEN.add(metrics.size());
+    }
+
+    /**
+     * Queues metrics for writing, blocking while the ingestion queue is full. Write failures are reported only through
+     * the returned future
+     * @param application The application
+     * @param task The application task
+     * @param metrics The datapoints to write
+     * @return A future completed once the datapoints are written and visible to queries
+     * @throws InterruptedException if interrupted while waiting for queue capacity
+     * @throws IllegalStateException if this provider has been closed
+     */
+    public CompletableFuture<Void> saveMetricsAsync(ProfiledApplication application, ApplicationTask task,
+                                                    Collection<MetricDatapoint> metrics) throws InterruptedException {
+        long start = LatencyHistogram.start();
+        CompletableFuture<Void> ret = this.ingest.submit(application.getName(), task.getName(), metrics);
+        SAVE_METRICS_ASYNC.recordSince(start); // The time to queue, including waiting for queue capacity
+        DATAPOINTS_WRITTEN.add(metrics.size());
+        return ret;
+    }
+
+    /**
+     * Waits for all metrics queued so far to be written, and forces them to disk
+     * @throws IOException if the metrics could not be persisted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flushMetrics() throws IOException, InterruptedException {
+        this.ingest.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        journal.close();
+        ingest.close();
+        rollups.close();
+        metrics.close();
+    }
+
+    private StoredApplication marshal(ProfiledApplication app) {
+        try {
+            ApplicationProvider<?> pertinentProvider = IEvaluate
+                    .getApplicationManager()
+                    .getApplicationProviders()
+                    .get(app.getClass().getName());
+            if (pertinentProvider == null) {
+                throw new IllegalArgumentException(
+                        "Application is of type "
+                                + app.getClass().getName()
+                                + " but no suitable application provider was found"
+                );
+            }
+            return new StoredApplication(app.getClass().getName(), pertinentProvider.marshal(app));
+        } catch (Throwable t) {
+            IEvaluate.getLogger().error("Failure saving " + app.getName() + " with ID " + app.getId(), t);
+            IEvaluate.getLogger().error("Data may be lost");
+            return null;
+        }
+    }
+
+    private static long[] parseResolutions(String property) {
+        if (property == null || property.trim().isEmpty()) {
+            return MetricRollups.DEFAULT_RESOLUTIONS;
+        }
+        try {
+            return Arrays.stream(property.split(",")).map(String::trim).mapToLong(Long::parseLong).toArray();
+        } catch (NumberFormatException e) {
+            IEvaluate.getLogger().warn("Invalid metric rollup resolutions " + property + ", using defaults");
+            return MetricRollups.DEFAULT_RESOLUTIONS;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if (journal.shouldCompact(registeredApplications.size())) {
+            saveInternal();
+        }
     }
 
     private synchronized void saveInternal() {
         try {
-            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(saveBase, this);
+            journal.compact(registeredApplications);
         } catch (Throwable t) {
             IEvaluate.getLogger().error("Failure writing to disk", t);
         }
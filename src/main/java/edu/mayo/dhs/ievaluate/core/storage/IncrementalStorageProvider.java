@@ -0,0 +1,44 @@
+package edu.mayo.dhs.ievaluate.core.storage;
+
+import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
+import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A storage provider capable of persisting changes to individual applications without rewriting every registered
+ * application. Core components will prefer these methods over {@link #saveRegisteredApplications()} when available.
+ */
+public interface IncrementalStorageProvider extends StorageProvider {
+    /**
+     * Persists (inserts or replaces) a single registered application
+     * @param application The application to save
+     */
+    void saveRegisteredApplication(ProfiledApplication application);
+
+    /**
+     * Removes a single application from storage, if present
+     * @param applicationId The ID of the application to remove
+     */
+    void removeRegisteredApplication(UUID applicationId);
+
+    /**
+     * Persists a set of changes to registered applications. Providers should override this to commit all changes at
+     * once where they can do so more cheaply than one at a time.
+     * @param changed Applications to insert or replace
+     * @param removed IDs of applications to remove
+     */
+    default void saveRegisteredApplications(Collection<? extends ProfiledApplication> changed, Collection<UUID> removed) {
+        changed.forEach(this::saveRegisteredApplication);
+        removed.forEach(this::removeRegisteredApplication);
+    }
+
+    /**
+     * Unlike {@link #loadRegisteredApplications()}, which is keyed by application class, this is keyed by application
+     * ID and thus retains multiple applications of the same type
+     * @return All stored applications keyed by ID
+     */
+    Map<UUID, StoredApplication> loadStoredApplications();
+}
@@ -0,0 +1,54 @@
+package edu.mayo.dhs.ievaluate.core.storage;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.function.Supplier;
+
+/**
+ * A marshaled {@link edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication} as held by storage, consisting of the
+ * application class name (used to look up the appropriate application provider) and its marshaled representation.
+ * The marshaled representation may be loaded lazily, on first access.
+ */
+public final class StoredApplication {
+    private final String type;
+    private volatile JsonNode data;
+    private volatile boolean loaded;
+    private Supplier<JsonNode> loader;
+
+    public StoredApplication(String type, JsonNode data) {
+        this.type = type;
+        this.data = data;
+        this.loaded = true;
+    }
+
+    private StoredApplication(String type, Supplier<JsonNode> loader) {
+        this.type = type;
+        this.loader = loader;
+    }
+
+    /**
+     * @param type The application class name
+     * @param loader Loads the marshaled representation on first access, may throw unchecked exceptions on failure
+     * @return A stored application whose marshaled representation is loaded on first access
+     */
+    public static StoredApplication lazy(String type, Supplier<JsonNode> loader) {
+        return new StoredApplication(type, loader);
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public JsonNode getData() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    data = loader.get();
+                    loader = null; // Release whatever the loader holds on to
+                    loaded = true;
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,253 @@
+package edu.mayo.dhs.ievaluate.core.storage.journal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.core.storage.StoredApplication;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An append-only change log of application upserts and removals backed by a periodically compacted snapshot.
+ *
+ * The snapshot is only ever replaced atomically (written to a temporary file and then moved over the previous snapshot)
+ * and the journal is only truncated after a snapshot has been successfully moved into place. Replaying a journal on top
+ * of a snapshot that already contains its changes is harmless, as every record is idempotent. A torn record at the end
+ * of the journal (e.g. from a crash mid-write) is discarded on replay, and truncated. Corrupt records within the journal
+ * are logged and skipped, replay resuming at the next record.
+ *
+ * Snapshots are written in the {@link BinarySnapshot} format, from which applications are decoded lazily. A JSON
+ * snapshot from a previous version is read if no binary snapshot exists yet, and migrated on replay.
+ *
+ * Not thread-safe, callers are expected to synchronize access
+ */
+public class ApplicationJournal implements Closeable {
+    private static final String OP_UPSERT = "upsert";
+    private static final String OP_REMOVE = "remove";
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final File snapshotFile;
+    private final File legacySnapshotFile;
+    private final File journalFile;
+    private final boolean fsync;
+    private FileChannel journalChannel;
+    private long journalRecords;
+
+    /**
+     * @param snapshotFile The binary snapshot
+     * @param legacySnapshotFile The JSON snapshot written by previous versions, migrated if present
+     * @param journalFile The journal
+     * @param fsync Whether to sync the journal to disk on every append
+     */
+    public ApplicationJournal(File snapshotFile, File legacySnapshotFile, File journalFile, boolean fsync) {
+        this.snapshotFile = snapshotFile;
+        this.legacySnapshotFile = legacySnapshotFile;
+        this.journalFile = journalFile;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reads the snapshot and applies all valid journal records on top of it, then opens the journal for appending
+     * @return The current state of the store, keyed by application ID
+     * @throws IOException if the snapshot or journal could not be read
+     */
+    public Map<UUID, StoredApplication> replay() throws IOException {
+        boolean migrate = !snapshotFile.exists() && legacySnapshotFile.exists();
+        Map<UUID, StoredApplication> ret = migrate ? readLegacySnapshot() : readSnapshot();
+        long validLength = 0;
+        if (journalFile.exists()) {
+            byte[] contents = Files.readAllBytes(journalFile.toPath());
+            int start = 0;
+            int skipped = 0;
+            for (int i = 0; i < contents.length; i++) {
+                if (contents[i] != '\n') {
+                    continue;
+                }
+                if (i > start) {
+                    try {
+                        applyRecord(ret, om.readTree(new String(contents, start, i - start, StandardCharsets.UTF_8)));
+                        journalRecords++;
+                    } catch (IOException | RuntimeException e) {
+                        // Records are newline-terminated, so the next one starts after this line regardless
+                        if (skipped++ == 0) {
+                            IEvaluate.getLogger().warn("Skipping corrupt application journal record at offset " + start, e);
+                        } else {
+                            IEvaluate.getLogger().warn("Skipping corrupt application journal record at offset " + start);
+                        }
+                    }
+                }
+                start = i + 1;
+                validLength = start;
+            }
+            if (skipped > 0) {
+                IEvaluate.getLogger().warn("Skipped " + skipped + " corrupt application journal records, the changes "
+                        + "they recorded are lost");
+            }
+            if (validLength < contents.length) {
+                IEvaluate.getLogger().warn("Discarding " + (contents.length - validLength)
+                        + " bytes of incomplete application journal data");
+            }
+        }
+        this.journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.journalChannel.truncate(validLength);
+        this.journalChannel.position(validLength);
+        if (migrate) {
+            compact(ret);
+            IEvaluate.getLogger().info("Migrated " + ret.size() + " applications from " + legacySnapshotFile + " to " + snapshotFile);
+        }
+        return ret;
+    }
+
+    public void appendUpsert(UUID id, StoredApplication application) throws IOException {
+        append(Collections.singletonList(upsertRecord(id, application)));
+    }
+
+    public void appendRemove(UUID id) throws IOException {
+        append(Collections.singletonList(removeRecord(id)));
+    }
+
+    /**
+     * Appends several changes with a single write (and sync)
+     * @param upserts Applications to insert or replace, keyed by ID
+     * @param removals IDs of applications to remove, applied after the upserts
+     * @throws IOException if the changes could not be appended
+     */
+    public void appendBatch(Map<UUID, StoredApplication> upserts, Collection<UUID> removals) throws IOException {
+        List<ObjectNode> records = new ArrayList<>(upserts.size() + removals.size());
+        upserts.forEach((id, app) -> records.add(upsertRecord(id, app)));
+        removals.forEach(id -> records.add(removeRecord(id)));
+        if (!records.isEmpty()) {
+            append(records);
+        }
+    }
+
+    /**
+     * @param liveApplications The number of applications currently in the store
+     * @return Whether the journal has grown large enough relative to the store that it should be compacted
+     */
+    public boolean shouldCompact(int liveApplications) {
+        return journalRecords > Math.max(MIN_COMPACTION_RECORDS, 2L * liveApplications);
+    }
+
+    /**
+     * Atomically replaces the snapshot with the supplied state and clears the journal
+     * @param state The full current state of the store
+     * @throws IOException if the snapshot could not be written, in which case the previous snapshot and journal remain
+     */
+    public void compact(Map<UUID, StoredApplication> state) throws IOException {
+        File tmp = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        BinarySnapshot.write(tmp, state);
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(snapshotFile.getAbsoluteFile().getParentFile()); // Persists the move before the journal is cleared
+        if (journalChannel != null) {
+            journalChannel.truncate(0);
+            journalChannel.position(0);
+            if (fsync) {
+                journalChannel.force(true);
+            }
+        }
+        journalRecords = 0;
+        if (legacySnapshotFile.exists() && !legacySnapshotFile.delete()) {
+            IEvaluate.getLogger().warn("Could not delete migrated application snapshot " + legacySnapshotFile);
+        }
+    }
+
+    // Not supported on all platforms (e.g. Windows), where renames are persisted by the file system itself
+    private static void syncDirectory(File dir) {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            IEvaluate.getLogger().debug("Could not sync directory " + dir, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journalChannel != null) {
+            journalChannel.close();
+            journalChannel = null;
+        }
+    }
+
+    private ObjectNode upsertRecord(UUID id, StoredApplication application) {
+        ObjectNode record = om.createObjectNode();
+        record.put("op", OP_UPSERT);
+        record.put("id", id.toString());
+        record.put("type", application.getType());
+        record.set("data", application.getData());
+        return record;
+    }
+
+    private ObjectNode removeRecord(UUID id) {
+        ObjectNode record = om.createObjectNode();
+        record.put("op", OP_REMOVE);
+        record.put("id", id.toString());
+        return record;
+    }
+
+    private void append(List<ObjectNode> records) throws IOException {
+        if (journalChannel == null) {
+            throw new IllegalStateException("Application journal must be replayed before it is appended to");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (ObjectNode record : records) {
+            sb.append(om.writeValueAsString(record)).append('\n');
+        }
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) {
+            journalChannel.write(buf);
+        }
+        if (fsync) {
+            journalChannel.force(false);
+        }
+        journalRecords += records.size();
+    }
+
+    private Map<UUID, StoredApplication> readSnapshot() throws IOException {
+        return snapshotFile.exists() ? BinarySnapshot.read(snapshotFile) : new HashMap<>();
+    }
+
+    private Map<UUID, StoredApplication> readLegacySnapshot() throws IOException {
+        Map<UUID, StoredApplication> ret = new HashMap<>();
+        JsonNode root = om.readTree(legacySnapshotFile);
+        if (root == null) {
+            return ret;
+        }
+        if (root.has("applications")) {
+            root.get("applications").fields().forEachRemaining(e -> ret.put(
+                    UUID.fromString(e.getKey()),
+                    new StoredApplication(e.getValue().get("type").asText(), e.getValue().get("data"))
+            ));
+        } else if (root.has("registeredApplications")) {
+            // Legacy format keyed by application class, there is only one application per class to migrate
+            root.get("registeredApplications").fields().forEachRemaining(e -> ret.put(
+                    UUID.nameUUIDFromBytes(e.getKey().getBytes(StandardCharsets.UTF_8)),
+                    new StoredApplication(e.getKey(), e.getValue())
+            ));
+        }
+        return ret;
+    }
+
+    private void applyRecord(Map<UUID, StoredApplication> state, JsonNode record) {
+        UUID id = UUID.fromString(record.get("id").asText());
+        String op = record.get("op").asText();
+        if (OP_UPSERT.equals(op)) {
+            state.put(id, new StoredApplication(record.get("type").asText(), record.get("data")));
+        } else if (OP_REMOVE.equals(op)) {
+            state.remove(id);
+        } else {
+            throw new IllegalArgumentException("Unknown journal operation " + op);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package edu.mayo.dhs.ievaluate.core.storage.journal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact, tagged binary encoding of Jackson JSON trees.
+ *
+ * Integers are zig-zag varints, floating point values are raw IEEE 754 bits and strings are length-prefixed UTF-8.
+ * Object field names are written once per encoded tree and referenced by index thereafter, as marshaled applications
+ * typically repeat the same field names many times. Decoding yields the same node types parsing the equivalent JSON
+ * text would (e.g. integers that fit are decoded as int nodes).
+ */
+final class BinaryJson {
+    private static final int NULL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int STRING = 5;
+    private static final int ARRAY = 6;
+    private static final int OBJECT = 7;
+    private static final int BIG_INTEGER = 8;
+    private static final int BIG_DECIMAL = 9;
+    private static final int BINARY = 10;
+    private static final int FLOAT = 11;
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+
+    private BinaryJson() {
+    }
+
+    static void write(JsonNode node, DataOutput out) throws IOException {
+        new Writer(out).write(node);
+    }
+
+    /**
+     * @param buf The encoded tree, from index 0 up to the buffer's limit (e.g. a slice of a memory-mapped file)
+     * @return The decoded tree
+     * @throws IOException if the data is malformed
+     */
+    static JsonNode read(ByteBuffer buf) throws IOException {
+        try {
+            return new Reader(buf).read();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Truncated binary JSON data", e);
+        }
+    }
+
+    private static final class Writer {
+        private final DataOutput out;
+        private final Map<String, Integer> names = new HashMap<>();
+
+        Writer(DataOutput out) {
+            this.out = out;
+        }
+
+        void write(JsonNode node) throws IOException {
+            switch (node.getNodeType()) {
+                case NULL:
+                case MISSING:
+                    out.writeByte(NULL);
+                    break;
+                case BOOLEAN:
+                    out.writeByte(node.booleanValue() ? TRUE : FALSE);
+                    break;
+                case NUMBER:
+                    writeNumber(node);
+                    break;
+                case STRING:
+                    out.writeByte(STRING);
+                    writeString(node.textValue());
+                    break;
+                case BINARY:
+                    out.writeByte(BINARY);
+                    writeBytes(node.binaryValue());
+                    break;
+                case ARRAY:
+                    out.writeByte(ARRAY);
+                    writeVarint(node.size());
+                    for (JsonNode child : node) {
+                        write(child);
+                    }
+                    break;
+                case OBJECT:
+                    out.writeByte(OBJECT);
+                    writeVarint(node.size());
+                    for (Iterator<Map.Entry<String, JsonNode>> it = node.fields(); it.hasNext(); ) {
+                        Map.Entry<String, JsonNode> field = it.next();
+                        writeName(field.getKey());
+                        write(field.getValue());
+                    }
+                    break;
+                default:
+                    throw new IOException("Cannot encode JSON node of type " + node.getNodeType());
+            }
+        }
+
+        private void writeNumber(JsonNode node) throws IOException {
+            if (node.isIntegralNumber()) {
+                if (node.canConvertToLong()) {
+                    out.writeByte(INTEGER);
+                    writeVarint(node.longValue());
+                } else {
+                    out.writeByte(BIG_INTEGER);
+                    writeBytes(node.bigIntegerValue().toByteArray());
+                }
+            } else if (node.isFloat()) {
+                out.writeByte(FLOAT);
+                out.writeFloat(node.floatValue());
+            } else if (node.isBigDecimal()) {
+                BigDecimal value = node.decimalValue();
+                out.writeByte(BIG_DECIMAL);
+                writeVarint(value.scale());
+                writeBytes(value.unscaledValue().toByteArray());
+            } else {
+                out.writeByte(DOUBLE);
+                out.writeDouble(node.doubleValue());
+            }
+        }
+
+        // 0 introduces a new name, n > 0 refers to the (n - 1)th name introduced
+        private void writeName(String name) throws IOException {
+            Integer ref = names.get(name);
+            if (ref != null) {
+                writeVarint(ref + 1);
+            } else {
+                writeVarint(0);
+                writeString(name);
+                names.put(name, names.size());
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeVarint(long value) throws IOException {
+            long v = (value << 1) ^ (value >> 63); // Zig-zag, so small negative values are also short
+            while ((v & ~0x7FL) != 0) {
+                out.writeByte((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buf; // Read by absolute index, so that its position is left untouched
+        private int pos;
+        private final List<String> names = new ArrayList<>();
+
+        Reader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        JsonNode read() throws IOException {
+            int tag = buf.get(pos++);
+            switch (tag) {
+                case NULL:
+                    return NODES.nullNode();
+                case TRUE:
+                    return NODES.booleanNode(true);
+                case FALSE:
+                    return NODES.booleanNode(false);
+                case INTEGER: {
+                    long value = readVarint();
+                    return value == (int) value ? NODES.numberNode((int) value) : NODES.numberNode(value);
+                }
+                case DOUBLE:
+                    return NODES.numberNode(Double.longBitsToDouble(readLong()));
+                case FLOAT:
+                    return NODES.numberNode(Float.intBitsToFloat(readInt()));
+                case BIG_INTEGER:
+                    return NODES.numberNode(new BigInteger(readBytes()));
+                case BIG_DECIMAL: {
+                    int scale = (int) readVarint();
+                    return NODES.numberNode(new BigDecimal(new BigInteger(readBytes()), scale));
+                }
+                case STRING:
+                    return NODES.textNode(readString());
+                case BINARY:
+                    return NODES.binaryNode(readBytes());
+                case ARRAY: {
+                    int size = readSize();
+                    ArrayNode ret = NODES.arrayNode(size);
+                    for (int i = 0; i < size; i++) {
+                        ret.add(read());
+                    }
+                    return ret;
+                }
+                case OBJECT: {
+                    int size = readSize();
+                    ObjectNode ret = NODES.objectNode();
+                    for (int i = 0; i < size; i++) {
+                        String name = readName();
+                        ret.set(name, read());
+                    }
+                    return ret;
+                }
+                default:
+                    throw new IOException("Unknown binary JSON tag " + tag + " at offset " + (pos - 1));
+            }
+        }
+
+        private String readName() throws IOException {
+            int ref = readSize();
+            if (ref == 0) {
+                String name = readString();
+                names.add(name);
+                return name;
+            }
+            if (ref > names.size()) {
+                throw new IOException("Invalid field name reference " + ref + " at offset " + pos);
+            }
+            return names.get(ref - 1);
+        }
+
+        private String readString() throws IOException {
+            int length = readSize();
+            String ret = buf.hasArray() && pos + length <= buf.limit()
+                    ? new String(buf.array(), buf.arrayOffset() + pos, length, StandardCharsets.UTF_8)
+                    : new String(readBytes(length), StandardCharsets.UTF_8);
+            pos += length;
+            return ret;
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = readSize();
+            byte[] ret = readBytes(length);
+            pos += length;
+            return ret;
+        }
+
+        // Without advancing pos
+        private byte[] readBytes(int length) {
+            if (pos + length > buf.limit()) {
+                throw new IndexOutOfBoundsException();
+            }
+            byte[] ret = new byte[length];
+            ByteBuffer source = buf.duplicate();
+            source.position(pos);
+            source.get(ret);
+            return ret;
+        }
+
+        private int readSize() throws IOException {
+            long ret = readVarint();
+            if (ret < 0 || ret > buf.limit()) {
+                throw new IOException("Invalid length " + ret + " at offset " + pos);
+            }
+            return (int) ret;
+        }
+
+        private long readVarint() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buf.get(pos++);
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (v >>> 1) ^ -(v & 1);
+                }
+            }
+            throw new IOException("Malformed varint at offset " + pos);
+        }
+
+        private int readInt() {
+            int ret = buf.getInt(pos); // Big-endian, as written by DataOutput
+            pos += 4;
+            return ret;
+        }
+
+        private long readLong() {
+            long ret = buf.getLong(pos);
+            pos += 8;
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package edu.mayo.dhs.ievaluate.core.storage.journal;
+
+import edu.mayo.dhs.ievaluate.core.storage.StoredApplication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The binary application snapshot format: each application's marshaled representation as {@link BinaryJson},
+ * followed by an index of (ID, type, offset, length, checksum) entries and a footer locating the index, so that the
+ * snapshot can be written in a single streaming pass and individual applications can be decoded independently (and
+ * lazily).
+ *
+ * <pre>
+ * header:  magic "IEAS" | int version
+ * body:    payload*
+ * index:   (long idMostSigBits | long idLeastSigBits | UTF type
+ *           | long payloadOffset | int payloadLength | int payloadCrc32)*
+ * footer:  int count | long indexOffset | long crc32 (of the header and index)
+ * </pre>
+ *
+ * Reading only loads the header, index and footer. The body is memory-mapped and each application holds just the
+ * slice containing its payload, whose checksum is verified when it is decoded.
+ */
+final class BinarySnapshot {
+    private static final int MAGIC = 0x49454153; // "IEAS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 20;
+    private static final long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Writes and syncs a snapshot of the supplied state
+     */
+    static void write(File file, Map<UUID, StoredApplication> state) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(VERSION);
+            header.writeTo(out);
+            // Each payload is encoded on its own first for its length and checksum, so offsets are not limited to 2GB
+            ByteArrayOutputStream index = new ByteArrayOutputStream(Math.max(64, state.size() * 64));
+            DataOutputStream indexOut = new DataOutputStream(index);
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(1 << 12);
+            CRC32 payloadCrc = new CRC32();
+            DataOutputStream payloadOut = new DataOutputStream(new CheckedOutputStream(payload, payloadCrc));
+            long offset = HEADER_SIZE;
+            for (Map.Entry<UUID, StoredApplication> e : state.entrySet()) {
+                payload.reset();
+                payloadCrc.reset();
+                BinaryJson.write(e.getValue().getData(), payloadOut);
+                payload.writeTo(out);
+                indexOut.writeLong(e.getKey().getMostSignificantBits());
+                indexOut.writeLong(e.getKey().getLeastSignificantBits());
+                indexOut.writeUTF(e.getValue().getType());
+                indexOut.writeLong(offset);
+                indexOut.writeInt(payload.size());
+                indexOut.writeInt((int) payloadCrc.getValue());
+                offset += payload.size();
+            }
+            index.writeTo(out);
+            CRC32 crc = new CRC32();
+            crc.update(header.toByteArray());
+            crc.update(index.toByteArray());
+            out.writeInt(state.size());
+            out.writeLong(offset);
+            out.writeLong(crc.getValue());
+            out.flush();
+            fos.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads a snapshot's index, verifying its integrity. Applications are only decoded when first accessed.
+     */
+    static Map<UUID, StoredApplication> read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Application snapshot " + file + " is truncated");
+            }
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not an application snapshot");
+            }
+            int version = header.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported application snapshot version " + version);
+            }
+            ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+            int count = footer.getInt(0);
+            long indexOffset = footer.getLong(4);
+            if (count < 0 || indexOffset < HEADER_SIZE || indexOffset > size - FOOTER_SIZE
+                    || size - FOOTER_SIZE - indexOffset > Integer.MAX_VALUE) {
+                throw new IOException("Application snapshot " + file + " has an invalid index");
+            }
+            ByteBuffer index = readFully(channel, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            CRC32 crc = new CRC32();
+            crc.update(header.array());
+            crc.update(index.array());
+            if (crc.getValue() != footer.getLong(12)) {
+                throw new IOException("Application snapshot " + file + " is corrupt (checksum mismatch)");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()));
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                Entry entry = new Entry(id, in.readUTF(), in.readLong(), in.readInt(), in.readInt() & 0xFFFFFFFFL);
+                if (entry.offset < HEADER_SIZE || entry.length < 0 || entry.offset + entry.length > indexOffset) {
+                    throw new IOException("Application snapshot " + file + " has an invalid index entry for " + id);
+                }
+                entries.add(entry);
+            }
+            return load(file, channel, entries);
+        }
+    }
+
+    // Maps the body in as few regions as possible, each up to 2GB and ending at a payload boundary
+    private static Map<UUID, StoredApplication> load(File file, FileChannel channel, List<Entry> entries)
+            throws IOException {
+        List<Entry> byOffset = new ArrayList<>(entries);
+        byOffset.sort(Comparator.comparingLong(e -> e.offset));
+        MappedByteBuffer region = null;
+        long regionStart = 0;
+        long regionEnd = 0;
+        for (int i = 0; i < byOffset.size(); i++) {
+            Entry entry = byOffset.get(i);
+            if (region == null || entry.offset + entry.length > regionEnd) {
+                regionStart = entry.offset;
+                regionEnd = regionStart;
+                for (int j = i; j < byOffset.size(); j++) {
+                    long end = byOffset.get(j).offset + byOffset.get(j).length;
+                    if (end - regionStart > MAX_MAPPING) {
+                        break;
+                    }
+                    regionEnd = Math.max(regionEnd, end);
+                }
+                region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionEnd - regionStart);
+            }
+            ByteBuffer slice = region.duplicate();
+            slice.position((int) (entry.offset - regionStart)).limit((int) (entry.offset - regionStart + entry.length));
+            entry.payload = slice.slice();
+        }
+        Map<UUID, StoredApplication> ret = new HashMap<>(Math.max(16, entries.size() * 2));
+        for (Entry entry : entries) {
+            ByteBuffer payload = entry.payload;
+            long expectedCrc = entry.crc;
+            UUID id = entry.id;
+            ret.put(id, StoredApplication.lazy(entry.type, () -> {
+                try {
+                    CRC32 crc = new CRC32();
+                    crc.update(payload.duplicate());
+                    if (crc.getValue() != expectedCrc) {
+                        throw new IOException("Application snapshot " + file + " is corrupt (checksum mismatch)");
+                    }
+                    return BinaryJson.read(payload);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to decode application " + id + " from snapshot", e);
+                }
+            }));
+        }
+        return ret;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer ret = ByteBuffer.allocate(length);
+        while (ret.hasRemaining()) {
+            if (channel.read(ret, position + ret.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+    private static final class Entry {
+        final UUID id;
+        final String type;
+        final long offset;
+        final int length;
+        final long crc;
+        ByteBuffer payload;
+
+        Entry(UUID id, String type, long offset, int length, long crc) {
+            this.id = id;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import java.util.Arrays;
+
+/**
+ * An immutable, sealed block of (timestamp, value) pairs sorted by timestamp and stored column-wise.
+ *
+ * Timestamps are delta-of-delta encoded and values are XOR encoded against the previous value (as in Facebook's Gorilla
+ * time series store), each into its own bit stream so that either column can be decoded independently. Regularly
+ * spaced timestamps cost a single bit each and repeated or slowly changing values a handful of bits.
+ */
+final class CompressedBlock {
+    private final long minTime;
+    private final long maxTime;
+    private final int count;
+    private final long[] timeBits;
+    private final long[] valueBits;
+
+    private CompressedBlock(long minTime, long maxTime, int count, long[] timeBits, long[] valueBits) {
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        this.count = count;
+        this.timeBits = timeBits;
+        this.valueBits = valueBits;
+    }
+
+    /**
+     * @param times Timestamps, sorted ascending
+     * @param values Values corresponding to each timestamp
+     * @param offset Offset of the first pair to encode
+     * @param length Number of pairs to encode, must be at least 1
+     * @return The encoded block
+     */
+    static CompressedBlock encode(long[] times, double[] values, int offset, int length) {
+        BitWriter tw = new BitWriter(length / 32 + 4);
+        BitWriter vw = new BitWriter(length / 8 + 4);
+        long prevTime = times[offset];
+        long prevDelta = 0;
+        long prevValue = Double.doubleToRawLongBits(values[offset]);
+        int prevLeading = -1;
+        int prevTrailing = 0;
+        tw.write(prevTime, 64);
+        vw.write(prevValue, 64);
+        for (int i = offset + 1; i < offset + length; i++) {
+            // Timestamps
+            long delta = times[i] - prevTime;
+            long dod = delta - prevDelta;
+            if (dod == 0) {
+                tw.write(0, 1);
+            } else if (dod >= -64 && dod <= 63) {
+                tw.write(0b10, 2);
+                tw.write(dod, 7);
+            } else if (dod >= -256 && dod <= 255) {
+                tw.write(0b110, 3);
+                tw.write(dod, 9);
+            } else if (dod >= -2048 && dod <= 2047) {
+                tw.write(0b1110, 4);
+                tw.write(dod, 12);
+            } else {
+                tw.write(0b1111, 4);
+                tw.write(dod, 64);
+            }
+            prevDelta = delta;
+            prevTime = times[i];
+            // Values
+            long value = Double.doubleToRawLongBits(values[i]);
+            long xor = value ^ prevValue;
+            if (xor == 0) {
+                vw.write(0, 1);
+            } else {
+                int leading = Long.numberOfLeadingZeros(xor);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+                    // Fits within the previous meaningful bit window
+                    vw.write(0b10, 2);
+                    vw.write(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+                } else {
+                    int meaningful = 64 - leading - trailing;
+                    vw.write(0b11, 2);
+                    vw.write(leading, 6);
+                    vw.write(meaningful - 1, 6);
+                    vw.write(xor >>> trailing, meaningful);
+                    prevLeading = leading;
+                    prevTrailing = trailing;
+                }
+            }
+            prevValue = value;
+        }
+        return new CompressedBlock(times[offset], times[offset + length - 1], length, tw.toArray(), vw.toArray());
+    }
+
+    /**
+     * @param out Array of at least {@link #count()} length to decode timestamps into
+     */
+    void decodeTimes(long[] out) {
+        BitReader r = new BitReader(timeBits);
+        long time = r.read(64);
+        long delta = 0;
+        out[0] = time;
+        for (int i = 1; i < count; i++) {
+            long dod;
+            if (r.read(1) == 0) {
+                dod = 0;
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(7);
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(9);
+            } else if (r.read(1) == 0) {
+                dod = r.readSigned(12);
+            } else {
+                dod = r.read(64);
+            }
+            delta += dod;
+            time += delta;
+            out[i] = time;
+        }
+    }
+
+    /**
+     * @param out Array of at least {@link #count()} length to decode values into
+     */
+    void decodeValues(double[] out) {
+        BitReader r = new BitReader(valueBits);
+        long value = r.read(64);
+        int leading = 0;
+        int trailing = 0;
+        out[0] = Double.longBitsToDouble(value);
+        for (int i = 1; i < count; i++) {
+            if (r.read(1) != 0) {
+                if (r.read(1) != 0) {
+                    leading = (int) r.read(6);
+                    int meaningful = (int) r.read(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                value ^= r.read(64 - leading - trailing) << trailing;
+            }
+            out[i] = Double.longBitsToDouble(value);
+        }
+    }
+
+    long minTime() {
+        return minTime;
+    }
+
+    long maxTime() {
+        return maxTime;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return The approximate heap footprint of this block in bytes
+     */
+    long sizeInBytes() {
+        return 48L + 8L * (timeBits.length + valueBits.length);
+    }
+
+    private static final class BitWriter {
+        private long[] words;
+        private long bitLength;
+
+        BitWriter(int initialWords) {
+            this.words = new long[Math.max(1, initialWords)];
+        }
+
+        // Writes the lowest numBits bits of value, most significant first
+        void write(long value, int numBits) {
+            if (numBits == 0) {
+                return;
+            }
+            if (numBits < 64) {
+                value &= (1L << numBits) - 1;
+            }
+            int word = (int) (bitLength >>> 6);
+            int used = (int) (bitLength & 63);
+            int free = 64 - used;
+            if (word + 1 >= words.length) {
+                words = Arrays.copyOf(words, words.length * 2 + 2);
+            }
+            if (numBits <= free) {
+                words[word] |= value << (free - numBits);
+            } else {
+                int spill = numBits - free;
+                words[word] |= value >>> spill;
+                words[word + 1] |= value << (64 - spill);
+            }
+            bitLength += numBits;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(words, (int) ((bitLength + 63) >>> 6));
+        }
+    }
+
+    private static final class BitReader {
+        private final long[] words;
+        private long position;
+
+        BitReader(long[] words) {
+            this.words = words;
+        }
+
+        long read(int numBits) {
+            if (numBits == 0) {
+                return 0;
+            }
+            int word = (int) (position >>> 6);
+            int used = (int) (position & 63);
+            int available = 64 - used;
+            long ret;
+            if (numBits <= available) {
+                ret = words[word] >>> (available - numBits);
+            } else {
+                int spill = numBits - available;
+                ret = (words[word] << spill) | (words[word + 1] >>> (64 - spill));
+            }
+            position += numBits;
+            return numBits == 64 ? ret : ret & ((1L << numBits) - 1);
+        }
+
+        long readSigned(int numBits) {
+            long raw = read(numBits);
+            return (raw << (64 - numBits)) >> (64 - numBits); // Sign extend
+        }
+    }
+}
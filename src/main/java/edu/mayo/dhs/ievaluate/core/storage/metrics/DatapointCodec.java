@@ -0,0 +1,218 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.core.plugins.PluginManagerCore;
+import edu.mayo.dhs.ievaluate.core.plugins.classloader.PluginClassLoader;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Converts the datapoints of a single series to and from primitive (timestamp, value) pairs.
+ *
+ * Everything about a datapoint other than its measured time and value (its type, metric name, version and any other
+ * properties) is captured once per series as a template, and datapoints are rebuilt from the template on read. Only
+ * datapoints with a numeric value that otherwise match the template exactly can be encoded; all others must be stored
+ * as-is by the caller.
+ *
+ * Plain {@link MetricDatapoint}s whose template holds just their metric name and version are encoded and rebuilt
+ * through their accessors. Other datapoint types are compared and rebuilt through their JSON representation.
+ */
+final class DatapointCodec {
+    static final String TIME_PROPERTY = "measuredTime";
+    static final String VALUE_PROPERTY = "value";
+    private static final ObjectMapper OM = new ObjectMapper();
+    private static final long MAX_EXACT_INTEGRAL = 1L << 53; // Largest magnitude a double holds without loss
+
+    private final Class<? extends MetricDatapoint> type;
+    private final Class<?> valueType;
+    private final boolean integral;
+    private final ObjectNode template;
+    // Whether datapoints are plain MetricDatapoints with just the name and version below besides time and value
+    private final boolean direct;
+    private final String metricName;
+    private final String version;
+
+    private DatapointCodec(Class<? extends MetricDatapoint> type, Class<?> valueType, ObjectNode template) {
+        this.type = type;
+        this.valueType = valueType;
+        this.integral = valueType == Long.class || valueType == Integer.class
+                || valueType == Short.class || valueType == Byte.class;
+        this.template = template;
+        this.metricName = template.path("metricName").textValue();
+        this.version = template.path("version").textValue();
+        this.direct = type == MetricDatapoint.class && isBoxable(valueType) && template.equals(templateOf(build(0, 0)));
+    }
+
+    private static boolean isBoxable(Class<?> valueType) {
+        return valueType == Double.class || valueType == Float.class || valueType == Long.class
+                || valueType == Integer.class || valueType == Short.class || valueType == Byte.class;
+    }
+
+    /**
+     * Attempts to build a codec for the series the supplied datapoint belongs to
+     * @param datapoint A representative datapoint
+     * @return A codec, or null if datapoints of this shape cannot be round-tripped through primitive storage
+     */
+    static DatapointCodec forDatapoint(MetricDatapoint datapoint) {
+        try {
+            Object value = datapoint.getValue();
+            if (!(value instanceof Number)) {
+                return null;
+            }
+            ObjectNode template = templateOf(datapoint);
+            if (template == null) {
+                return null;
+            }
+            DatapointCodec codec = new DatapointCodec(datapoint.getClass(), value.getClass(), template);
+            // Verify the round trip actually reproduces an equal datapoint before trusting the codec
+            if (!codec.encodes(datapoint)
+                    || !datapoint.equals(codec.decode(datapoint.getMeasuredTime().getTime(), codec.value(datapoint)))) {
+                return null;
+            }
+            // Integral values may come back as a different boxed type depending on magnitude, reject such types
+            if (codec.integral && (codec.decode(0, 0).getValue().getClass() != codec.valueType
+                    || codec.decode(0, 1L << 40).getValue().getClass() != codec.valueType)) {
+                return null;
+            }
+            return codec;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @param datapoint The datapoint to check
+     * @return Whether the datapoint can be represented as a primitive (timestamp, value) pair by this codec
+     */
+    boolean encodes(MetricDatapoint datapoint) {
+        Object value = datapoint.getValue();
+        if (datapoint.getClass() != type || value == null || value.getClass() != valueType) {
+            return false;
+        }
+        if (integral) {
+            long integralValue = ((Number) value).longValue();
+            if (integralValue > MAX_EXACT_INTEGRAL || integralValue < -MAX_EXACT_INTEGRAL) {
+                return false;
+            }
+        }
+        if (direct) {
+            return Objects.equals(metricName, datapoint.getMetricName()) && Objects.equals(version, datapoint.getVersion());
+        }
+        return template.equals(templateOf(datapoint));
+    }
+
+    double value(MetricDatapoint datapoint) {
+        return ((Number) datapoint.getValue()).doubleValue();
+    }
+
+    MetricDatapoint decode(long time, double value) {
+        if (direct) {
+            return build(time, value);
+        }
+        ObjectNode node = template.deepCopy();
+        node.put(TIME_PROPERTY, time);
+        if (integral) {
+            node.put(VALUE_PROPERTY, (long) value);
+        } else {
+            node.put(VALUE_PROPERTY, value);
+        }
+        try {
+            return OM.treeToValue(node, type);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to rebuild datapoint of type " + type.getName(), e);
+        }
+    }
+
+    private MetricDatapoint build(long time, double value) {
+        MetricDatapoint ret = new MetricDatapoint();
+        ret.setMetricName(metricName);
+        ret.setVersion(version);
+        ret.setMeasuredTime(new Date(time));
+        ret.setValue(box(value));
+        return ret;
+    }
+
+    private Object box(double value) {
+        if (valueType == Double.class) {
+            return value;
+        } else if (valueType == Long.class) {
+            return (long) value;
+        } else if (valueType == Integer.class) {
+            return (int) value;
+        } else if (valueType == Float.class) {
+            return (float) value;
+        } else if (valueType == Short.class) {
+            return (short) value;
+        } else {
+            return (byte) value;
+        }
+    }
+
+    /**
+     * @return A description of this codec from which it can be rebuilt via {@link #fromDescription(JsonNode)}
+     */
+    ObjectNode describe() {
+        ObjectNode ret = OM.createObjectNode();
+        ret.put("type", type.getName());
+        ret.put("valueType", valueType.getName());
+        ret.set("template", template);
+        return ret;
+    }
+
+    /**
+     * Rebuilds a previously {@link #describe() described} codec. Datapoint types may be supplied by plugins, so plugin
+     * class loaders are searched if the type is not visible to core.
+     * @param description The codec description
+     * @return The codec
+     * @throws ClassNotFoundException if the datapoint or value type is no longer available
+     */
+    @SuppressWarnings("unchecked")
+    static DatapointCodec fromDescription(JsonNode description) throws ClassNotFoundException {
+        Class<?> type = resolveClass(description.get("type").asText());
+        if (!MetricDatapoint.class.isAssignableFrom(type)) {
+            throw new ClassNotFoundException(type.getName() + " is not a metric datapoint type");
+        }
+        return new DatapointCodec(
+                (Class<? extends MetricDatapoint>) type,
+                resolveClass(description.get("valueType").asText()),
+                (ObjectNode) description.get("template")
+        );
+    }
+
+    static Class<?> resolveClass(String name) throws ClassNotFoundException {
+        try {
+            return Class.forName(name, false, DatapointCodec.class.getClassLoader());
+        } catch (ClassNotFoundException ignored) {
+            // Not visible to core, check plugins
+        }
+        if (IEvaluate.getServer() != null && IEvaluate.getServer().getPluginManager() instanceof PluginManagerCore) {
+            PluginManagerCore plugins = (PluginManagerCore) IEvaluate.getServer().getPluginManager();
+            if (plugins.getPluginClassLoaders() != null) {
+                for (PluginClassLoader loader : plugins.getPluginClassLoaders().values()) {
+                    try {
+                        return Class.forName(name, false, loader);
+                    } catch (ClassNotFoundException ignored) {
+                        // Try the next plugin
+                    }
+                }
+            }
+        }
+        throw new ClassNotFoundException(name);
+    }
+
+    private static ObjectNode templateOf(MetricDatapoint datapoint) {
+        JsonNode tree = OM.valueToTree(datapoint);
+        if (!(tree instanceof ObjectNode) || !tree.has(TIME_PROPERTY) || !tree.has(VALUE_PROPERTY)) {
+            return null;
+        }
+        ObjectNode ret = (ObjectNode) tree;
+        ret.remove(TIME_PROPERTY);
+        ret.remove(VALUE_PROPERTY);
+        return ret;
+    }
+}
@@ -0,0 +1,102 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.util.*;
+
+/**
+ * An index of metric datapoints keyed by (application, task, metric name, version), with each series kept sorted by
+ * measured time at ingest.
+ *
+ * Queries locate the matching series through the index and binary search each for the requested time range, so their
+ * cost is logarithmic in the history size plus the size of the result, rather than linear in the history size.
+ */
+public class MetricIndex implements MetricStore {
+    private final SeriesTable<MetricSeries> series = new SeriesTable<>();
+
+    @Override
+    public List<MetricDatapoint> ingest(String application, String task, Collection<? extends MetricDatapoint> datapoints) {
+        Map<MetricSeriesKey, List<MetricDatapoint>> grouped = new HashMap<>();
+        for (MetricDatapoint dp : datapoints) {
+            grouped.computeIfAbsent(MetricSeriesKey.of(application, task, dp), k -> new ArrayList<>()).add(dp);
+        }
+        List<MetricDatapoint> added = new ArrayList<>(datapoints.size());
+        grouped.forEach((key, points) -> added.addAll(getOrCreate(key).addAll(points)));
+        return added;
+    }
+
+    public MetricSeries getOrCreate(MetricSeriesKey key) {
+        return series.getOrCreate(key, k -> new MetricSeries());
+    }
+
+    /**
+     * Resolves all series matching a query
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @return The matching series, keyed by series key
+     */
+    public Map<MetricSeriesKey, MetricSeries> resolve(String application, String task, String metricName, Collection<String> versions) {
+        return series.resolve(application, task, metricName, versions);
+    }
+
+    @Override
+    public Collection<? extends MetricSeriesReader> readers(String application, String task, String metricName, Collection<String> versions) {
+        return series.resolve(application, task, metricName, versions).values();
+    }
+
+    @Override
+    public Set<MetricSeriesKey> keys(String application, String task, String metricName, Collection<String> versions) {
+        return series.resolve(application, task, metricName, versions).keySet();
+    }
+
+    @Override
+    public Set<MetricSeriesKey> keys() {
+        return series.keys();
+    }
+
+    @Override
+    public List<MetricDatapoint> query(String application, String task, String metricName, Collection<String> versions, long from, long to) {
+        Collection<MetricSeries> matched = resolve(application, task, metricName, versions).values();
+        if (matched.size() == 1) {
+            List<MetricDatapoint> ret = new ArrayList<>();
+            matched.iterator().next().range(from, to, ret);
+            return ret;
+        }
+        List<List<MetricDatapoint>> slices = new ArrayList<>(matched.size());
+        int total = 0;
+        for (MetricSeries s : matched) {
+            List<MetricDatapoint> slice = new ArrayList<>();
+            s.range(from, to, slice);
+            if (!slice.isEmpty()) {
+                slices.add(slice);
+                total += slice.size();
+            }
+        }
+        return merge(slices, total);
+    }
+
+    // k-way merge of already sorted slices, O(n log k)
+    static List<MetricDatapoint> merge(List<List<MetricDatapoint>> slices, int total) {
+        List<MetricDatapoint> ret = new ArrayList<>(total);
+        if (slices.size() == 1) {
+            ret.addAll(slices.get(0));
+            return ret;
+        }
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, slices.size()), Comparator.comparingLong(
+                (int[] head) -> slices.get(head[0]).get(head[1]).getMeasuredTime().getTime()));
+        for (int i = 0; i < slices.size(); i++) {
+            heads.add(new int[]{i, 0});
+        }
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<MetricDatapoint> slice = slices.get(head[0]);
+            ret.add(slice.get(head[1]));
+            if (++head[1] < slice.size()) {
+                heads.add(head);
+            }
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,225 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Asynchronous, batched ingestion of metric datapoints into a {@link MetricStore}.
+ *
+ * Each (application, task) pair is owned by one of a fixed number of stripes, each with its own queue and worker
+ * thread, so writes for different pairs proceed in parallel while writes for the same pair (and therefore the same
+ * series) are applied in submission order by a single thread. Workers drain all queued writes at once and coalesce
+ * those for the same pair into a single store write.
+ *
+ * Each stripe admits at most a fixed number of queued datapoints; submitters block once that bound is reached until the
+ * worker catches up. Submissions return a future completed once the write has been applied to the store (i.e. is
+ * visible to queries); {@link #flush()} additionally awaits everything submitted so far and forces it to disk.
+ */
+public class MetricIngestPipeline implements Closeable {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+    private static final int MAX_DRAIN = 1024;
+    private static final Write SHUTDOWN = new Write(null, null, Collections.emptyList(), 0);
+
+    private final MetricStore store;
+    private final MetricRollups rollups;
+    private final Stripe[] stripes;
+    private final int queueCapacity;
+    private volatile boolean closed;
+
+    /**
+     * @param store The store to write to
+     * @param rollups Rollups to update with written datapoints, or null
+     * @param stripeCount The number of stripes (and worker threads)
+     * @param queueCapacity The maximum number of datapoints queued per stripe before submitters block
+     */
+    public MetricIngestPipeline(MetricStore store, MetricRollups rollups, int stripeCount, int queueCapacity) {
+        if (stripeCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Stripe count and queue capacity must be positive");
+        }
+        this.store = store;
+        this.rollups = rollups;
+        this.queueCapacity = queueCapacity;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(i);
+            stripes[i].worker.start();
+        }
+    }
+
+    /**
+     * Queues datapoints for writing, blocking while the owning stripe's queue is full
+     * @param application The application name
+     * @param task The task name
+     * @param datapoints The datapoints to write, copied before this method returns
+     * @return A future completed once the datapoints have been applied to the store
+     * @throws InterruptedException if interrupted while waiting for queue capacity
+     * @throws IllegalStateException if this pipeline has been closed
+     */
+    public CompletableFuture<Void> submit(String application, String task, Collection<? extends MetricDatapoint> datapoints)
+            throws InterruptedException {
+        Stripe stripe = stripes[Math.floorMod(Objects.hash(application, task), stripes.length)];
+        Write write = new Write(application, task, new ArrayList<>(datapoints), Math.min(datapoints.size(), queueCapacity));
+        stripe.enqueue(write);
+        return write.done;
+    }
+
+    /**
+     * Waits for all datapoints submitted before this call to be applied, then forces the store to durable storage.
+     * Failures of individual writes are reported through the futures returned on submission, not here.
+     * @throws IOException if the store could not be flushed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flush() throws IOException, InterruptedException {
+        List<CompletableFuture<Void>> barriers = new ArrayList<>(stripes.length);
+        for (Stripe stripe : stripes) {
+            Write barrier = new Write(null, null, Collections.emptyList(), 0);
+            stripe.enqueue(barrier);
+            barriers.add(barrier.done);
+        }
+        try {
+            CompletableFuture.allOf(barriers.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to apply pending metric writes", e.getCause());
+        }
+        store.flush();
+    }
+
+    /**
+     * Stops accepting writes, applies all writes already queued and stops the worker threads. Does not close the store.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        // Not interrupted, as interrupting a thread blocked on file channel IO closes the channel
+        for (Stripe stripe : stripes) {
+            stripe.queue.add(SHUTDOWN);
+        }
+        boolean interrupted = false;
+        for (Stripe stripe : stripes) {
+            while (stripe.worker.isAlive()) {
+                try {
+                    stripe.worker.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            // Writes that raced with shutdown
+            List<Write> remaining = new ArrayList<>();
+            stripe.queue.drainTo(remaining);
+            stripe.process(remaining);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void apply(List<Write> writes) {
+        // Coalesce writes for the same (application, task), keeping submission order within each
+        Map<List<String>, List<Write>> grouped = new LinkedHashMap<>();
+        for (Write write : writes) {
+            if (write.application != null) {
+                grouped.computeIfAbsent(Arrays.asList(write.application, write.task), k -> new ArrayList<>()).add(write);
+            }
+        }
+        for (Map.Entry<List<String>, List<Write>> e : grouped.entrySet()) {
+            String application = e.getKey().get(0);
+            String task = e.getKey().get(1);
+            List<MetricDatapoint> datapoints = new ArrayList<>();
+            e.getValue().forEach(w -> datapoints.addAll(w.datapoints));
+            try {
+                if (rollups != null) {
+                    rollups.prepare(application, task, datapoints);
+                }
+                List<MetricDatapoint> added = store.ingest(application, task, datapoints);
+                if (rollups != null) {
+                    rollups.record(application, task, added);
+                }
+                e.getValue().forEach(w -> w.done.complete(null));
+            } catch (Throwable t) {
+                IEvaluate.getLogger().error("Failure writing " + datapoints.size() + " metrics for " + application + "/" + task, t);
+                e.getValue().forEach(w -> w.done.completeExceptionally(t));
+            }
+        }
+        // Barriers complete only once every write queued ahead of them has been applied
+        for (Write write : writes) {
+            if (write.application == null) {
+                write.done.complete(null);
+            }
+        }
+    }
+
+    private final class Stripe {
+        private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+        private final Semaphore capacity = new Semaphore(queueCapacity);
+        private final Thread worker;
+
+        Stripe(int index) {
+            worker = new Thread(this::run, "IEvaluate-Metric-Ingest-" + index);
+            worker.setDaemon(true);
+        }
+
+        void enqueue(Write write) throws InterruptedException {
+            if (closed) {
+                throw new IllegalStateException("Metric ingestion has been shut down");
+            }
+            capacity.acquire(write.permits);
+            queue.add(write);
+            // If close() raced with this write and already drained the queue, nothing will ever apply it
+            if (closed && queue.remove(write)) {
+                capacity.release(write.permits);
+                throw new IllegalStateException("Metric ingestion has been shut down");
+            }
+        }
+
+        private void run() {
+            List<Write> batch = new ArrayList<>();
+            boolean shutdown = false;
+            while (!shutdown) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    continue; // Only stopped by a shutdown marker, see close()
+                }
+                queue.drainTo(batch, MAX_DRAIN - 1);
+                shutdown = batch.remove(SHUTDOWN);
+                process(batch);
+            }
+        }
+
+        private void process(List<Write> batch) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                apply(batch);
+            } finally {
+                int permits = 0;
+                for (Write write : batch) {
+                    permits += write.permits;
+                }
+                capacity.release(permits);
+                batch.clear();
+            }
+        }
+    }
+
+    private static final class Write {
+        private final String application; // Null for flush barriers
+        private final String task;
+        private final List<MetricDatapoint> datapoints;
+        private final int permits;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Write(String application, String task, List<MetricDatapoint> datapoints, int permits) {
+            this.application = application;
+            this.task = task;
+            this.datapoints = datapoints;
+            this.permits = permits;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+/**
+ * Aggregate statistics of the numeric datapoints measured within a single time bucket [start, start + resolution)
+ */
+public final class MetricRollup {
+    private final long start;
+    private final long resolution;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+    private final QuantileSketch sketch = new QuantileSketch();
+
+    public MetricRollup(long start, long resolution) {
+        this.start = start;
+        this.resolution = resolution;
+    }
+
+    void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        sketch.add(value);
+    }
+
+    void merge(MetricRollup other) {
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        sketch.merge(other.sketch);
+    }
+
+    /**
+     * @return The start of this bucket in epoch milliseconds, inclusive
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The width of this bucket in milliseconds
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMean() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @param q The quantile, between 0 and 1 inclusive
+     * @return The estimated value at the supplied quantile, within {@link QuantileSketch#RELATIVE_ACCURACY}
+     */
+    public double getQuantile(double q) {
+        return sketch.quantile(q);
+    }
+}
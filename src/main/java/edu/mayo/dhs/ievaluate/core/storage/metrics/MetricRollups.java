@@ -0,0 +1,284 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incrementally maintained rollup tiers of per-bucket count/min/max/sum and quantile sketches for each metric series,
+ * at a fixed set of resolutions.
+ *
+ * Tiers are held in memory only, and each tier of a series retains a fixed number of buckets ending at the latest
+ * bucket it has seen, so that heap usage does not grow with history. Older buckets are evicted as newer ones are added
+ * and are computed from the raw datapoints of the backing {@link MetricStore} when queried.
+ *
+ * A series' tiers are seeded from the history the store already holds (e.g. segments persisted before a restart) the
+ * first time it is touched, after which they are kept up to date as datapoints are ingested. Seeding only reads the
+ * retained span, and {@link #seedInBackground()} seeds all series on a background thread after startup, so that the
+ * first write or query of a series rarely has to wait for it. Callers are expected to serialize ingestion per series.
+ */
+public class MetricRollups implements Closeable {
+    public static final long[] DEFAULT_RESOLUTIONS = {TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+    public static final int DEFAULT_RETAINED_BUCKETS = 1000;
+
+    private final MetricStore store;
+    private final long[] resolutions;
+    private final int retainedBuckets;
+    private final SeriesTable<SeriesRollups> series = new SeriesTable<>();
+    private volatile boolean closed;
+    private Thread seeder;
+
+    public MetricRollups(MetricStore store, long[] resolutions) {
+        this(store, resolutions, DEFAULT_RETAINED_BUCKETS);
+    }
+
+    /**
+     * @param store The store holding the raw datapoints, used to seed tiers and to serve resolutions finer than any
+     * tier as well as buckets older than those retained
+     * @param resolutions The tier resolutions in milliseconds
+     * @param retainedBuckets The number of buckets retained per tier of each series
+     */
+    public MetricRollups(MetricStore store, long[] resolutions, int retainedBuckets) {
+        this.store = store;
+        this.resolutions = resolutions.clone();
+        this.retainedBuckets = retainedBuckets;
+        Arrays.sort(this.resolutions);
+        for (long resolution : this.resolutions) {
+            if (resolution <= 0) {
+                throw new IllegalArgumentException("Rollup resolutions must be positive");
+            }
+        }
+        if (retainedBuckets < 1) {
+            throw new IllegalArgumentException("At least one rollup bucket must be retained");
+        }
+    }
+
+    /**
+     * Seeds the tiers of every series already in the store on a background thread, one series at a time
+     */
+    public synchronized void seedInBackground() {
+        if (seeder != null || closed) {
+            return;
+        }
+        seeder = new Thread(() -> {
+            for (MetricSeriesKey key : store.keys()) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    getOrSeed(key);
+                } catch (RuntimeException e) {
+                    IEvaluate.getLogger().warn("Failed to seed metric rollups of " + key + ", retrying on use", e);
+                }
+            }
+        }, "IEvaluate-Rollup-Seeder");
+        seeder.setDaemon(true);
+        seeder.start();
+    }
+
+    /**
+     * Ensures the tiers of every series the supplied datapoints belong to are seeded. Must be called before the
+     * datapoints are ingested into the backing store, so that they are not counted twice.
+     */
+    public void prepare(String application, String task, Collection<? extends MetricDatapoint> datapoints) {
+        Set<MetricSeriesKey> keys = new HashSet<>();
+        for (MetricDatapoint dp : datapoints) {
+            keys.add(MetricSeriesKey.of(application, task, dp));
+        }
+        keys.forEach(this::getOrSeed);
+    }
+
+    /**
+     * Adds newly ingested datapoints to all tiers. Datapoints without a numeric value are ignored.
+     * @param datapoints Datapoints actually added to the backing store, i.e. excluding duplicates
+     */
+    public void record(String application, String task, Collection<? extends MetricDatapoint> datapoints) {
+        for (MetricDatapoint dp : datapoints) {
+            Object value = dp.getValue();
+            if (value instanceof Number) {
+                getOrSeed(MetricSeriesKey.of(application, task, dp))
+                        .add(dp.getMeasuredTime().getTime(), ((Number) value).doubleValue());
+            }
+        }
+    }
+
+    /**
+     * Retrieves aggregates at the requested resolution, merged across all matching series, using the coarsest tier whose
+     * resolution evenly divides the requested one. If no tier does, aggregates are computed from raw datapoints.
+     * The requested range is widened to whole buckets of the requested resolution.
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound in epoch milliseconds
+     * @param to Exclusive upper bound in epoch milliseconds
+     * @param resolution The bucket width in milliseconds
+     * @return Non-empty buckets in time order
+     */
+    public List<MetricRollup> query(String application, String task, String metricName, Collection<String> versions,
+                                    long from, long to, long resolution) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive");
+        }
+        // Unbounded ends are left as-is, aligning them would overflow
+        long alignedFrom = from == Long.MIN_VALUE ? from : Math.floorDiv(from, resolution) * resolution;
+        long alignedTo = to == Long.MAX_VALUE ? to : -Math.floorDiv(-to, resolution) * resolution;
+        int tier = -1;
+        for (int i = resolutions.length - 1; i >= 0; i--) {
+            if (resolutions[i] <= resolution && resolution % resolutions[i] == 0) {
+                tier = i;
+                break;
+            }
+        }
+        TreeMap<Long, MetricRollup> ret = new TreeMap<>();
+        if (tier < 0) {
+            aggregate(store.readers(application, task, metricName, versions), alignedFrom, alignedTo, resolution, ret);
+        } else {
+            // Series persisted before startup that have not been touched since are seeded here
+            for (MetricSeriesKey key : store.keys(application, task, metricName, versions)) {
+                long retainedFrom = getOrSeed(key).collect(tier, alignedFrom, alignedTo, resolution, ret);
+                if (alignedFrom < retainedFrom) {
+                    aggregate(readers(key), alignedFrom, Math.min(alignedTo, retainedFrom), resolution, ret);
+                }
+            }
+        }
+        return new ArrayList<>(ret.values());
+    }
+
+    /**
+     * Stops seeding in the background
+     */
+    @Override
+    public void close() {
+        Thread seeder;
+        synchronized (this) {
+            closed = true;
+            seeder = this.seeder;
+        }
+        if (seeder != null) {
+            try {
+                seeder.join(); // Finishes the series being seeded
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Adds raw datapoints within [from, to) to the buckets of the supplied resolution
+    private static void aggregate(Collection<? extends MetricSeriesReader> readers, long from, long to, long resolution,
+                                  Map<Long, MetricRollup> out) {
+        new MetricSpliterator(readers, from, to, MetricSpliterator.DEFAULT_PAGE_SIZE).forEachRemaining(dp -> {
+            if (dp.getValue() instanceof Number) {
+                long start = Math.floorDiv(dp.getMeasuredTime().getTime(), resolution) * resolution;
+                double value = ((Number) dp.getValue()).doubleValue();
+                out.computeIfAbsent(start, k -> new MetricRollup(k, resolution)).add(value);
+            }
+        });
+    }
+
+    private Collection<? extends MetricSeriesReader> readers(MetricSeriesKey key) {
+        return store.readers(key.getApplication(), key.getTask(), key.getMetricName(),
+                Collections.singleton(key.getVersion()));
+    }
+
+    private SeriesRollups getOrSeed(MetricSeriesKey key) {
+        SeriesRollups ret = series.getOrCreate(key, k -> new SeriesRollups());
+        ret.seed(key);
+        return ret;
+    }
+
+    private final class SeriesRollups {
+        private final List<TreeMap<Long, MetricRollup>> tiers = new ArrayList<>();
+        // Per tier, the start of the oldest bucket retained. Retained buckets are complete, older ones are evicted.
+        private final long[] retainedFrom = new long[resolutions.length];
+        private boolean seeded;
+
+        SeriesRollups() {
+            for (int i = 0; i < resolutions.length; i++) {
+                tiers.add(new TreeMap<>());
+            }
+            Arrays.fill(retainedFrom, Long.MIN_VALUE);
+        }
+
+        // Only the span the tiers retain is read, so seeding does not take longer with more history
+        synchronized void seed(MetricSeriesKey key) {
+            if (seeded) {
+                return;
+            }
+            Collection<? extends MetricSeriesReader> readers = readers(key);
+            long latest = Long.MIN_VALUE;
+            for (MetricSeriesReader reader : readers) {
+                latest = Math.max(latest, reader.maxTime());
+            }
+            if (latest != Long.MIN_VALUE) {
+                long from = Long.MAX_VALUE;
+                for (int i = 0; i < resolutions.length; i++) {
+                    retain(i, Math.floorDiv(latest, resolutions[i]) * resolutions[i]);
+                    from = Math.min(from, retainedFrom[i]);
+                }
+                try {
+                    new MetricSpliterator(readers, from, Long.MAX_VALUE, MetricSpliterator.DEFAULT_PAGE_SIZE)
+                            .forEachRemaining(dp -> {
+                                if (dp.getValue() instanceof Number) {
+                                    add(dp.getMeasuredTime().getTime(), ((Number) dp.getValue()).doubleValue());
+                                }
+                            });
+                } catch (RuntimeException e) {
+                    // Discards the partial seed so that a retry does not count datapoints twice
+                    tiers.forEach(TreeMap::clear);
+                    Arrays.fill(retainedFrom, Long.MIN_VALUE);
+                    throw e;
+                }
+            }
+            seeded = true;
+        }
+
+        synchronized void add(long time, double value) {
+            for (int i = 0; i < resolutions.length; i++) {
+                long resolution = resolutions[i];
+                long start = Math.floorDiv(time, resolution) * resolution;
+                if (start < retainedFrom[i]) {
+                    continue; // Served from raw datapoints
+                }
+                tiers.get(i).computeIfAbsent(start, k -> new MetricRollup(k, resolution)).add(value);
+                retain(i, start);
+            }
+        }
+
+        // Moves the retained span of a tier forward to end at the supplied bucket, evicting older buckets
+        private void retain(int tier, long latestStart) {
+            long span;
+            try {
+                span = Math.multiplyExact(resolutions[tier], (long) retainedBuckets - 1);
+            } catch (ArithmeticException e) {
+                return; // Retains everything
+            }
+            if (latestStart < Long.MIN_VALUE + span) {
+                return;
+            }
+            long from = latestStart - span;
+            if (from > retainedFrom[tier]) {
+                retainedFrom[tier] = from;
+                tiers.get(tier).headMap(from).clear();
+            }
+        }
+
+        /**
+         * @return The start of the oldest bucket retained by the tier, before which datapoints must be aggregated from
+         * the store
+         */
+        synchronized long collect(int tier, long from, long to, long resolution, Map<Long, MetricRollup> out) {
+            long start = Math.max(from, retainedFrom[tier]);
+            if (start < to) {
+                for (MetricRollup rollup : tiers.get(tier).subMap(start, true, to, false).values()) {
+                    long bucket = Math.floorDiv(rollup.getStart(), resolution) * resolution;
+                    out.computeIfAbsent(bucket, k -> new MetricRollup(k, resolution)).merge(rollup);
+                }
+            }
+            return retainedFrom[tier];
+        }
+    }
+}
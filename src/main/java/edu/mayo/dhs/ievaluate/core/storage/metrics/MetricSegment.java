@@ -0,0 +1,469 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A single segment file holding the (timestamp, value) pairs of one metric series within one time window.
+ *
+ * A segment starts out active, appending fixed width records to the end of the file while also holding them in memory
+ * to serve queries, along with a hash set of its records for ingest-time duplicate checks. Once sealed, records are
+ * sorted by timestamp, the file is never modified again, and all reads go directly against a read-only
+ * {@link MappedByteBuffer} of the file without copying records onto the heap. A sealed segment may be
+ * {@link #unseal() unsealed} to take late records, and is then rewritten when it is sealed again.
+ *
+ * File layout (big-endian):
+ * <pre>
+ * 0  int   magic
+ * 4  short format version
+ * 6  byte  sealed flag
+ * 7  byte  reserved
+ * 8  long  record count
+ * 16 long  minimum timestamp
+ * 24 long  maximum timestamp
+ * 32 long  window start
+ * 40 long  reserved
+ * 48 records of (long timestamp, double value)
+ * </pre>
+ *
+ * The record count in the header of an active segment may lag behind the records actually written after a crash, in
+ * which case it is recovered from the file length when the segment is reopened.
+ */
+final class MetricSegment {
+    static final String EXTENSION = ".seg";
+    private static final int MAGIC = 0x49454D53; // IEMS
+    private static final short FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int RECORD_SIZE = 16;
+
+    private final File file;
+    private final long windowStart;
+    private long count;
+    private long minTime = Long.MAX_VALUE;
+    private long maxTime = Long.MIN_VALUE;
+    private boolean sealed;
+
+    // Sealed state
+    private MappedByteBuffer mapped;
+
+    // Active state
+    private FileChannel channel;
+    private long[] times;
+    private double[] values;
+    private boolean sorted = true;
+    private int[] slots; // Open addressing set of record index + 1, by (timestamp, value), for duplicate checks
+
+    private MetricSegment(File file, long windowStart) {
+        this.file = file;
+        this.windowStart = windowStart;
+    }
+
+    /**
+     * Creates a new, empty, active segment
+     */
+    static MetricSegment create(File file, long windowStart) throws IOException {
+        MetricSegment ret = new MetricSegment(file, windowStart);
+        ret.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ret.times = new long[64];
+        ret.values = new double[64];
+        ret.slots = new int[128];
+        ret.writeHeader();
+        return ret;
+    }
+
+    /**
+     * Opens an existing segment, reading only its header. Segments left active (e.g. by an unclean shutdown) are
+     * recovered and sealed.
+     * @return The segment, or null if it was never initialised (its header is missing, short or zeroed, e.g. after a
+     * crash right after it was created), in which case the file is deleted
+     */
+    static MetricSegment open(File file) throws IOException {
+        long discarded;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            discarded = ch.size();
+            if (discarded >= HEADER_SIZE && ch.read(header, 0) == HEADER_SIZE && !isZero(header)) {
+                return open(file, ch, header);
+            }
+        }
+        IEvaluate.getLogger().warn("Discarding uninitialised metric segment " + file + " (" + discarded + " bytes)");
+        Files.delete(file.toPath());
+        return null;
+    }
+
+    private static MetricSegment open(File file, FileChannel ch, ByteBuffer header) throws IOException {
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a metric segment: " + file);
+        }
+        if (header.getShort(4) != FORMAT_VERSION) {
+            throw new IOException("Unsupported metric segment version " + header.getShort(4) + ": " + file);
+        }
+        MetricSegment ret = new MetricSegment(file, header.getLong(32));
+        ret.sealed = header.get(6) != 0;
+        ret.count = header.getLong(8);
+        ret.minTime = header.getLong(16);
+        ret.maxTime = header.getLong(24);
+        if (!ret.sealed) {
+            ret.recover(ch);
+        }
+        return ret;
+    }
+
+    // Files are zero-filled up to their length if a crash lost the header write
+    private static boolean isZero(ByteBuffer header) {
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            if (header.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recover(FileChannel ch) throws IOException {
+        load(ch, (int) ((ch.size() - HEADER_SIZE) / RECORD_SIZE));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.truncate(HEADER_SIZE + count * RECORD_SIZE); // Drop any torn record
+        seal();
+    }
+
+    /**
+     * Reopens this sealed segment for appends, reading its records back into memory, so that late datapoints of an
+     * old window are added to its last segment rather than to a new one
+     */
+    void unseal() throws IOException {
+        if (!sealed) {
+            return;
+        }
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            load(ch, (int) count);
+            sealed = false;
+            writeHeader(ch);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        channel = ch;
+        mapped = null;
+    }
+
+    // Reads the first records of the file into the in-memory state of an active segment
+    private void load(FileChannel ch, int records) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(records * RECORD_SIZE);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, HEADER_SIZE + buf.position()) < 0) {
+                break; // Truncated, keep the complete records
+            }
+        }
+        buf.flip();
+        times = new long[Math.max(64, records)];
+        values = new double[Math.max(64, records)];
+        slots = new int[Integer.highestOneBit(Math.max(64, records)) << 2];
+        sorted = true;
+        count = 0;
+        minTime = Long.MAX_VALUE;
+        maxTime = Long.MIN_VALUE;
+        while (buf.remaining() >= RECORD_SIZE) {
+            record(buf.getLong(), buf.getDouble());
+        }
+    }
+
+    /**
+     * Appends records to this (active) segment
+     */
+    void append(long[] newTimes, double[] newValues, int length) throws IOException {
+        if (sealed) {
+            throw new IllegalStateException("Attempted to append to sealed segment " + file);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length * RECORD_SIZE);
+        for (int i = 0; i < length; i++) {
+            buf.putLong(newTimes[i]).putDouble(newValues[i]);
+        }
+        buf.flip();
+        long pos = HEADER_SIZE + count * RECORD_SIZE;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+        for (int i = 0; i < length; i++) {
+            record(newTimes[i], newValues[i]);
+        }
+        writeHeader();
+    }
+
+    private void record(long time, double value) {
+        int idx = (int) count;
+        if (idx == times.length) {
+            times = Arrays.copyOf(times, idx << 1);
+            values = Arrays.copyOf(values, idx << 1);
+        }
+        if (idx > 0 && times[idx - 1] > time) {
+            sorted = false;
+        }
+        times[idx] = time;
+        values[idx] = value;
+        count++;
+        if (count << 1 > slots.length) {
+            slots = new int[slots.length << 1];
+            for (int i = 0; i < count; i++) {
+                slots[free(times[i], values[i])] = i + 1;
+            }
+        } else {
+            slots[free(time, value)] = idx + 1;
+        }
+        minTime = Math.min(minTime, time);
+        maxTime = Math.max(maxTime, time);
+    }
+
+    /**
+     * Sorts and seals this segment, after which it is immutable and read via a memory mapping
+     */
+    void seal() throws IOException {
+        if (sealed) {
+            return;
+        }
+        int n = (int) count;
+        if (!sorted) {
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(times[a], times[b])); // Stable
+            ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + n * RECORD_SIZE);
+            buf.position(HEADER_SIZE);
+            for (int i = 0; i < n; i++) {
+                buf.putLong(times[order[i]]).putDouble(values[order[i]]);
+            }
+            sealed = true;
+            putHeader(buf);
+            buf.position(0);
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                out.force(true);
+            }
+            channel.close();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            sealed = true;
+            writeHeader();
+            channel.force(true);
+            channel.close();
+        }
+        channel = null;
+        times = null;
+        values = null;
+        slots = null;
+    }
+
+    /**
+     * Forces appended records and the header of an active segment to disk
+     */
+    void force() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        writeHeader(channel);
+    }
+
+    private void writeHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        putHeader(header);
+        header.flip();
+        ch.write(header, 0);
+    }
+
+    private void putHeader(ByteBuffer buf) {
+        buf.putInt(0, MAGIC);
+        buf.putShort(4, FORMAT_VERSION);
+        buf.put(6, (byte) (sealed ? 1 : 0));
+        buf.put(7, (byte) 0);
+        buf.putLong(8, count);
+        buf.putLong(16, minTime);
+        buf.putLong(24, maxTime);
+        buf.putLong(32, windowStart);
+        buf.putLong(40, 0);
+        if (buf.position() < HEADER_SIZE) {
+            buf.position(HEADER_SIZE);
+        }
+    }
+
+    private synchronized MappedByteBuffer mapped() throws IOException {
+        if (mapped == null) {
+            try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + count * RECORD_SIZE);
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Visits all records with a timestamp within [from, to), in timestamp order
+     */
+    void forEach(long from, long to, RecordConsumer consumer) throws IOException {
+        if (count == 0 || from > maxTime || to <= minTime) {
+            return;
+        }
+        if (sealed) {
+            ByteBuffer buf = mapped().duplicate();
+            long end = lowerBound(buf, to);
+            for (long i = lowerBound(buf, from); i < end; i++) {
+                int pos = (int) (HEADER_SIZE + i * RECORD_SIZE);
+                consumer.accept(buf.getLong(pos), buf.getDouble(pos + 8));
+            }
+        } else if (sorted) {
+            int end = Arrays.binarySearch(times, 0, (int) count, to);
+            int i = Arrays.binarySearch(times, 0, (int) count, from);
+            // Arrays.binarySearch returns an arbitrary match amongst equal keys, so rewind to the first
+            end = end < 0 ? -end - 1 : end;
+            i = i < 0 ? -i - 1 : i;
+            while (end > 0 && times[end - 1] >= to) {
+                end--;
+            }
+            while (i > 0 && times[i - 1] >= from) {
+                i--;
+            }
+            for (; i < end; i++) {
+                consumer.accept(times[i], values[i]);
+            }
+        } else {
+            // Only the records in range are ordered, in insertion order amongst equal timestamps
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (times[i] >= from && times[i] < to) {
+                    order.add(i);
+                }
+            }
+            order.sort((a, b) -> Long.compare(times[a], times[b]));
+            for (int i : order) {
+                consumer.accept(times[i], values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return The number of records with a timestamp within [from, to)
+     */
+    long count(long from, long to) throws IOException {
+        if (count == 0 || from > maxTime || to <= minTime) {
+            return 0;
+        }
+        if (from <= minTime && to > maxTime) {
+            return count;
+        }
+        if (sealed) {
+            ByteBuffer buf = mapped().duplicate();
+            return lowerBound(buf, to) - lowerBound(buf, from);
+        }
+        long ret = 0;
+        for (int i = 0; i < count; i++) {
+            if (times[i] >= from && times[i] < to) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return Whether a record with exactly the supplied timestamp and value exists in this segment
+     */
+    boolean contains(long time, double value) throws IOException {
+        if (count == 0 || time < minTime || time > maxTime) {
+            return false;
+        }
+        if (!sealed) {
+            return find(time, value) != 0;
+        }
+        boolean[] found = new boolean[1];
+        forEach(time, time + 1, (t, v) -> found[0] |= Double.doubleToLongBits(v) == Double.doubleToLongBits(value));
+        return found[0];
+    }
+
+    // The slot holding the supplied record, or 0 if absent
+    private int find(long time, double value) {
+        long bits = Double.doubleToLongBits(value);
+        int mask = slots.length - 1;
+        for (int slot = hash(time, bits) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int idx = slots[slot] - 1;
+            if (times[idx] == time && Double.doubleToLongBits(values[idx]) == bits) {
+                return slots[slot];
+            }
+        }
+        return 0;
+    }
+
+    // The first empty slot for the supplied record
+    private int free(long time, double value) {
+        int mask = slots.length - 1;
+        int slot = hash(time, Double.doubleToLongBits(value)) & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long time, long valueBits) {
+        long h = (time * 0x9E3779B97F4A7C15L) ^ valueBits;
+        h ^= h >>> 32;
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+
+    private long lowerBound(ByteBuffer buf, long time) {
+        long lo = 0;
+        long hi = count;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (buf.getLong((int) (HEADER_SIZE + mid * RECORD_SIZE)) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    File file() {
+        return file;
+    }
+
+    long windowStart() {
+        return windowStart;
+    }
+
+    long count() {
+        return count;
+    }
+
+    long minTime() {
+        return minTime;
+    }
+
+    long maxTime() {
+        return maxTime;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    @FunctionalInterface
+    interface RecordConsumer {
+        void accept(long time, double value);
+    }
+}
@@ -0,0 +1,331 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A single (application, task, metric, version) series of datapoints, kept sorted by measured time at ingest.
+ *
+ * Datapoints are stored column-wise as primitive timestamps and values: recent datapoints in an active buffer of
+ * long[]/double[] arrays, and older datapoints in sealed {@link CompressedBlock}s of {@link #BLOCK_SIZE} datapoints
+ * each. Datapoints are rebuilt from a per-series {@link DatapointCodec} template on read. Datapoints that cannot be
+ * represented this way (e.g. non-numeric values) are kept as-is in a separate sorted fallback column.
+ *
+ * Appending in time order (the common case) is amortized O(1); out of order datapoints are inserted in place, which for
+ * sealed data means re-encoding a single block. Duplicate datapoints (per {@link MetricDatapoint#equals(Object)}) are
+ * ignored, matching set semantics.
+ */
+public class MetricSeries implements MetricSeriesReader {
+    static final int BLOCK_SIZE = 1024;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private DatapointCodec codec;
+    private boolean codecResolved;
+
+    private final List<CompressedBlock> sealed = new ArrayList<>();
+    private long[] activeTimes = new long[INITIAL_CAPACITY];
+    private double[] activeValues = new double[INITIAL_CAPACITY];
+    private int activeSize;
+
+    private long[] boxedTimes = new long[0];
+    private MetricDatapoint[] boxedPoints = new MetricDatapoint[0];
+    private int boxedSize;
+
+    private int size;
+
+    /**
+     * @param datapoints The datapoints to add to this series
+     * @return The datapoints actually added (i.e. that were not duplicates)
+     */
+    public synchronized List<MetricDatapoint> addAll(Collection<? extends MetricDatapoint> datapoints) {
+        List<MetricDatapoint> added = new ArrayList<>(datapoints.size());
+        for (MetricDatapoint dp : datapoints) {
+            if (add(dp)) {
+                added.add(dp);
+            }
+        }
+        size += added.size();
+        return added;
+    }
+
+    private boolean add(MetricDatapoint datapoint) {
+        if (!codecResolved) {
+            // Resolved from the first datapoint, series are expected to be homogeneous
+            codec = DatapointCodec.forDatapoint(datapoint);
+            codecResolved = true;
+        }
+        long time = datapoint.getMeasuredTime().getTime();
+        if (codec != null && codec.encodes(datapoint)) {
+            return addEncoded(time, codec.value(datapoint));
+        }
+        return addBoxed(time, datapoint);
+    }
+
+    private boolean addEncoded(long time, double value) {
+        if (!sealed.isEmpty() && time <= sealed.get(sealed.size() - 1).maxTime()) {
+            return insertIntoSealed(time, value);
+        }
+        int pos = (activeSize == 0 || activeTimes[activeSize - 1] <= time)
+                ? activeSize
+                : upperBound(activeTimes, activeSize, time);
+        if (contains(activeTimes, activeValues, pos, time, value)) {
+            return false;
+        }
+        if (activeSize == activeTimes.length) {
+            int newCapacity = Math.min(activeTimes.length << 1, BLOCK_SIZE);
+            activeTimes = Arrays.copyOf(activeTimes, newCapacity);
+            activeValues = Arrays.copyOf(activeValues, newCapacity);
+        }
+        if (pos < activeSize) {
+            System.arraycopy(activeTimes, pos, activeTimes, pos + 1, activeSize - pos);
+            System.arraycopy(activeValues, pos, activeValues, pos + 1, activeSize - pos);
+        }
+        activeTimes[pos] = time;
+        activeValues[pos] = value;
+        activeSize++;
+        if (activeSize == BLOCK_SIZE) {
+            sealed.add(CompressedBlock.encode(activeTimes, activeValues, 0, activeSize));
+            activeSize = 0;
+        }
+        return true;
+    }
+
+    // Late datapoint that falls within already sealed data: decode the owning block, insert, and re-encode
+    private boolean insertIntoSealed(long time, double value) {
+        int lo = 0;
+        int hi = sealed.size() - 1;
+        while (lo < hi) { // First block with maxTime >= time
+            int mid = (lo + hi) >>> 1;
+            if (sealed.get(mid).maxTime() < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        CompressedBlock block = sealed.get(lo);
+        int count = block.count();
+        long[] times = new long[count + 1];
+        double[] values = new double[count + 1];
+        block.decodeTimes(times);
+        block.decodeValues(values);
+        int pos = upperBound(times, count, time);
+        if (contains(times, values, pos, time, value)) {
+            return false;
+        }
+        // Datapoints sharing a timestamp may straddle blocks that were split, so check the blocks starting at it too
+        for (int i = lo + 1; i < sealed.size() && sealed.get(i).minTime() == time; i++) {
+            CompressedBlock next = sealed.get(i);
+            long[] nextTimes = new long[next.count()];
+            double[] nextValues = new double[next.count()];
+            next.decodeTimes(nextTimes);
+            next.decodeValues(nextValues);
+            if (contains(nextTimes, nextValues, upperBound(nextTimes, nextTimes.length, time), time, value)) {
+                return false;
+            }
+        }
+        System.arraycopy(times, pos, times, pos + 1, count - pos);
+        System.arraycopy(values, pos, values, pos + 1, count - pos);
+        times[pos] = time;
+        values[pos] = value;
+        count++;
+        if (count >= 2 * BLOCK_SIZE) {
+            int half = count / 2;
+            sealed.set(lo, CompressedBlock.encode(times, values, 0, half));
+            sealed.add(lo + 1, CompressedBlock.encode(times, values, half, count - half));
+        } else {
+            sealed.set(lo, CompressedBlock.encode(times, values, 0, count));
+        }
+        return true;
+    }
+
+    // Whether the datapoints before end, sorted by time, include the supplied one
+    private static boolean contains(long[] times, double[] values, int end, long time, double value) {
+        for (int i = end - 1; i >= 0 && times[i] == time; i--) {
+            if (sameValue(values[i], value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean addBoxed(long time, MetricDatapoint datapoint) {
+        int pos = (boxedSize == 0 || boxedTimes[boxedSize - 1] <= time) ? boxedSize : upperBound(boxedTimes, boxedSize, time);
+        for (int i = pos - 1; i >= 0 && boxedTimes[i] == time; i--) {
+            if (boxedPoints[i].equals(datapoint)) {
+                return false;
+            }
+        }
+        if (boxedSize == boxedTimes.length) {
+            int newCapacity = Math.max(INITIAL_CAPACITY, boxedTimes.length << 1);
+            boxedTimes = Arrays.copyOf(boxedTimes, newCapacity);
+            boxedPoints = Arrays.copyOf(boxedPoints, newCapacity);
+        }
+        if (pos < boxedSize) {
+            System.arraycopy(boxedTimes, pos, boxedTimes, pos + 1, boxedSize - pos);
+            System.arraycopy(boxedPoints, pos, boxedPoints, pos + 1, boxedSize - pos);
+        }
+        boxedTimes[pos] = time;
+        boxedPoints[pos] = datapoint;
+        boxedSize++;
+        return true;
+    }
+
+    @Override
+    public synchronized void range(long from, long to, List<MetricDatapoint> out) {
+        if (boxedSize == 0) {
+            encodedRange(from, to, out);
+            return;
+        }
+        List<MetricDatapoint> encoded = new ArrayList<>();
+        encodedRange(from, to, encoded);
+        int e = 0;
+        int b = lowerBound(boxedTimes, boxedSize, from);
+        int bEnd = lowerBound(boxedTimes, boxedSize, to);
+        while (e < encoded.size() || b < bEnd) {
+            if (b >= bEnd || (e < encoded.size() && encoded.get(e).getMeasuredTime().getTime() <= boxedTimes[b])) {
+                out.add(encoded.get(e++));
+            } else {
+                out.add(boxedPoints[b++]);
+            }
+        }
+    }
+
+    private void encodedRange(long from, long to, List<MetricDatapoint> out) {
+        long[] times = null;
+        double[] values = null;
+        for (int i = firstBlockEndingAtOrAfter(from); i < sealed.size() && sealed.get(i).minTime() < to; i++) {
+            CompressedBlock block = sealed.get(i);
+            if (times == null || times.length < block.count()) {
+                times = new long[block.count()];
+                values = new double[block.count()];
+            }
+            block.decodeTimes(times);
+            block.decodeValues(values);
+            int start = lowerBound(times, block.count(), from);
+            int end = lowerBound(times, block.count(), to);
+            for (int j = start; j < end; j++) {
+                out.add(codec.decode(times[j], values[j]));
+            }
+        }
+        int start = lowerBound(activeTimes, activeSize, from);
+        int end = lowerBound(activeTimes, activeSize, to);
+        for (int j = start; j < end; j++) {
+            out.add(codec.decode(activeTimes[j], activeValues[j]));
+        }
+    }
+
+    @Override
+    public synchronized long count(long from, long to) {
+        if (from >= to) {
+            return 0;
+        }
+        long ret = 0;
+        long[] times = null;
+        for (int i = firstBlockEndingAtOrAfter(from); i < sealed.size() && sealed.get(i).minTime() < to; i++) {
+            CompressedBlock block = sealed.get(i);
+            if (block.minTime() >= from && block.maxTime() < to) {
+                ret += block.count();
+                continue;
+            }
+            if (times == null || times.length < block.count()) {
+                times = new long[block.count()];
+            }
+            block.decodeTimes(times);
+            ret += lowerBound(times, block.count(), to) - lowerBound(times, block.count(), from);
+        }
+        ret += lowerBound(activeTimes, activeSize, to) - lowerBound(activeTimes, activeSize, from);
+        ret += lowerBound(boxedTimes, boxedSize, to) - lowerBound(boxedTimes, boxedSize, from);
+        return ret;
+    }
+
+    @Override
+    public synchronized long minTime() {
+        long ret = sealed.isEmpty() ? Long.MAX_VALUE : sealed.get(0).minTime();
+        if (activeSize > 0) {
+            ret = Math.min(ret, activeTimes[0]);
+        }
+        if (boxedSize > 0) {
+            ret = Math.min(ret, boxedTimes[0]);
+        }
+        return ret;
+    }
+
+    @Override
+    public synchronized long maxTime() {
+        long ret = sealed.isEmpty() ? Long.MIN_VALUE : sealed.get(sealed.size() - 1).maxTime();
+        if (activeSize > 0) {
+            ret = Math.max(ret, activeTimes[activeSize - 1]);
+        }
+        if (boxedSize > 0) {
+            ret = Math.max(ret, boxedTimes[boxedSize - 1]);
+        }
+        return ret;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The approximate heap footprint of the datapoints held by this series in bytes
+     */
+    public synchronized long sizeInBytes() {
+        long ret = 16L * activeTimes.length + 12L * boxedTimes.length;
+        for (CompressedBlock block : sealed) {
+            ret += block.sizeInBytes();
+        }
+        return ret;
+    }
+
+    private int firstBlockEndingAtOrAfter(long time) {
+        int lo = 0;
+        int hi = sealed.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sealed.get(mid).maxTime() < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static boolean sameValue(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    // First index with time >= the supplied time
+    private static int lowerBound(long[] times, int size, long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // First index with time > the supplied time
+    private static int upperBound(long[] times, int size, long time) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,74 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.util.Objects;
+
+/**
+ * Identifies a single metric series: one metric for one version of an application task
+ */
+public final class MetricSeriesKey {
+    private final String application;
+    private final String task;
+    private final String metricName;
+    private final String version;
+
+    public MetricSeriesKey(String application, String task, String metricName, String version) {
+        this.application = application;
+        this.task = task;
+        this.metricName = normalize(metricName);
+        this.version = normalize(version);
+    }
+
+    public static MetricSeriesKey of(String application, String task, MetricDatapoint datapoint) {
+        return new MetricSeriesKey(application, task, datapoint.getMetricName(), datapoint.getVersion());
+    }
+
+    /**
+     * Metric names and versions are optional on datapoints, but are used as map keys, so null is normalized to empty
+     */
+    static String normalize(String value) {
+        return value == null ? "" : value;
+    }
+
+    public String getApplication() {
+        return application;
+    }
+
+    public String getTask() {
+        return task;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof MetricSeriesKey)) {
+            return false;
+        }
+        MetricSeriesKey other = (MetricSeriesKey) o;
+        return application.equals(other.application)
+                && task.equals(other.task)
+                && metricName.equals(other.metricName)
+                && version.equals(other.version);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(application, task, metricName, version);
+    }
+
+    @Override
+    public String toString() {
+        return application + "/" + task + "/" + metricName + "@" + version;
+    }
+}
@@ -0,0 +1,35 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.util.List;
+
+/**
+ * Read access to the datapoints of a single metric series by time range
+ */
+public interface MetricSeriesReader {
+    /**
+     * Appends all datapoints measured within [from, to) to the supplied list, in time order
+     * @param from Inclusive lower bound in epoch milliseconds
+     * @param to Exclusive upper bound in epoch milliseconds
+     * @param out The list to append to
+     */
+    void range(long from, long to, List<MetricDatapoint> out);
+
+    /**
+     * @param from Inclusive lower bound in epoch milliseconds
+     * @param to Exclusive upper bound in epoch milliseconds
+     * @return The number of datapoints measured within [from, to)
+     */
+    long count(long from, long to);
+
+    /**
+     * @return The earliest time of any datapoint in the series, or Long.MAX_VALUE if it is empty
+     */
+    long minTime();
+
+    /**
+     * @return The latest time of any datapoint in the series, or Long.MIN_VALUE if it is empty
+     */
+    long maxTime();
+}
@@ -0,0 +1,197 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * A lazy cursor over the datapoints of one or more metric series within a time range, in time order.
+ *
+ * Datapoints are read a page at a time: each page covers the time range holding roughly {@link #pageSize} datapoints
+ * (located by bisecting on series counts between the earliest and latest datapoints actually present, rather than
+ * across the whole requested range, which may be unbounded), so at most a page of datapoints is held in memory at once
+ * regardless of the size of the range. Pages may exceed the page size only when more datapoints than that share a
+ * single timestamp.
+ *
+ * Splitting divides the remaining time range at its count midpoint, so parallel consumers each receive a contiguous
+ * and roughly equally sized time range. Not thread-safe, as with all spliterators.
+ */
+public class MetricSpliterator implements Spliterator<MetricDatapoint> {
+    public static final int DEFAULT_PAGE_SIZE = 4096;
+
+    private final List<MetricSeriesReader> readers;
+    private final int pageSize;
+    private long position;
+    private final long to;
+    private List<MetricDatapoint> page = Collections.emptyList();
+    private int pageIndex;
+    private long remainingEstimate = -1;
+
+    /**
+     * @param readers The series to read from
+     * @param from Inclusive lower bound in epoch milliseconds
+     * @param to Exclusive upper bound in epoch milliseconds
+     * @param pageSize The approximate number of datapoints to read at a time
+     */
+    public MetricSpliterator(Collection<? extends MetricSeriesReader> readers, long from, long to, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        this.readers = new ArrayList<>(readers);
+        this.position = from;
+        this.to = to;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Skips datapoints without reading them where possible, for efficient offsets into large ranges
+     * @param n The number of datapoints to skip
+     * @return This cursor
+     */
+    public MetricSpliterator skip(long n) {
+        while (n > 0 && pageIndex < page.size()) {
+            pageIndex++;
+            n--;
+        }
+        if (n > 0 && position < to) {
+            // Advance past whole timestamps covering at most n datapoints without reading them
+            long lo;
+            long hi;
+            if (count(position, to) <= n) {
+                lo = to;
+                hi = to;
+            } else { // Some datapoint lies in [position, to), so the bounds below are within it
+                lo = Math.max(position, minTime());
+                long max = maxTime();
+                hi = max < to ? max + 1 : to;
+            }
+            while (lo < hi) {
+                long mid = hi - ((hi - lo) >>> 1); // Upper midpoint, safe across the full long range
+                if (count(position, mid) <= n) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            n -= count(position, lo);
+            position = lo;
+            remainingEstimate = -1;
+        }
+        while (n > 0 && (pageIndex < page.size() || fill())) {
+            pageIndex++;
+            n--;
+        }
+        return this;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super MetricDatapoint> action) {
+        if (pageIndex >= page.size() && !fill()) {
+            return false;
+        }
+        action.accept(page.get(pageIndex++));
+        return true;
+    }
+
+    @Override
+    public Spliterator<MetricDatapoint> trySplit() {
+        if (pageIndex < page.size()) {
+            return null; // Only split at page boundaries
+        }
+        long remaining = estimateSize();
+        if (remaining < 2L * pageSize) {
+            return null;
+        }
+        long mid = boundary(position, to, remaining / 2);
+        if (mid <= position || mid >= to) {
+            return null;
+        }
+        MetricSpliterator prefix = new MetricSpliterator(readers, position, mid, pageSize);
+        position = mid;
+        remainingEstimate = -1;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        if (remainingEstimate < 0) {
+            remainingEstimate = position < to ? count(position, to) : 0;
+        }
+        return remainingEstimate + (page.size() - pageIndex);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private boolean fill() {
+        while (position < to) {
+            long end = boundary(position, to, pageSize);
+            List<List<MetricDatapoint>> slices = new ArrayList<>(readers.size());
+            int total = 0;
+            for (MetricSeriesReader reader : readers) {
+                List<MetricDatapoint> slice = new ArrayList<>();
+                reader.range(position, end, slice);
+                if (!slice.isEmpty()) {
+                    slices.add(slice);
+                    total += slice.size();
+                }
+            }
+            position = end;
+            remainingEstimate = remainingEstimate < 0 ? -1 : Math.max(0, remainingEstimate - total);
+            page = MetricIndex.merge(slices, total);
+            pageIndex = 0;
+            if (!page.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The earliest time b in (from, end] such that [from, b) holds at least target datapoints, or end if none
+    private long boundary(long from, long end, long target) {
+        if (count(from, end) <= target) {
+            return end;
+        }
+        // Some datapoint lies in [from, end), so the answer lies after the earliest and at most just after the latest
+        long min = minTime();
+        long max = maxTime();
+        long lo = target > 0 && min >= from ? min + 1 : from + 1;
+        long hi = max < end ? max + 1 : end;
+        while (lo < hi) {
+            long mid = lo + ((hi - lo) >>> 1); // Unsigned difference, safe across the full long range
+            if (count(from, mid) >= target) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return lo;
+    }
+
+    private long minTime() {
+        long ret = Long.MAX_VALUE;
+        for (MetricSeriesReader reader : readers) {
+            ret = Math.min(ret, reader.minTime());
+        }
+        return ret;
+    }
+
+    private long maxTime() {
+        long ret = Long.MIN_VALUE;
+        for (MetricSeriesReader reader : readers) {
+            ret = Math.max(ret, reader.maxTime());
+        }
+        return ret;
+    }
+
+    private long count(long from, long end) {
+        long ret = 0;
+        for (MetricSeriesReader reader : readers) {
+            ret += reader.count(from, end);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,71 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Backing store for metric datapoints keyed by (application, task, metric name, version) series
+ */
+public interface MetricStore extends Closeable {
+    /**
+     * Adds datapoints to their respective series, creating series as necessary. Duplicate datapoints are ignored.
+     * @param application The application name
+     * @param task The task name
+     * @param datapoints The datapoints to add
+     * @return The datapoints actually added (i.e. that were not duplicates)
+     */
+    List<MetricDatapoint> ingest(String application, String task, Collection<? extends MetricDatapoint> datapoints);
+
+    /**
+     * Retrieves datapoints measured within [from, to) in time order
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @param from Inclusive lower bound in epoch milliseconds
+     * @param to Exclusive upper bound in epoch milliseconds
+     * @return The matching datapoints sorted by measured time
+     */
+    List<MetricDatapoint> query(String application, String task, String metricName, Collection<String> versions, long from, long to);
+
+    /**
+     * Resolves readers for the series matching a query, for lazy or partial access to their datapoints
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @return Readers for each matching series
+     */
+    Collection<? extends MetricSeriesReader> readers(String application, String task, String metricName, Collection<String> versions);
+
+    /**
+     * Resolves the keys of the series matching a query
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @return The keys of each matching series
+     */
+    Set<MetricSeriesKey> keys(String application, String task, String metricName, Collection<String> versions);
+
+    /**
+     * @return The keys of all series in this store
+     */
+    Set<MetricSeriesKey> keys();
+
+    /**
+     * Forces all datapoints ingested so far to durable storage, if this store is durable
+     * @throws IOException if datapoints could not be persisted
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+}
@@ -0,0 +1,170 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable quantile sketch with bounded relative error, after DDSketch (Masson et al., 2019).
+ *
+ * Values are counted in logarithmically sized bins such that any value reported for a quantile is within
+ * {@link #RELATIVE_ACCURACY} of a value actually at that rank. Merging two sketches is exact (it adds bin counts), so
+ * sketches for fine-grained time buckets can be combined into coarser ones without loss of accuracy. Bins are held
+ * densely between the smallest and largest bin index observed; if that span grows past {@link #MAX_BINS}, the lowest
+ * bins are collapsed together, sacrificing accuracy only for the smallest magnitudes.
+ */
+public final class QuantileSketch {
+    public static final double RELATIVE_ACCURACY = 0.01;
+    static final int MAX_BINS = 2048;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_INDEXABLE = 1e-9; // Magnitudes below this are counted as zero
+
+    private final Bins positive = new Bins();
+    private final Bins negative = new Bins();
+    private long zeroCount;
+    private long count;
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value > MIN_INDEXABLE) {
+            positive.add(index(value), 1);
+        } else if (value < -MIN_INDEXABLE) {
+            negative.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        count++;
+    }
+
+    public void merge(QuantileSketch other) {
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        count += other.count;
+    }
+
+    /**
+     * @param q The quantile, between 0 and 1 inclusive
+     * @return The estimated value at the supplied quantile, or NaN if the sketch is empty
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (q * (count - 1));
+        // Negative values in ascending order are negative bins in descending index order
+        if (rank < negative.total) {
+            return -value(negative.indexAtRankDescending(rank));
+        }
+        rank -= negative.total;
+        if (rank < zeroCount) {
+            return 0;
+        }
+        rank -= zeroCount;
+        return value(positive.indexAtRankAscending(rank));
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public QuantileSketch copy() {
+        QuantileSketch ret = new QuantileSketch();
+        ret.merge(this);
+        return ret;
+    }
+
+    private static int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / LOG_GAMMA);
+    }
+
+    // Midpoint of the bin (in relative terms), such that the relative error is bounded for all values within it
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    private static final class Bins {
+        private long[] counts = new long[0];
+        private int offset; // Bin index of counts[0]
+        private long total;
+
+        void add(int index, long n) {
+            if (counts.length == 0) {
+                counts = new long[8];
+                offset = index - 4;
+            }
+            if (index < offset) {
+                int grow = offset - index;
+                if (counts.length + grow > MAX_BINS) {
+                    // Collapse into the lowest bin rather than growing past the bound
+                    counts[0] += n;
+                    total += n;
+                    return;
+                }
+                long[] grown = new long[counts.length + grow];
+                System.arraycopy(counts, 0, grown, grow, counts.length);
+                counts = grown;
+                offset = index;
+            } else if (index >= offset + counts.length) {
+                int needed = index - offset + 1;
+                if (needed > MAX_BINS) {
+                    collapseLowest(needed - MAX_BINS);
+                    needed = MAX_BINS;
+                }
+                if (needed > counts.length) {
+                    counts = Arrays.copyOf(counts, Math.min(MAX_BINS, Math.max(needed, counts.length * 2)));
+                }
+            }
+            counts[index - offset] += n;
+            total += n;
+        }
+
+        private void collapseLowest(int bins) {
+            long collapsed = 0;
+            for (int i = 0; i < bins && i < counts.length; i++) {
+                collapsed += counts[i];
+            }
+            long[] shifted = new long[counts.length];
+            if (bins < counts.length) {
+                System.arraycopy(counts, bins, shifted, 0, counts.length - bins);
+            }
+            shifted[0] += collapsed;
+            counts = shifted;
+            offset += bins;
+        }
+
+        void merge(Bins other) {
+            for (int i = 0; i < other.counts.length; i++) {
+                if (other.counts[i] != 0) {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        int indexAtRankAscending(long rank) {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return offset + i;
+                }
+            }
+            return offset + counts.length - 1;
+        }
+
+        int indexAtRankDescending(long rank) {
+            long seen = 0;
+            for (int i = counts.length - 1; i >= 0; i--) {
+                seen += counts[i];
+                if (seen > rank) {
+                    return offset + i;
+                }
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A durable metric store persisting each series as a directory of immutable, memory-mapped segment files under
+ * base/application/task/metric/version, with one or more segments per time window.
+ *
+ * Startup only lists series directories; segment headers are read the first time a series is used, and segment
+ * contents are never read onto the heap except to serve a query, so heap usage does not grow with history on disk.
+ */
+public class SegmentMetricStore implements MetricStore {
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final File baseDir;
+    private final long windowMillis;
+    private final SeriesTable<SegmentedMetricSeries> series = new SeriesTable<>();
+
+    public SegmentMetricStore(File baseDir) throws IOException {
+        this(baseDir, DEFAULT_WINDOW_MILLIS);
+    }
+
+    public SegmentMetricStore(File baseDir, long windowMillis) throws IOException {
+        this.baseDir = baseDir;
+        this.windowMillis = windowMillis;
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new IOException("Could not create metric storage directory " + baseDir);
+        }
+        for (File app : listDirectories(baseDir)) {
+            for (File task : listDirectories(app)) {
+                for (File metric : listDirectories(task)) {
+                    for (File version : listDirectories(metric)) {
+                        MetricSeriesKey key = new MetricSeriesKey(
+                                decode(app.getName()), decode(task.getName()), decode(metric.getName()), decode(version.getName()));
+                        series.getOrCreate(key, k -> new SegmentedMetricSeries(version, windowMillis));
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<MetricDatapoint> ingest(String application, String task, Collection<? extends MetricDatapoint> datapoints) {
+        Map<MetricSeriesKey, List<MetricDatapoint>> grouped = new HashMap<>();
+        for (MetricDatapoint dp : datapoints) {
+            grouped.computeIfAbsent(MetricSeriesKey.of(application, task, dp), k -> new ArrayList<>()).add(dp);
+        }
+        List<MetricDatapoint> added = new ArrayList<>(datapoints.size());
+        grouped.forEach((key, points) -> {
+            try {
+                added.addAll(getOrCreate(key).addAll(points));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to persist metrics for " + key, e);
+            }
+        });
+        return added;
+    }
+
+    private SegmentedMetricSeries getOrCreate(MetricSeriesKey key) {
+        return series.getOrCreate(key, k -> new SegmentedMetricSeries(seriesDirectory(k), windowMillis));
+    }
+
+    @Override
+    public Collection<? extends MetricSeriesReader> readers(String application, String task, String metricName, Collection<String> versions) {
+        return series.resolve(application, task, metricName, versions).values();
+    }
+
+    @Override
+    public Set<MetricSeriesKey> keys(String application, String task, String metricName, Collection<String> versions) {
+        return series.resolve(application, task, metricName, versions).keySet();
+    }
+
+    @Override
+    public Set<MetricSeriesKey> keys() {
+        return series.keys();
+    }
+
+    @Override
+    public List<MetricDatapoint> query(String application, String task, String metricName, Collection<String> versions, long from, long to) {
+        List<List<MetricDatapoint>> slices = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<MetricSeriesKey, SegmentedMetricSeries> e : series.resolve(application, task, metricName, versions).entrySet()) {
+            List<MetricDatapoint> slice = new ArrayList<>();
+            e.getValue().range(from, to, slice);
+            if (!slice.isEmpty()) {
+                slices.add(slice);
+                total += slice.size();
+            }
+        }
+        return MetricIndex.merge(slices, total);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (SegmentedMetricSeries s : series.values()) {
+            s.flush();
+        }
+    }
+
+    /**
+     * Seals all active segments, after which reopening the store requires no recovery
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (SegmentedMetricSeries s : series.values()) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                IEvaluate.getLogger().error("Failed to seal metric segments", e);
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private File seriesDirectory(MetricSeriesKey key) {
+        File ret = new File(baseDir, encode(key.getApplication()));
+        ret = new File(ret, encode(key.getTask()));
+        ret = new File(ret, encode(key.getMetricName()));
+        return new File(ret, encode(key.getVersion()));
+    }
+
+    private static File[] listDirectories(File dir) {
+        File[] ret = dir.listFiles(File::isDirectory);
+        return ret == null ? new File[0] : ret;
+    }
+
+    // Prefixed so that empty names and names such as "." still map to a valid directory
+    private static String encode(String name) {
+        try {
+            return "_" + URLEncoder.encode(name, "UTF-8").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name.substring(1), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
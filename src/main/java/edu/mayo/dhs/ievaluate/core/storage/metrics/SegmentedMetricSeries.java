@@ -0,0 +1,388 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * The on-disk state of a single metric series: a directory of {@link MetricSegment}s, one or more per time window,
+ * plus a descriptor holding the series' {@link DatapointCodec}. Datapoints the codec cannot encode are appended to a
+ * JSON lines overflow file, which is only read into memory if the series actually contains any such datapoints.
+ *
+ * Segments are opened lazily on first access so that only series that are actually used pay for reading headers.
+ */
+final class SegmentedMetricSeries implements MetricSeriesReader {
+    private static final String DESCRIPTOR_FILE = "series.json";
+    private static final String OVERFLOW_FILE = "overflow.jsonl";
+    static final int MAX_ACTIVE_RECORDS = 1 << 16;
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    private final File dir;
+    private final long windowMillis;
+    private boolean opened;
+    private DatapointCodec codec;
+    private boolean codecResolved;
+    private final TreeMap<Long, List<MetricSegment>> segments = new TreeMap<>(); // By window start, in creation order
+    private final Map<Long, MetricSegment> active = new HashMap<>();
+    private long nextSequence;
+    private TreeMap<Long, List<MetricDatapoint>> overflow;
+    private boolean hasOverflow; // Whether the overflow file exists, so that reads need not check
+
+    SegmentedMetricSeries(File dir, long windowMillis) {
+        this.dir = dir;
+        this.windowMillis = windowMillis;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create metric series directory " + dir);
+        }
+        File descriptor = new File(dir, DESCRIPTOR_FILE);
+        if (descriptor.exists()) {
+            codecResolved = true;
+            JsonNode desc = OM.readTree(descriptor);
+            if (desc.hasNonNull("codec")) {
+                try {
+                    codec = DatapointCodec.fromDescription(desc.get("codec"));
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Datapoint type for metric series " + dir + " is no longer available", e);
+                }
+            }
+        }
+        hasOverflow = new File(dir, OVERFLOW_FILE).exists();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(MetricSegment.EXTENSION));
+        for (File f : files == null ? new File[0] : files) {
+            MetricSegment segment = MetricSegment.open(f); // Unsealed segments from an unclean shutdown are sealed here
+            nextSequence = Math.max(nextSequence, sequenceOf(f) + 1);
+            if (segment != null) {
+                segments.computeIfAbsent(segment.windowStart(), k -> new ArrayList<>()).add(segment);
+            }
+        }
+        segments.values().forEach(l -> l.sort(Comparator.comparingLong(s -> sequenceOf(s.file()))));
+        opened = true;
+    }
+
+    /**
+     * @param datapoints The datapoints to add to this series
+     * @return The datapoints actually added (i.e. that were not duplicates)
+     */
+    synchronized List<MetricDatapoint> addAll(Collection<? extends MetricDatapoint> datapoints) throws IOException {
+        ensureOpen();
+        if (!codecResolved && !datapoints.isEmpty()) {
+            codec = DatapointCodec.forDatapoint(datapoints.iterator().next());
+            codecResolved = true;
+            ObjectNode desc = OM.createObjectNode();
+            desc.set("codec", codec == null ? null : codec.describe());
+            OM.writeValue(new File(dir, DESCRIPTOR_FILE), desc);
+        }
+        // Group encodable datapoints by window, skipping duplicates
+        Map<Long, WindowBuffer> windows = new TreeMap<>();
+        Set<Long> pendingTimes = new HashSet<>();
+        List<MetricDatapoint> boxed = new ArrayList<>();
+        List<MetricDatapoint> added = new ArrayList<>(datapoints.size());
+        for (MetricDatapoint dp : datapoints) {
+            long time = dp.getMeasuredTime().getTime();
+            if (codec == null || !codec.encodes(dp)) {
+                if (addOverflow(time, dp)) {
+                    boxed.add(dp);
+                    added.add(dp);
+                }
+                continue;
+            }
+            double value = codec.value(dp);
+            long window = Math.floorDiv(time, windowMillis) * windowMillis;
+            WindowBuffer buffer = windows.computeIfAbsent(window, k -> new WindowBuffer());
+            if (containsEncoded(window, time, value)
+                    || (!pendingTimes.add(time) && buffer.contains(time, value))) {
+                continue;
+            }
+            buffer.add(time, value);
+            added.add(dp);
+        }
+        for (Map.Entry<Long, WindowBuffer> e : windows.entrySet()) {
+            WindowBuffer buffer = e.getValue();
+            if (buffer.length > 0) {
+                activeSegment(e.getKey(), buffer.length).append(buffer.times, buffer.values, buffer.length);
+            }
+        }
+        if (!boxed.isEmpty()) {
+            appendOverflow(boxed);
+        }
+        sealStaleSegments();
+        return added;
+    }
+
+    // Late datapoints for a window that is no longer active reopen its last segment while it has room, so that
+    // out-of-order backfills do not leave a small segment per batch
+    private MetricSegment activeSegment(long window, int incoming) throws IOException {
+        MetricSegment segment = active.get(window);
+        if (segment == null) {
+            List<MetricSegment> existing = segments.get(window);
+            MetricSegment last = existing == null ? null : existing.get(existing.size() - 1);
+            if (last != null && last.count() + incoming <= MAX_ACTIVE_RECORDS) {
+                last.unseal();
+                active.put(window, last);
+                return last;
+            }
+        } else if (segment.count() + incoming > MAX_ACTIVE_RECORDS) {
+            segment.seal();
+            active.remove(window);
+            segment = null;
+        }
+        if (segment == null) {
+            segment = MetricSegment.create(new File(dir, window + "-" + (nextSequence++) + MetricSegment.EXTENSION), window);
+            segments.computeIfAbsent(window, k -> new ArrayList<>()).add(segment);
+            active.put(window, segment);
+        }
+        return segment;
+    }
+
+    // Only the two most recent windows are kept open for appends, late data reopens an older window's last segment
+    private void sealStaleSegments() throws IOException {
+        if (active.size() <= 2) {
+            return;
+        }
+        List<Long> windows = new ArrayList<>(active.keySet());
+        Collections.sort(windows);
+        for (int i = 0; i < windows.size() - 2; i++) {
+            active.remove(windows.get(i)).seal();
+        }
+    }
+
+    private boolean containsEncoded(long window, long time, double value) throws IOException {
+        for (MetricSegment segment : segments.getOrDefault(window, Collections.emptyList())) {
+            if (segment.contains(time, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The datapoints of a batch falling into one window, growing with the window's own share of the batch
+     */
+    private static final class WindowBuffer {
+        private long[] times = new long[16];
+        private double[] values = new double[16];
+        private int length;
+
+        private void add(long time, double value) {
+            if (length == times.length) {
+                times = Arrays.copyOf(times, length << 1);
+                values = Arrays.copyOf(values, length << 1);
+            }
+            times[length] = time;
+            values[length] = value;
+            length++;
+        }
+
+        private boolean contains(long time, double value) {
+            for (int i = length - 1; i >= 0; i--) {
+                if (times[i] == time && Double.doubleToLongBits(values[i]) == Double.doubleToLongBits(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private boolean addOverflow(long time, MetricDatapoint datapoint) throws IOException {
+        List<MetricDatapoint> atTime = loadOverflow().computeIfAbsent(time, k -> new ArrayList<>(1));
+        if (atTime.contains(datapoint)) {
+            return false;
+        }
+        atTime.add(datapoint);
+        return true;
+    }
+
+    private void appendOverflow(List<MetricDatapoint> datapoints) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (MetricDatapoint dp : datapoints) {
+            ObjectNode line = OM.createObjectNode();
+            line.put("type", dp.getClass().getName());
+            line.set("data", OM.valueToTree(dp));
+            sb.append(OM.writeValueAsString(line)).append('\n');
+        }
+        Files.write(new File(dir, OVERFLOW_FILE).toPath(), sb.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        hasOverflow = true;
+    }
+
+    private TreeMap<Long, List<MetricDatapoint>> loadOverflow() throws IOException {
+        if (overflow != null) {
+            return overflow;
+        }
+        overflow = new TreeMap<>();
+        if (!hasOverflow) {
+            return overflow;
+        }
+        File f = new File(dir, OVERFLOW_FILE);
+        try (BufferedReader reader = Files.newBufferedReader(f.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    JsonNode node = OM.readTree(line);
+                    Class<?> type = DatapointCodec.resolveClass(node.get("type").asText());
+                    MetricDatapoint dp = (MetricDatapoint) OM.treeToValue(node.get("data"), type);
+                    List<MetricDatapoint> atTime = overflow.computeIfAbsent(dp.getMeasuredTime().getTime(), k -> new ArrayList<>(1));
+                    if (!atTime.contains(dp)) {
+                        atTime.add(dp);
+                    }
+                } catch (Exception e) {
+                    IEvaluate.getLogger().warn("Skipping unreadable metric datapoint in " + f, e);
+                }
+            }
+        }
+        return overflow;
+    }
+
+    @Override
+    public synchronized void range(long from, long to, List<MetricDatapoint> out) {
+        try {
+            rangeInternal(from, to, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read metrics from " + dir, e);
+        }
+    }
+
+    @Override
+    public synchronized long count(long from, long to) {
+        try {
+            ensureOpen();
+            long ret = 0;
+            Long first = segments.floorKey(from);
+            for (List<MetricSegment> window : segments.tailMap(first == null ? Long.MIN_VALUE : first, true).headMap(to).values()) {
+                for (MetricSegment segment : window) {
+                    ret += segment.count(from, to);
+                }
+            }
+            if (overflow != null || hasOverflow) {
+                for (List<MetricDatapoint> atTime : loadOverflow().subMap(from, true, to, false).values()) {
+                    ret += atTime.size();
+                }
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read metrics from " + dir, e);
+        }
+    }
+
+    // Segments only hold datapoints of their own window, so the first and last windows holding any bound the series
+    @Override
+    public synchronized long minTime() {
+        try {
+            ensureOpen();
+            long ret = Long.MAX_VALUE;
+            for (List<MetricSegment> window : segments.values()) {
+                for (MetricSegment segment : window) {
+                    ret = Math.min(ret, segment.minTime()); // Long.MAX_VALUE if empty
+                }
+                if (ret != Long.MAX_VALUE) {
+                    break;
+                }
+            }
+            if ((overflow != null || hasOverflow) && !loadOverflow().isEmpty()) {
+                ret = Math.min(ret, overflow.firstKey());
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read metrics from " + dir, e);
+        }
+    }
+
+    @Override
+    public synchronized long maxTime() {
+        try {
+            ensureOpen();
+            long ret = Long.MIN_VALUE;
+            for (List<MetricSegment> window : segments.descendingMap().values()) {
+                for (MetricSegment segment : window) {
+                    ret = Math.max(ret, segment.maxTime()); // Long.MIN_VALUE if empty
+                }
+                if (ret != Long.MIN_VALUE) {
+                    break;
+                }
+            }
+            if ((overflow != null || hasOverflow) && !loadOverflow().isEmpty()) {
+                ret = Math.max(ret, overflow.lastKey());
+            }
+            return ret;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read metrics from " + dir, e);
+        }
+    }
+
+    private void rangeInternal(long from, long to, List<MetricDatapoint> out) throws IOException {
+        ensureOpen();
+        List<MetricDatapoint> encoded = new ArrayList<>();
+        long[] lastTime = {Long.MIN_VALUE};
+        boolean[] ordered = {true};
+        Long first = segments.floorKey(from);
+        for (List<MetricSegment> window : segments.tailMap(first == null ? Long.MIN_VALUE : first, true).headMap(to).values()) {
+            for (MetricSegment segment : window) {
+                segment.forEach(from, to, (t, v) -> {
+                    ordered[0] &= t >= lastTime[0];
+                    lastTime[0] = t;
+                    encoded.add(codec.decode(t, v));
+                });
+            }
+        }
+        if (!ordered[0]) {
+            // Late data for an older window lives in its own segment and may interleave with its neighbours
+            encoded.sort(Comparator.comparingLong(dp -> dp.getMeasuredTime().getTime()));
+        }
+        if (overflow == null && !hasOverflow) {
+            out.addAll(encoded);
+            return;
+        }
+        List<MetricDatapoint> boxed = new ArrayList<>();
+        loadOverflow().subMap(from, true, to, false).values().forEach(boxed::addAll);
+        List<List<MetricDatapoint>> slices = new ArrayList<>();
+        if (!encoded.isEmpty()) {
+            slices.add(encoded);
+        }
+        if (!boxed.isEmpty()) {
+            slices.add(boxed);
+        }
+        out.addAll(MetricIndex.merge(slices, encoded.size() + boxed.size()));
+    }
+
+    /**
+     * Forces all appended datapoints to disk
+     */
+    synchronized void flush() throws IOException {
+        for (MetricSegment segment : active.values()) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Seals all active segments
+     */
+    synchronized void close() throws IOException {
+        for (MetricSegment segment : active.values()) {
+            segment.seal();
+        }
+        active.clear();
+    }
+
+    private static long sequenceOf(File segmentFile) {
+        String name = segmentFile.getName();
+        try {
+            return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - MetricSegment.EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
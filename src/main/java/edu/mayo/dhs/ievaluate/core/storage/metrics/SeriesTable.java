@@ -0,0 +1,76 @@
+package edu.mayo.dhs.ievaluate.core.storage.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Thread-safe lookup table of per-series state keyed by (application, task, metric name, version), supporting the
+ * metric name and version filtering used by metric queries
+ * @param <S> The per-series state type
+ */
+public class SeriesTable<S> {
+    // application -> task -> metric name -> version -> series
+    private final Map<String, Map<String, Map<String, Map<String, S>>>> series = new ConcurrentHashMap<>();
+
+    public S getOrCreate(MetricSeriesKey key, Function<MetricSeriesKey, S> factory) {
+        return series
+                .computeIfAbsent(key.getApplication(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key.getTask(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key.getMetricName(), k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key.getVersion(), k -> factory.apply(key));
+    }
+
+    /**
+     * Resolves all series matching a query
+     * @param application The application name
+     * @param task The task name
+     * @param metricName The metric name, or null for all metrics
+     * @param versions The versions to include, or null/empty for all versions
+     * @return The matching series, keyed by series key
+     */
+    public Map<MetricSeriesKey, S> resolve(String application, String task, String metricName, Collection<String> versions) {
+        Map<MetricSeriesKey, S> ret = new HashMap<>();
+        Map<String, Map<String, S>> taskMetrics = series
+                .getOrDefault(application, Collections.emptyMap())
+                .getOrDefault(task, Collections.emptyMap());
+        Collection<String> metricNames = metricName == null
+                ? taskMetrics.keySet()
+                : Collections.singleton(MetricSeriesKey.normalize(metricName));
+        for (String metric : metricNames) {
+            Map<String, S> byVersion = taskMetrics.getOrDefault(metric, Collections.emptyMap());
+            if (versions == null || versions.isEmpty()) {
+                byVersion.forEach((version, s) -> ret.put(new MetricSeriesKey(application, task, metric, version), s));
+            } else {
+                for (String version : versions) {
+                    S s = byVersion.get(MetricSeriesKey.normalize(version));
+                    if (s != null) {
+                        ret.put(new MetricSeriesKey(application, task, metric, version), s);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return The keys of all series in this table
+     */
+    public Set<MetricSeriesKey> keys() {
+        Set<MetricSeriesKey> ret = new HashSet<>();
+        series.forEach((application, tasks) -> tasks.forEach((task, metrics) -> metrics.forEach(
+                (metric, versions) -> versions.keySet().forEach(
+                        version -> ret.add(new MetricSeriesKey(application, task, metric, version))))));
+        return ret;
+    }
+
+    /**
+     * @return All series in this table
+     */
+    public Collection<S> values() {
+        List<S> ret = new ArrayList<>();
+        series.values().forEach(tasks -> tasks.values().forEach(
+                metrics -> metrics.values().forEach(versions -> ret.addAll(versions.values()))));
+        return ret;
+    }
+}
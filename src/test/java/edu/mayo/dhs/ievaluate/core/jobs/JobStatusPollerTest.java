@@ -0,0 +1,175 @@
+package edu.mayo.dhs.ievaluate.core.jobs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Polls jobs against a stub job service. Requests to /block/ are held until {@link #release} is counted down, which
+ * holds the only request slot of the host so that further polls queue up behind it.
+ */
+public class JobStatusPollerTest {
+    private HttpServer server;
+    private String base;
+    private JobStatusPoller poller;
+    private final List<String> requested = new CopyOnWriteArrayList<>();
+    private final Map<String, Queue<String>> responses = new ConcurrentHashMap<>();
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::respond);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        if (poller != null) {
+            poller.close();
+        }
+        server.stop(0);
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    @Test(timeout = 30000)
+    public void pollsUntilComplete() throws Exception {
+        poller = new JobStatusPoller(10, 100, 8, 100);
+        responses.put("/jobs/" + uid(1), new ConcurrentLinkedQueue<>(Arrays.asList(
+                "{\"status\":\"QUEUED\"}", "{\"status\":\"RUNNING\"}", "{\"status\":\"COMPLETED\"}")));
+        TestJob job = new TestJob(base + "/jobs/%JOB_UID%", null, uid(1));
+
+        assertSame(job, poller.track(job).get(10, TimeUnit.SECONDS));
+        assertEquals("COMPLETED", job.getLastStatus().get("status").asText());
+        assertEquals(Collections.nCopies(3, "/jobs/" + uid(1)), requested);
+        assertEquals(0, poller.getTrackedJobCount());
+    }
+
+    @Test(timeout = 30000)
+    public void coalescesWaitingPollsByStatusUrl() throws Exception {
+        poller = new JobStatusPoller(10, 100, 1, 100);
+        CompletableFuture<RESTfulApplicationJob> blocker = poller.track(new TestJob(base + "/block/%JOB_UID%", null, uid(0)));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        // Queued behind the blocked request as the host has a single slot, so all due by the time it is released
+        List<CompletableFuture<RESTfulApplicationJob>> polled = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            polled.add(poller.track(new TestJob(base + "/jobs/%JOB_UID%", null, uid(1))));
+        }
+        polled.add(poller.track(new TestJob(base + "/other/%JOB_UID%", null, uid(1))));
+        awaitTracked(5);
+        Thread.sleep(100); // Several ticks while the polls wait
+        release.countDown();
+
+        blocker.get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<RESTfulApplicationJob> future : polled) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(Arrays.asList("/block/" + uid(0), "/jobs/" + uid(1), "/other/" + uid(1)), requested);
+        assertEquals(3, poller.getRequestCount());
+        assertEquals(5, poller.getPollCount());
+        assertEquals(1, maxInFlight.get());
+    }
+
+    @Test(timeout = 30000)
+    public void batchesDistinctStatusUrls() throws Exception {
+        poller = new JobStatusPoller(10, 100, 1, 2);
+        CompletableFuture<RESTfulApplicationJob> blocker = poller.track(new TestJob(base + "/block/%JOB_UID%", null, uid(0)));
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        String batch = base + "/batch?uids=%JOB_UIDS%";
+        List<TestJob> jobs = Arrays.asList(
+                new TestJob(base + "/a/%JOB_UID%", batch, uid(1)),
+                new TestJob(base + "/a/%JOB_UID%", batch, uid(1)), // Same status URL, so polled as one
+                new TestJob(base + "/b/%JOB_UID%", batch, uid(1)), // Same UID but another status URL, so not in the same batch
+                new TestJob(base + "/a/%JOB_UID%", batch, uid(2)),
+                new TestJob(base + "/a/%JOB_UID%", batch, uid(3)));
+        List<CompletableFuture<RESTfulApplicationJob>> polled = new ArrayList<>();
+        for (TestJob job : jobs) {
+            polled.add(poller.track(job));
+        }
+        awaitTracked(6);
+        release.countDown();
+
+        blocker.get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<RESTfulApplicationJob> future : polled) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        // The job with a conflicting UID opens a new batch, which later jobs join
+        assertEquals(Arrays.asList("/block/" + uid(0), "/batch?uids=" + uid(1), "/batch?uids=" + uid(1) + "," + uid(2),
+                "/batch?uids=" + uid(3)), requested);
+        assertEquals(4, poller.getRequestCount());
+        assertEquals(6, poller.getPollCount());
+    }
+
+    private void awaitTracked(int count) throws InterruptedException {
+        while (poller.getTrackedJobCount() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String uri = exchange.getRequestURI().toString();
+        requested.add(uri);
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            String body;
+            if (uri.startsWith("/block/")) {
+                blocked.countDown();
+                release.await();
+                body = "\"COMPLETED\"";
+            } else if (uri.startsWith("/batch")) {
+                StringJoiner statuses = new StringJoiner(",", "{", "}");
+                for (String uid : exchange.getRequestURI().getQuery().substring("uids=".length()).split(",")) {
+                    statuses.add("\"" + uid + "\":\"COMPLETED\"");
+                }
+                body = statuses.toString();
+            } else {
+                Queue<String> queued = responses.get(uri);
+                body = queued == null || queued.isEmpty() ? "\"COMPLETED\"" : queued.poll();
+            }
+            byte[] content = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.sendResponseHeaders(503, -1);
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static UUID uid(int uid) {
+        return new UUID(0, uid);
+    }
+
+    private static class TestJob extends RESTfulApplicationJob {
+        TestJob(String statusEndpoint, String batchStatusEndpoint, UUID uid) {
+            super(statusEndpoint, batchStatusEndpoint);
+            this.jobUID = uid;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package edu.mayo.dhs.ievaluate.core.plugins;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import edu.mayo.dhs.ievaluate.api.IEvaluate;
+import edu.mayo.dhs.ievaluate.api.applications.ApplicationProvider;
+import edu.mayo.dhs.ievaluate.api.applications.ProfiledApplication;
+import edu.mayo.dhs.ievaluate.api.models.metrics.MetricDatapoint;
+import edu.mayo.dhs.ievaluate.api.models.tasks.ApplicationTask;
+import edu.mayo.dhs.ievaluate.api.plugins.IEvaluatePlugin;
+import edu.mayo.dhs.ievaluate.api.storage.StorageProvider;
+import edu.mayo.dhs.ievaluate.core.IEvaluateCore;
+import edu.mayo.dhs.ievaluate.core.applications.ApplicationManagerCore;
+import edu.mayo.dhs.ievaluate.core.storage.InMemoryStorageProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reloads plugins packaged from the nested plugin classes below. Classes contained in a plugin JAR are defined by the
+ * plugin's own class loader even though they are also on the test class path, so each reload yields new classes;
+ * {@link Events} is not packaged, so it is shared by all plugin versions and the test.
+ */
+public class PluginReloadTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File workingDir;
+    private File jarDir;
+    private IEvaluateCore core;
+
+    @Before
+    public void setUp() throws IOException {
+        Events.EVENTS.clear();
+        workingDir = folder.newFolder("server");
+        jarDir = new File(workingDir, "plugins/jars");
+        assertTrue(jarDir.mkdirs());
+        for (String plugin : Arrays.asList("storage", "threaded")) { // Plugin configuration directories must exist
+            assertTrue(new File(workingDir, "plugins/config/" + plugin).mkdirs());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if (core != null) {
+            core.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void reloadSwapsStorageProvider() throws IOException {
+        pluginJar(new File(jarDir, "storage.jar"), "storage", StoragePlugin.class, TestStorage.class);
+        core = new IEvaluateCore(workingDir);
+        StorageProvider before = core.getStorage();
+        assertEquals(TestStorage.class.getName(), before.getClass().getName());
+        assertNotSame(TestStorage.class, before.getClass());
+
+        File replacement = pluginJar(folder.newFile("storage-2.jar"), "storage", StoragePlugin.class, TestStorage.class);
+        assertTrue(plugins().reloadPlugin("storage", replacement));
+
+        StorageProvider after = core.getStorage();
+        assertNotSame(before, after);
+        assertEquals(TestStorage.class.getName(), after.getClass().getName());
+        assertSame(plugins().getPluginClassLoaders().get("storage"), after.getClass().getClassLoader());
+        assertEquals(Arrays.asList("open " + before, "open " + after, "close " + before), Events.EVENTS);
+    }
+
+    @Test(timeout = 60000)
+    public void reloadWithoutStorageFallsBackToInMemory() throws IOException {
+        pluginJar(new File(jarDir, "storage.jar"), "storage", StoragePlugin.class, TestStorage.class);
+        core = new IEvaluateCore(workingDir);
+        StorageProvider before = core.getStorage();
+
+        File replacement = pluginJar(folder.newFile("storage-2.jar"), "storage", PlainPlugin.class);
+        assertTrue(plugins().reloadPlugin("storage", replacement));
+
+        assertTrue(core.getStorage() instanceof InMemoryStorageProvider);
+        assertEquals(Arrays.asList("open " + before, "close " + before), Events.EVENTS);
+    }
+
+    @Test(timeout = 60000)
+    public void getPluginFromThreadStartedByReloadedPlugin() throws IOException {
+        pluginJar(new File(jarDir, "threaded.jar"), "threaded", ThreadedPlugin.class);
+        core = new IEvaluateCore(workingDir);
+        Events.EVENTS.clear();
+
+        File replacement = pluginJar(folder.newFile("threaded-2.jar"), "threaded", ThreadedPlugin.class);
+        assertTrue(plugins().reloadPlugin("threaded", replacement));
+
+        IEvaluatePlugin reloaded = plugins().getRegisteredPlugins().get("threaded");
+        assertEquals(Collections.singletonList("found " + reloaded), Events.EVENTS);
+    }
+
+    @Test(timeout = 60000)
+    public void getApplicationWaitsForDetachedApplications() throws Exception {
+        core = new IEvaluateCore(workingDir);
+        ApplicationManagerCore applications = (ApplicationManagerCore) core.getApplicationManager();
+        applications.registerApplicationProvider(new TestApplicationProvider());
+        TestApplication application = new TestApplication(UUID.randomUUID());
+        applications.registerApplication(application);
+
+        // As the applications' plugin would be reloaded
+        applications.pluginsUnloading(Collections.singleton(TestApplication.class.getClassLoader()));
+        CompletableFuture<ProfiledApplication> lookup = CompletableFuture.supplyAsync(
+                () -> applications.getApplication(application.getId()));
+        try {
+            lookup.get(200, TimeUnit.MILLISECONDS);
+            fail("Found an application being reloaded");
+        } catch (TimeoutException expected) {
+            // Waiting for the reload
+        }
+        applications.registerApplicationProvider(new TestApplicationProvider());
+        applications.pluginsReloaded(Collections.singleton(TestApplication.class.getClassLoader()));
+
+        ProfiledApplication found = lookup.get(10, TimeUnit.SECONDS);
+        assertNotNull(found);
+        assertNotSame(application, found);
+        assertEquals(application.getId(), found.getId());
+        assertNull(applications.getApplication(UUID.randomUUID()));
+    }
+
+    private PluginManagerCore plugins() {
+        return (PluginManagerCore) core.getPluginManager();
+    }
+
+    private static File pluginJar(File jar, String name, Class<? extends IEvaluatePlugin> main, Class<?>... classes) throws IOException {
+        ObjectNode descriptor = new ObjectMapper().createObjectNode();
+        descriptor.put("name", name);
+        descriptor.put("mainClass", main.getName());
+        descriptor.putArray("required");
+        List<Class<?>> contents = new ArrayList<>();
+        contents.add(main);
+        contents.addAll(Arrays.asList(classes));
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar.toPath()))) {
+            out.putNextEntry(new JarEntry("plugin.json"));
+            out.write(new ObjectMapper().writeValueAsBytes(descriptor));
+            out.putNextEntry(new JarEntry("config.json"));
+            out.write("{}".getBytes("UTF-8"));
+            for (Class<?> clazz : contents) {
+                String resource = clazz.getName().replace('.', '/') + ".class";
+                out.putNextEntry(new JarEntry(resource));
+                try (InputStream in = PluginReloadTest.class.getClassLoader().getResourceAsStream(resource)) {
+                    copy(in, out);
+                }
+            }
+        }
+        return jar;
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+    }
+
+    /**
+     * Shared by all plugin versions, as it is not packaged into their JARs
+     */
+    public static final class Events {
+        public static final List<String> EVENTS = new CopyOnWriteArrayList<>();
+
+        private Events() {
+        }
+    }
+
+    public static class PlainPlugin implements IEvaluatePlugin {
+        @Override
+        public void onInit() {
+        }
+
+        @Override
+        public void onEnable() {
+        }
+
+        @Override
+        public void loadConfig(File configDir) {
+        }
+    }
+
+    public static class StoragePlugin extends PlainPlugin {
+        @Override
+        public void onInit() {
+            IEvaluate.getServer().registerStorageProvider(new TestStorage());
+        }
+    }
+
+    public static class TestStorage implements StorageProvider, Closeable {
+        public TestStorage() {
+            Events.EVENTS.add("open " + this);
+        }
+
+        @Override
+        public Map<String, JsonNode> loadRegisteredApplications() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public void saveRegisteredApplications() {
+        }
+
+        @Override
+        public List<MetricDatapoint> getMetrics(ProfiledApplication application, String metricName, ApplicationTask task,
+                                                Collection<String> versions) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public void saveMetrics(ProfiledApplication application, ApplicationTask task, Collection<MetricDatapoint> metrics) {
+        }
+
+        @Override
+        public void close() {
+            Events.EVENTS.add("close " + this);
+        }
+    }
+
+    /**
+     * Looks itself up from a thread it starts in onEnable, and waits for that thread
+     */
+    public static class ThreadedPlugin extends PlainPlugin {
+        @Override
+        public void onEnable() {
+            Thread lookup = new Thread(() -> Events.EVENTS.add("found "
+                    + IEvaluate.getServer().getPluginManager().getPlugin("threaded", IEvaluatePlugin.class)));
+            lookup.start();
+            try {
+                lookup.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class TestApplication extends ProfiledApplication {
+        private final UUID id;
+
+        public TestApplication(UUID id) {
+            this.id = id;
+        }
+
+        @Override
+        public UUID getId() {
+            return id;
+        }
+
+        @Override
+        public String getName() {
+            return "test-" + id;
+        }
+    }
+
+    public static class TestApplicationProvider implements ApplicationProvider<TestApplication> {
+        @Override
+        public Class<TestApplication> applicationClass() {
+            return TestApplication.class;
+        }
+
+        @Override
+        public JsonNode marshal(ProfiledApplication application) {
+            return new ObjectMapper().createObjectNode().put("id", application.getId().toString());
+        }
+
+        @Override
+        public TestApplication unmarshal(JsonNode marshaled) {
+            return new TestApplication(UUID.fromString(marshaled.get("id").asText()));
+        }
+    }
+}